@@ -155,6 +155,11 @@ public class BlufiActivity extends BaseActivity {
     private void connect() {
         mContent.blufiConnect.setEnabled(false);
 
+        if (mBlufiClient != null && mBlufiClient.getConnectionState() == BlufiClient.STATE_DISCONNECTED) {
+            // Keep the client, a bonded device keeps its notifications enabled
+            mBlufiClient.reconnect();
+            return;
+        }
         if (mBlufiClient != null) {
             mBlufiClient.close();
             mBlufiClient = null;
@@ -362,6 +367,11 @@ public class BlufiActivity extends BaseActivity {
             switch (status) {
                 case STATUS_SUCCESS:
                     updateMessage("Discover service and characteristics success", false);
+                    long savedTime = client.getReconnectSavedTime();
+                    if (savedTime >= 0) {
+                        updateMessage(String.format(Locale.ENGLISH, "Notifications kept enabled, saved %dms",
+                                savedTime), false);
+                    }
                     int mtu = BlufiConstants.DEFAULT_MTU_LENGTH;
                     mLog.d("Request MTU " + mtu);
                     boolean requestMtu = gatt.requestMtu(mtu);
@@ -391,6 +401,14 @@ public class BlufiActivity extends BaseActivity {
                     gatt.disconnect();
                     updateMessage("Open notify function failed", false);
                     return;
+                case CODE_GATT_CONNECT_TIMEOUT:
+                    mLog.w("Prepare gatt timeout");
+                    updateMessage("Prepare gatt timeout", false);
+                    return;
+                case CODE_GATT_CONNECT_FAILED:
+                    mLog.w("Connection failed before gatt prepared");
+                    updateMessage("Connection failed before gatt prepared", false);
+                    return;
                 default:
                     gatt.disconnect();
                     updateMessage("onGattPrepared unknown status", false);
@@ -42,19 +42,27 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import blufi.espressif.BlufiFleetProvisioner;
+import blufi.espressif.params.BlufiConfigureParams;
 
 @SuppressLint("MissingPermission")
 public class MainActivity extends AppCompatActivity {
     private static final long TIMEOUT_SCAN = 4000L;
+    private static final int PIPELINE_QUEUE_CAPACITY = 8;
 
     private static final int REQUEST_PERMISSION = 0x01;
     private static final int REQUEST_BLUFI = 0x10;
+    private static final int REQUEST_PIPELINE_CONFIGURE = 0x11;
 
     private static final int MENU_SETTINGS = 0x01;
+    private static final int MENU_PIPELINE = 0x02;
 
     private final BlufiLog mLog = new BlufiLog(getClass());
 
@@ -71,6 +79,15 @@ public class MainActivity extends AppCompatActivity {
     private ExecutorService mThreadPool;
     private Future<Boolean> mUpdateFuture;
 
+    private volatile BlufiFleetProvisioner.Pipeline mPipeline;
+    // The pipelines whose taken devices have not finished, including stopped ones, only used on the main thread
+    private final List<BlufiFleetProvisioner.Pipeline> mRunningPipelines = new ArrayList<>();
+    private ScanSettings mScanSettings;
+    // Whether the scan is paused while the pipeline has no room for the devices it finds
+    private volatile boolean mScanPaused;
+    private final AtomicInteger mPipelineSucceeded = new AtomicInteger();
+    private final AtomicInteger mPipelineFailed = new AtomicInteger();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -82,7 +99,11 @@ public class MainActivity extends AppCompatActivity {
 
 
         mBinding.refreshLayout.setColorSchemeResources(R.color.colorAccent);
-        mBinding.refreshLayout.setOnRefreshListener(this::scan);
+        mBinding.refreshLayout.setOnRefreshListener(() -> {
+            if (mPipeline == null) {
+                scan();
+            }
+        });
 
         mBleList = new LinkedList<>();
         mBleAdapter = new BleAdapter();
@@ -110,6 +131,12 @@ public class MainActivity extends AppCompatActivity {
 
         stopScan();
         mThreadPool.shutdownNow();
+        mPipeline = null;
+        // Abort the devices still provisioning, the activity no longer reports them
+        for (BlufiFleetProvisioner.Pipeline pipeline : new ArrayList<>(mRunningPipelines)) {
+            pipeline.getFuture().cancel();
+        }
+        mRunningPipelines.clear();
     }
 
     @Override
@@ -136,6 +163,14 @@ public class MainActivity extends AppCompatActivity {
             scan();
             return;
         }
+        if (requestCode == REQUEST_PIPELINE_CONFIGURE) {
+            if (resultCode == RESULT_OK) {
+                BlufiConfigureParams params =
+                        (BlufiConfigureParams) data.getSerializableExtra(BlufiConstants.KEY_CONFIGURE_PARAM);
+                startPipeline(params);
+            }
+            return;
+        }
 
         super.onActivityResult(requestCode, resultCode, data);
     }
@@ -143,26 +178,48 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         menu.add(Menu.NONE, MENU_SETTINGS, 0, R.string.main_menu_settings);
+        menu.add(Menu.NONE, MENU_PIPELINE, 1, R.string.main_menu_pipeline_start);
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem pipelineItem = menu.findItem(MENU_PIPELINE);
+        if (pipelineItem != null) {
+            pipelineItem.setTitle(mPipeline == null ? R.string.main_menu_pipeline_start :
+                    R.string.main_menu_pipeline_stop);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         final int itemId = item.getItemId();
         if (itemId == MENU_SETTINGS) {
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
+        } else if (itemId == MENU_PIPELINE) {
+            if (mPipeline == null) {
+                Intent intent = new Intent(this, ConfigureOptionsActivity.class);
+                startActivityForResult(intent, REQUEST_PIPELINE_CONFIGURE);
+            } else {
+                stopPipeline();
+            }
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    private void scan() {
+    /**
+     * @return true if the scan has started
+     */
+    private boolean scan() {
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
         if (!adapter.isEnabled() || scanner == null) {
             Toast.makeText(this, R.string.main_bt_disable_msg, Toast.LENGTH_SHORT).show();
             mBinding.refreshLayout.setRefreshing(false);
-            return;
+            return false;
         }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -172,7 +229,7 @@ public class MainActivity extends AppCompatActivity {
             if (!locationEnable) {
                 Toast.makeText(this, R.string.main_location_disable_msg, Toast.LENGTH_SHORT).show();
                 mBinding.refreshLayout.setRefreshing(false);
-                return;
+                return false;
             }
         }
 
@@ -189,7 +246,9 @@ public class MainActivity extends AppCompatActivity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             scanSettingsBuilder.setLegacy(false);
         }
-        scanner.startScan(null, scanSettingsBuilder.build(), mScanCallback);
+        mScanSettings = scanSettingsBuilder.build();
+        mScanPaused = false;
+        scanner.startScan(null, mScanSettings, mScanCallback);
         mUpdateFuture = mThreadPool.submit(() -> {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
@@ -200,9 +259,13 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 long scanCost = SystemClock.elapsedRealtime() - mScanStartTime;
-                if (scanCost > TIMEOUT_SCAN) {
+                BlufiFleetProvisioner.Pipeline pipeline = mPipeline;
+                if (scanCost > TIMEOUT_SCAN && pipeline == null) {
                     break;
                 }
+                if (pipeline != null) {
+                    pauseScanWhileQueueFull(pipeline);
+                }
 
                 onIntervalScanUpdate(false);
             }
@@ -215,6 +278,30 @@ public class MainActivity extends AppCompatActivity {
             mLog.d("Scan ble thread is interrupted");
             return true;
         });
+        return true;
+    }
+
+    /**
+     * Stop the low latency scan while the pipeline rejects the devices it finds, a device is offered again
+     * by its advertisements after the scan resumes.
+     */
+    private void pauseScanWhileQueueFull(BlufiFleetProvisioner.Pipeline pipeline) {
+        boolean full = pipeline.getQueuedCount() >= PIPELINE_QUEUE_CAPACITY;
+        if (full == mScanPaused) {
+            return;
+        }
+        BluetoothLeScanner scanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
+        if (scanner == null) {
+            return;
+        }
+        mScanPaused = full;
+        if (full) {
+            mLog.d("Pipeline queue is full, pause scan");
+            scanner.stopScan(mScanCallback);
+        } else {
+            mLog.d("Pipeline queue has room, resume scan");
+            scanner.startScan(null, mScanSettings, mScanCallback);
+        }
     }
 
     private void stopScan() {
@@ -229,6 +316,76 @@ public class MainActivity extends AppCompatActivity {
         mLog.d("Stop scan ble");
     }
 
+    /**
+     * Provision the matching devices as soon as the scan finds them, the scan keeps running
+     * until the pipeline is stopped.
+     */
+    private void startPipeline(BlufiConfigureParams params) {
+        stopScan();
+
+        BlufiFleetProvisioner provisioner = new BlufiFleetProvisioner(getApplicationContext(), null);
+        provisioner.setListener(result -> {
+            if (result.isSuccess()) {
+                mPipelineSucceeded.incrementAndGet();
+            } else {
+                mPipelineFailed.incrementAndGet();
+                mLog.w(String.format(Locale.ENGLISH, "Provision %s failed at step %d, status=%d",
+                        result.getDevice().getAddress(), result.getFailedStep(), result.getStatus()));
+            }
+            runOnUiThread(this::updatePipelineStatus);
+        });
+        mPipelineSucceeded.set(0);
+        mPipelineFailed.set(0);
+        BlufiFleetProvisioner.Pipeline pipeline = provisioner.startPipeline(params, PIPELINE_QUEUE_CAPACITY);
+        pipeline.getFuture().addListener(future -> runOnUiThread(() -> {
+            mRunningPipelines.remove(pipeline);
+            if (future.isSuccess()) {
+                BlufiFleetProvisioner.Report report = future.getResult();
+                String msg = getString(R.string.main_pipeline_report, report.getSucceededCount(),
+                        report.getFailedCount(), report.getDevicesPerMinute());
+                Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
+            }
+        }));
+        mPipeline = pipeline;
+        mRunningPipelines.add(pipeline);
+
+        mBinding.refreshLayout.setRefreshing(true);
+        if (!scan()) {
+            // Nothing will be offered to the pipeline
+            mPipeline = null;
+            mRunningPipelines.remove(pipeline);
+            pipeline.getFuture().cancel();
+        }
+        invalidateOptionsMenu();
+        updatePipelineStatus();
+    }
+
+    /**
+     * Take no more devices, the devices taken will finish their provisioning.
+     */
+    private void stopPipeline() {
+        BlufiFleetProvisioner.Pipeline pipeline = mPipeline;
+        mPipeline = null;
+        stopScan();
+        if (pipeline != null) {
+            pipeline.finish();
+        }
+        invalidateOptionsMenu();
+    }
+
+    private void updatePipelineStatus() {
+        BlufiFleetProvisioner.Pipeline pipeline = mPipeline;
+        if (getSupportActionBar() == null) {
+            return;
+        }
+        if (pipeline == null) {
+            getSupportActionBar().setSubtitle(null);
+        } else {
+            getSupportActionBar().setSubtitle(getString(R.string.main_pipeline_status, mPipelineSucceeded.get(),
+                    mPipelineFailed.get(), pipeline.getQueuedCount()));
+        }
+    }
+
     private void onIntervalScanUpdate(boolean over) {
         List<ScanResult> devices = new ArrayList<>(mDeviceMap.values());
         Collections.sort(devices, (dev1, dev2) -> {
@@ -237,6 +394,7 @@ public class MainActivity extends AppCompatActivity {
             return rssi2.compareTo(rssi1);
         });
         runOnUiThread(() -> {
+            updatePipelineStatus();
             mBleList.clear();
             mBleList.addAll(devices);
             mBleAdapter.notifyDataSetChanged();
@@ -270,6 +428,9 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onClick(View v) {
+            if (mPipeline != null) {
+                return;
+            }
             stopScan();
             gotoDevice(scanResult.getDevice());
         }
@@ -280,6 +441,13 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
+            mLog.w("Scan failed " + errorCode);
+            runOnUiThread(() -> {
+                if (mPipeline != null) {
+                    // The pipeline takes no device without a scan, let the taken ones finish
+                    stopPipeline();
+                }
+            });
         }
 
         @Override
@@ -303,6 +471,13 @@ public class MainActivity extends AppCompatActivity {
             }
 
             mDeviceMap.put(scanResult.getDevice().getAddress(), scanResult);
+
+            BlufiFleetProvisioner.Pipeline pipeline = mPipeline;
+            if (pipeline != null) {
+                // Taken once per pipeline, a device offered while the queue is full is offered again
+                // by its next advertisement
+                pipeline.offer(scanResult.getDevice());
+            }
         }
     }
 
@@ -0,0 +1,98 @@
+package blufi.espressif;
+
+/**
+ * The frames waiting for the ack of the device, indexed by the 8 bits sequence.
+ * <p>
+ * Frames are added in send order. The device receives them in order, so an ack acknowledges its frame
+ * and all frames sent before it. An ack of a sequence which is not outstanding is stale and ignored.
+ * Not thread safe, the tracker is confined to the lane of the client.
+ */
+class AckTracker {
+    private static final int SEQUENCE_SPACE = 256;
+
+    /**
+     * The window must stay below half of the sequence space, then an ack is never mistaken for a newer frame.
+     */
+    static final int WINDOW_MAX = SEQUENCE_SPACE / 2 - 1;
+
+    private final boolean[] mOutstanding = new boolean[SEQUENCE_SPACE];
+    private final long[] mDeadlines = new long[SEQUENCE_SPACE];
+    private final int[] mOrder = new int[SEQUENCE_SPACE];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /**
+     * @param deadline the time in {@link android.os.SystemClock#elapsedRealtime()} the ack must arrive by
+     * @return false if the sequence is outstanding or the tracker is full
+     */
+    boolean add(int sequence, long deadline) {
+        sequence &= 0xff;
+        if (mOutstanding[sequence] || mCount >= WINDOW_MAX) {
+            return false;
+        }
+        mOutstanding[sequence] = true;
+        mDeadlines[sequence] = deadline;
+        mOrder[(mHead + mCount) & 0xff] = sequence;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Acknowledge the frame of the sequence and all frames sent before it.
+     *
+     * @return the count of acknowledged frames, 0 if the ack is stale
+     */
+    int acknowledge(int sequence) {
+        if (sequence < 0 || sequence >= SEQUENCE_SPACE || !mOutstanding[sequence]) {
+            return 0;
+        }
+        int released = 0;
+        while (true) {
+            int oldest = mOrder[mHead];
+            mOutstanding[oldest] = false;
+            mHead = (mHead + 1) & 0xff;
+            mCount--;
+            released++;
+            if (oldest == sequence) {
+                return released;
+            }
+        }
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return the sequence of the oldest outstanding frame, -1 if none
+     */
+    int oldest() {
+        return mCount == 0 ? -1 : mOrder[mHead];
+    }
+
+    /**
+     * @return the earliest deadline of the outstanding frames, -1 if none
+     */
+    long earliestDeadline() {
+        long earliest = -1;
+        for (int i = 0; i < mCount; i++) {
+            long deadline = mDeadlines[mOrder[(mHead + i) & 0xff]];
+            if (earliest < 0 || deadline < earliest) {
+                earliest = deadline;
+            }
+        }
+        return earliest;
+    }
+
+    void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mOutstanding[mOrder[(mHead + i) & 0xff]] = false;
+        }
+        mHead = 0;
+        mCount = 0;
+    }
+}
@@ -15,6 +15,9 @@ public abstract class BlufiCallback {
     public static final int CODE_CATCH_EXCEPTION = -1001;
     public static final int CODE_WRITE_DATA_FAILED = -1002;
     public static final int CODE_INVALID_DATA = -1003;
+    public static final int CODE_RESPONSE_TIMEOUT = -1004;
+    public static final int CODE_OPERATION_TIMEOUT = -1005;
+    public static final int CODE_CANCELLED = -1006;
 
     public static final int CODE_NEG_POST_FAILED = -2000;
     public static final int CODE_NEG_ERR_DEV_KEY = -2001;
@@ -25,30 +28,38 @@ public abstract class BlufiCallback {
     public static final int CODE_CONF_ERR_SET_OPMODE = -3001;
     public static final int CODE_CONF_ERR_POST_STA = -3002;
     public static final int CODE_CONF_ERR_POST_SOFTAP = -3003;
+    public static final int CODE_CONF_STA_CONNECT_TIMEOUT = -3004;
 
     public static final int CODE_GATT_WRITE_TIMEOUT = -4000;
     public static final int CODE_GATT_DISCOVER_SERVICE_FAILED = -4001;
     public static final int CODE_GATT_DISCOVER_WRITE_CHAR_FAILED = -4002;
     public static final int CODE_GATT_DISCOVER_NOTIFY_CHAR_FAILED = -4003;
     public static final int CODE_GATT_ERR_OPEN_NOTIFY = -4004;
+    public static final int CODE_GATT_CONNECT_TIMEOUT = -4005;
+    public static final int CODE_GATT_CONNECT_FAILED = -4006;
 
     public static final int CODE_WIFI_SCAN_FAIL = 11;
 
     /**
      * Callback invoked after BluetoothGattCallback receive onServicesDiscovered
      * User can post Blufi packet now.
+     * It is invoked once for every connection, with {@link #CODE_GATT_CONNECT_FAILED} if the connection fails
+     * or drops before the gatt is prepared.
      *
      * @param client BlufiClient
      * @param status one of {@link #STATUS_SUCCESS}, {@link #CODE_GATT_DISCOVER_SERVICE_FAILED},
      * {@link #CODE_GATT_DISCOVER_WRITE_CHAR_FAILED}, {@link #CODE_GATT_DISCOVER_NOTIFY_CHAR_FAILED},
-     * {@link #CODE_GATT_ERR_OPEN_NOTIFY}
+     * {@link #CODE_GATT_ERR_OPEN_NOTIFY}, {@link #CODE_GATT_CONNECT_TIMEOUT}, {@link #CODE_GATT_CONNECT_FAILED}
      * @param gatt BluetoothGatt
      */
     public void onGattPrepared(BlufiClient client, int status, BluetoothGatt gatt) {
     }
 
     /**
-     * Callback invoked when receive Gatt notification
+     * Callback invoked when receive Gatt notification.
+     * It is invoked on the thread of the {@link BlufiScheduler} which parses notifications, not by the callback
+     * executor, and must return quickly. Notifications arriving while it blocks fill the queue of the client
+     * and are then dropped, see {@link BlufiClient#getDroppedNotificationCount()}.
      *
      * @param client BlufiClient
      * @param pkgType Blufi package type
@@ -5,18 +5,48 @@ import android.bluetooth.BluetoothGattCallback;
 import android.content.Context;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import blufi.espressif.params.BlufiConfigureParams;
+import blufi.espressif.response.BlufiScanResult;
 import blufi.espressif.response.BlufiStatusResponse;
 import blufi.espressif.response.BlufiVersionResponse;
 
 public class BlufiClient {
     public static final String VERSION = BuildConfig.VERSION_NAME;
 
+    /**
+     * The connection states, a session moves forward from {@link #STATE_CONNECTING} to {@link #STATE_SECURED}
+     * and may end at {@link #STATE_DISCONNECTED} from any of them.
+     */
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCOVERED = 3;
+    public static final int STATE_NOTIFY_ENABLED = 4;
+    /**
+     * The version request after enabling notifications has completed and
+     * {@link BlufiCallback#onGattPrepared(BlufiClient, int, android.bluetooth.BluetoothGatt)} has been invoked.
+     */
+    public static final int STATE_VERSION_KNOWN = 5;
+    public static final int STATE_SECURED = 6;
+    public static final int STATE_DISCONNECTED = 7;
+    public static final int STATE_CLOSED = 8;
+
     private final BlufiClientImpl mImpl;
 
     public BlufiClient(Context context, BluetoothDevice device) {
-        mImpl = new BlufiClientImpl(this, context, device);
+        this(context, device, BlufiScheduler.getDefault());
+    }
+
+    /**
+     * Create a client whose work runs on the threads of the scheduler.
+     * Share a scheduler with few threads among many clients, the work of each client keeps its order.
+     *
+     * @param scheduler the scheduler, the default one if null
+     */
+    public BlufiClient(Context context, BluetoothDevice device, BlufiScheduler scheduler) {
+        mImpl = new BlufiClientImpl(this, context, device, scheduler == null ? BlufiScheduler.getDefault() : scheduler);
     }
 
     /**
@@ -29,7 +59,7 @@ public class BlufiClient {
     }
 
     /**
-     * Set BluetoothGattCallback
+     * Set BluetoothGattCallback, it is invoked on the Bluetooth thread which reports the event
      *
      * @param callback the BluetoothGattCallback
      */
@@ -38,14 +68,32 @@ public class BlufiClient {
     }
 
     /**
-     * Set the callback
+     * Set the callback, it is invoked by the callback executor
      *
      * @param callback the BlufiCallback
+     * @see #setCallbackExecutor(Executor)
      */
     public void setBlufiCallback(BlufiCallback callback) {
         mImpl.setBlufiCallback(callback);
     }
 
+    /**
+     * Set the executor which invokes the methods of {@link BlufiCallback}, set it before {@link #connect()}.
+     * The methods of a client are invoked one at a time and in the order of the events, whatever the executor,
+     * but not on the same thread if the executor has several threads.
+     * Use {@code Runnable::run} to invoke them directly on the threads which report the events, then they must
+     * return quickly and must not block: the gatt events on the Bluetooth thread, and the results parsed from
+     * notifications on a thread of the {@link BlufiScheduler} of the client.
+     * <p>
+     * The futures of the requests are not affected, their listeners run on the thread which completes them,
+     * a thread of the scheduler for the responses parsed from notifications.
+     *
+     * @param executor null means the main looper, it is the default
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mImpl.setCallbackExecutor(executor);
+    }
+
     /**
      * Set the maximum length of each Blufi packet, the excess part will be subcontracted.
      *
@@ -55,10 +103,102 @@ public class BlufiClient {
         mImpl.setPostPackageLengthLimit(lengthLimit);
     }
 
+    /**
+     * Set the maximum data length of a notification message received from device.
+     * A message declaring more data will be dropped and {@link BlufiCallback#onError(BlufiClient, int)}
+     * will be invoked, the errCode is {@link BlufiCallback#CODE_INVALID_NOTIFICATION}
+     *
+     * @param lengthLimit range is 0 ~ 65535. If -1, use the max value 65535
+     */
+    public void setReceiveDataLengthLimit(int lengthLimit) {
+        mImpl.setReceiveDataLengthLimit(lengthLimit);
+    }
+
+    /**
+     * Post frames with write without response, and keep up to windowSize writes in flight
+     * instead of waiting each write result. The writes of a message are all completed before the next message.
+     * If acks are required, the acks of a window of frames are waited together.
+     * If the write characteristic of the device does not have the write without response property,
+     * frames are written with response one by one.
+     *
+     * @param windowSize range is 1 ~ 32. If 0, use write with response, it is the default
+     */
+    public void setWriteNoResponseWindow(int windowSize) {
+        mImpl.setWriteNoResponseWindow(windowSize);
+    }
+
+    /**
+     * Set whether posted frames require the ack of the device.
+     * Then the next frame is posted after the device has acked the previous one, see {@link #setAckWindow(int)}.
+     *
+     * @param requireAck default is false
+     */
+    public void setRequireAck(boolean requireAck) {
+        mImpl.setRequireAck(requireAck);
+    }
+
+    /**
+     * Set how many posted frames may wait for the ack of the device at the same time, effective if acks are required.
+     * An ack acknowledges its frame and all frames posted before it, a stale ack is ignored.
+     * The post fails if a frame is not acked within the gatt write timeout, or 5 seconds if it is not set.
+     *
+     * @param windowSize range is 1 ~ 32. If 0, use the window of writes without response, or 1 without it
+     */
+    public void setAckWindow(int windowSize) {
+        mImpl.setAckWindow(windowSize);
+    }
+
+    /**
+     * Set the delay between two posted frames.
+     * By default a frame is written once the previous write has completed, and its ack has been received
+     * if acks are required. Set a delay such as 10 for legacy firmware which drops frames arriving too fast.
+     *
+     * @param interval in milliseconds, 0 means no delay
+     */
+    public void setPostInterval(long interval) {
+        mImpl.setPostInterval(interval);
+    }
+
+    /**
+     * Set how long a future of a request waits for the response of the device.
+     * If timeout, the future fails with {@link BlufiCallback#CODE_RESPONSE_TIMEOUT}, and a request whose frame the
+     * device has not acknowledged is aborted so the next operation starts.
+     *
+     * @param timeout in milliseconds, default is 10000. If 0, wait until disconnected
+     */
+    public void setResponseTimeout(long timeout) {
+        mImpl.setResponseTimeout(timeout);
+    }
+
+    /**
+     * Set how long an operation such as negotiating, configuring or posting custom data may run.
+     * The time is counted from the start of the operation, not while it waits in the queue.
+     * If timeout, the operation is aborted, its callback reports a failure and its future fails with
+     * {@link BlufiCallback#CODE_OPERATION_TIMEOUT}, then the next operation starts.
+     * Use {@link BlufiFuture#cancelAfter(long, BlufiScheduler)} for a deadline including the wait in the queue.
+     *
+     * @param timeout in milliseconds, 0 means no timeout, it is the default
+     */
+    public void setOperationTimeout(long timeout) {
+        mImpl.setOperationTimeout(timeout);
+    }
+
+    /**
+     * Set how long {@link #connect()} may take until the gatt is prepared. If timeout, the client disconnects and
+     * {@link BlufiCallback#onGattPrepared(BlufiClient, int, android.bluetooth.BluetoothGatt)} is invoked,
+     * the status is {@link BlufiCallback#CODE_GATT_CONNECT_TIMEOUT}
+     *
+     * @param timeout in milliseconds, 0 means no timeout, it is the default
+     */
+    public void setConnectTimeout(long timeout) {
+        mImpl.setConnectTimeout(timeout);
+    }
+
     /**
      * Set gatt write timeout.
      * If timeout, {@link BlufiCallback#onError(BlufiClient, int)} will be invoked,
-     * the errCode is {@link BlufiCallback#CODE_GATT_WRITE_TIMEOUT}
+     * the errCode is {@link BlufiCallback#CODE_GATT_WRITE_TIMEOUT}.
+     * If not set, a write which is never reported fails the post after 5 seconds without the error.
      *
      * @param timeout in milliseconds
      */
@@ -66,6 +206,69 @@ public class BlufiClient {
         mImpl.setGattWriteTimeout(timeout);
     }
 
+    /**
+     * Enable or disable ECDH negotiation on the P-256 curve. The public keys are 65 bytes instead of hundreds
+     * bytes of DH values. ECDH is only used with devices whose version response reports BluFi 1.5 or later,
+     * older devices are negotiated with DH directly. If the device rejects the ECDH key with an error,
+     * the client falls back to DH negotiation.
+     *
+     * @param enable true to use ECDH with the devices supporting it, default is false
+     */
+    public void setECDHNegotiation(boolean enable) {
+        mImpl.setECDHNegotiation(enable);
+    }
+
+    /**
+     * Set the bit length of the DH private value used with the 3072 bits group of devices supporting BluFi 1.4.
+     * A shorter private value makes negotiation faster. The 1024 bits group of older devices always uses
+     * a full length private value.
+     *
+     * @param length range is 256 ~ 3072. If -1, use the default 275 recommended by RFC 7919
+     */
+    public void setDHPrivateKeyLength(int length) {
+        mImpl.setDHPrivateKeyLength(length);
+    }
+
+    /**
+     * Enable or disable generating DH key pairs in background when {@link #connect()} is called.
+     * Key pairs of both security groups are generated while the connection is being set up,
+     * {@link #negotiateSecurity()} takes the one matching the device version. Disabled by default.
+     *
+     * @param enable true will generate key pairs on connect
+     */
+    public void setSpeculativeKeyGeneration(boolean enable) {
+        mImpl.setSpeculativeKeyGeneration(enable);
+    }
+
+    /**
+     * Get how much of the key generation time was hidden behind the connection setup
+     * in the last negotiation which used a speculative key pair.
+     *
+     * @return time in milliseconds, -1 if no speculative key pair has been used
+     */
+    public long getHiddenKeyGenerationTime() {
+        return mImpl.getHiddenKeyGenerationTime();
+    }
+
+    /**
+     * Set the cache of session tickets for devices of BluFi 1.5 or later, which resume sessions. A negotiation
+     * resumes the last session of the device if the cache has its ticket, and falls back to the key agreement
+     * if the device rejects the ticket. A device which does not answer fails the negotiation. Every successful
+     * negotiation stores a new ticket. The cache is not used with older devices.
+     *
+     * @param cache the cache, may be shared by many clients. If null, always run the key agreement, default is null
+     */
+    public void setSessionCache(BlufiSessionCache cache) {
+        mImpl.setSessionCache(cache);
+    }
+
+    /**
+     * @return true if the last successful negotiation resumed a cached session
+     */
+    public boolean isSessionResumed() {
+        return mImpl.isSessionResumed();
+    }
+
     /**
      * Establish a BLE connection with BluetoothDevice
      */
@@ -73,6 +276,80 @@ public class BlufiClient {
         mImpl.connect();
     }
 
+    /**
+     * Connect the device again after a disconnection. The gatt of the previous connection is closed and a
+     * new one connects directly, the services are discovered again. Enabling notifications is skipped if
+     * the device is bonded and a previous connection of this client enabled them, the device keeps it.
+     * Security has to be negotiated again.
+     * <p>
+     * It falls back to {@link #connect()} if the client has not connected before or is not disconnected.
+     */
+    public void reconnect() {
+        mImpl.reconnect();
+    }
+
+    /**
+     * Get how much time the last reconnection saved by skipping enabling notifications, compared with
+     * the discovery and enabling notifications of the last connection which enabled them.
+     *
+     * @return time in milliseconds, -1 if the last connection enabled notifications
+     */
+    public long getReconnectSavedTime() {
+        return mImpl.getReconnectSavedTime();
+    }
+
+    /**
+     * Get the connection state, it may be read from any thread.
+     *
+     * @return one of the STATE constants
+     */
+    public int getConnectionState() {
+        return mImpl.getConnectionState();
+    }
+
+    /**
+     * Get when the current session entered a state, the difference of two states is the latency of the phases
+     * between them.
+     *
+     * @param state one of the STATE constants
+     * @return the time in {@link android.os.SystemClock#elapsedRealtimeNanos()}, -1 if not entered in this session
+     */
+    public long getConnectionStateTime(int state) {
+        return mImpl.getConnectionStateTime(state);
+    }
+
+    /**
+     * Get how many notifications are waiting to be parsed. Notifications are copied into a queue
+     * on the Bluetooth thread and parsed on a worker thread of the client.
+     *
+     * @return the count of queued notifications
+     */
+    public int getNotificationQueueSize() {
+        return mImpl.getNotificationQueueSize();
+    }
+
+    /**
+     * @return the most notifications which have waited in the queue at the same time
+     */
+    public int getNotificationQueuePeakSize() {
+        return mImpl.getNotificationQueuePeakSize();
+    }
+
+    /**
+     * Get how many notifications have been dropped because the queue was full, such as when
+     * {@link BlufiCallback#onGattNotification(BlufiClient, int, int, byte[])} blocks. The Bluetooth thread never
+     * waits for the queue. A dropped notification breaks the message it belongs to:
+     * {@link BlufiCallback#onError(BlufiClient, int)} is invoked with {@link BlufiCallback#CODE_INVALID_NOTIFICATION},
+     * the running post and the requests waiting for responses fail, and parsing resumes at the next message.
+     * With security negotiated on a device of BluFi 1.4 or later, the decryption can not resume after a drop,
+     * negotiate security again.
+     *
+     * @return the count of dropped notifications
+     */
+    public long getDroppedNotificationCount() {
+        return mImpl.getDroppedNotificationCount();
+    }
+
     /**
      * Close the client
      */
@@ -88,6 +365,16 @@ public class BlufiClient {
         mImpl.negotiateSecurity();
     }
 
+    /**
+     * Negotiate security with device, {@link BlufiCallback#onNegotiateSecurityResult(BlufiClient, int)}
+     * is also invoked.
+     *
+     * @return the future which succeeds when the security is set, or fails with the same status as the callback
+     */
+    public BlufiFuture<Void> negotiateSecurityAsync() {
+        return mImpl.negotiateSecurityAsync();
+    }
+
     /**
      * Request device to disconnect the BLE connection
      */
@@ -103,6 +390,15 @@ public class BlufiClient {
         mImpl.requestDeviceVersion();
     }
 
+    /**
+     * Request to get device version, the response is also notified in the callback.
+     *
+     * @return the future of the response to this request
+     */
+    public BlufiFuture<BlufiVersionResponse> requestDeviceVersionAsync() {
+        return mImpl.requestDeviceVersionAsync();
+    }
+
     /**
      * Request to get device current status. The result will be notified in
      * {@link BlufiCallback#onDeviceStatusResponse(BlufiClient, int, BlufiStatusResponse)}
@@ -111,6 +407,17 @@ public class BlufiClient {
         mImpl.requestDeviceStatus();
     }
 
+    /**
+     * Request to get device current status, the response is also notified in the callback.
+     * A status the device reports on its own, such as after connecting to the station, is only notified
+     * in the callback.
+     *
+     * @return the future of the response to this request
+     */
+    public BlufiFuture<BlufiStatusResponse> requestDeviceStatusAsync() {
+        return mImpl.requestDeviceStatusAsync();
+    }
+
     /**
      * Request to get wifi list that the device scanned. The wifi list will be notified in
      * {@link BlufiCallback#onDeviceScanResult(BlufiClient, int, List)}
@@ -119,6 +426,15 @@ public class BlufiClient {
         mImpl.requestDeviceWifiScan();
     }
 
+    /**
+     * Request to get wifi list that the device scanned, the list is also notified in the callback.
+     *
+     * @return the future of the list, it fails with {@link BlufiCallback#CODE_WIFI_SCAN_FAIL} if the device failed
+     */
+    public BlufiFuture<List<BlufiScanResult>> requestDeviceWifiScanAsync() {
+        return mImpl.requestDeviceWifiScanAsync();
+    }
+
     /**
      * Configure the device to a station or soft AP. The posted result will be notified in
      * {@link BlufiCallback#onPostConfigureParams(BlufiClient, int)}
@@ -129,6 +445,29 @@ public class BlufiClient {
         mImpl.configure(params);
     }
 
+    /**
+     * Set whether {@link #configure(BlufiConfigureParams)} streams all the params as one transaction.
+     * Then the frames of the next param do not wait for the acks of the previous one, the acks are checked
+     * while streaming, and an error reported by the device stops the transaction at once.
+     * The failed status is the same as without it.
+     *
+     * @param enable default is false
+     */
+    public void setPipelinedConfigure(boolean enable) {
+        mImpl.setPipelinedConfigure(enable);
+    }
+
+    /**
+     * Configure the device to a station or soft AP, {@link BlufiCallback#onPostConfigureParams(BlufiClient, int)}
+     * is also invoked.
+     *
+     * @param params the config parameter
+     * @return the future which succeeds when the params are posted, or fails with the same status as the callback
+     */
+    public BlufiFuture<Void> configureAsync(final BlufiConfigureParams params) {
+        return mImpl.configureAsync(params);
+    }
+
     /**
      * Request to post custom data to device. The posted result will be notified in
      * {@link BlufiCallback#onPostCustomDataResult(BlufiClient, int, byte[])}
@@ -138,4 +477,15 @@ public class BlufiClient {
     public void postCustomData(byte[] data) {
         mImpl.postCustomData(data);
     }
+
+    /**
+     * Request to post custom data to device, {@link BlufiCallback#onPostCustomDataResult(BlufiClient, int, byte[])}
+     * is also invoked.
+     *
+     * @param data the custom data
+     * @return the future which succeeds when the data is posted
+     */
+    public BlufiFuture<Void> postCustomDataAsync(byte[] data) {
+        return mImpl.postCustomDataAsync(data);
+    }
 }
@@ -13,6 +13,7 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -20,27 +21,33 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.crypto.interfaces.DHPublicKey;
-
 import blufi.espressif.params.BlufiConfigureParams;
 import blufi.espressif.params.BlufiParameter;
 import blufi.espressif.response.BlufiScanResult;
 import blufi.espressif.response.BlufiStatusResponse;
 import blufi.espressif.response.BlufiVersionResponse;
 import blufi.espressif.security.BlufiAES;
+import blufi.espressif.security.BlufiAESCFB;
 import blufi.espressif.security.BlufiCRC;
 import blufi.espressif.security.BlufiDH;
+import blufi.espressif.security.BlufiECDH;
 import blufi.espressif.security.BlufiHash;
+import blufi.espressif.security.BlufiSessionTicket;
 
 @SuppressLint("MissingPermission")
 class BlufiClientImpl implements BlufiParameter {
@@ -50,9 +57,27 @@ class BlufiClientImpl implements BlufiParameter {
     private static final int PACKAGE_LENGTH_MIN = 20;
     private static final int PACKAGE_LENGTH_MAX = 255;
     private static final int PACKAGE_HEADER_LENGTH = 4;
+    private static final int RECEIVE_DATA_LENGTH_LIMIT_MAX = 0xffff; // Two bytes total length in first frag
 
     private static final byte NEG_SECURITY_SET_TOTAL_LENGTH = 0x00;
     private static final byte NEG_SECURITY_SET_ALL_DATA = 0x01;
+    // 0x02 ~ 0x04 set the DH p, g and public value separately in ESP-IDF
+    private static final byte NEG_SECURITY_RESUME = 0x05;
+    private static final byte NEG_SECURITY_SET_ECDH_KEY = 0x06;
+    private static final int ECDH_DEVICE_VERSION_MIN = 0x0105; // Reported by firmware which handles the ECDH key
+    private static final int RESUME_DEVICE_VERSION_MIN = 0x0105; // Reported by firmware which resumes sessions
+    private static final long DH_DEVICE_KEY_TIMEOUT = 20000L;
+
+    private static final int WRITE_WINDOW_SIZE_MAX = 32;
+    private static final long WRITE_BUSY_RETRY_INTERVAL = 2L;
+    private static final long WRITE_BUSY_TIMEOUT_DEFAULT = 5000L;
+    private static final long WRITE_TIMEOUT_DEFAULT = 5000L;
+    private static final int ACK_WINDOW_SIZE_MAX = 32;
+    private static final long ACK_TIMEOUT_DEFAULT = 5000L;
+    private static final long RESPONSE_TIMEOUT_DEFAULT = 10000L;
+    // The Bluetooth thread never waits for the consumer, so the queue takes a burst of notifications
+    // while the consumer is held up by a pause. A slot is allocated at its first use.
+    private static final int NOTIFICATION_QUEUE_CAPACITY = 256;
 
     private static final String DH_P = "cf5cf5c38419a724957ff5dd323b9c45c3cdd261eb740f69aa94b8bb1a5c9640" +
             "9153bd76b24222d03274e4725a5406092e9e82e9135c643cae98132b0d95f7d6" +
@@ -75,7 +100,10 @@ class BlufiClientImpl implements BlufiParameter {
             "ABC521979B0DEADA1DBF9A42D5C4484E0ABCD06BFA53DDEF" +
             "3C1B20EE3FD59D7C25E41D2B66C62E37FFFFFFFFFFFFFFFF";
     private static final String DH_G = "2";
-    private static final String AES_TRANSFORMATION = "AES/CFB/NoPadding";
+    private static final DHGroup DH_GROUP_1024 = new DHGroup(DH_P, DH_G, 1024);
+    private static final DHGroup DH_GROUP_3072 = new DHGroup(DH_P_3072, DH_G, 3072);
+    private static final int DH_PRIVATE_KEY_LENGTH_DEFAULT = 275; // RFC 7919 exponent size for ffdhe3072
+    private static final int DH_PRIVATE_KEY_LENGTH_MIN = 256; // Twice the 128 bits security strength
     private static final String AES_TRANSFORMATION_V2 = "AES/CTR/NoPadding";
     private static final String ENC_DOMAIN = "blufi_enc";
     private static final String DEC_DOMAIN = "blufi_dec";
@@ -92,42 +120,104 @@ class BlufiClientImpl implements BlufiParameter {
     private volatile BluetoothGattCallback mUserGattCallback;
     private volatile BlufiCallback mUserBlufiCallback;
 
-    private BluetoothGatt mGatt;
+    private volatile BluetoothGatt mGatt;
     private BluetoothGattCharacteristic mWriteChar;
-    private final LinkedBlockingQueue<Boolean> mWriteResultQueue;
+    private int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    private volatile boolean mWriteNoResponseSupported = false;
     private BluetoothGattCharacteristic mNotifyChar;
     private long mWriteTimeout = -1;
+    private volatile long mPostInterval = 0;
+    private volatile int mWriteWindowSize = 0;
 
     private int mPackageLengthLimit = -1;
     private int mBlufiMTU = -1;
 
     private final AtomicInteger mSendSequence;
     private final AtomicInteger mReadSequence;
-    private LinkedBlockingQueue<Integer> mAck;
-
-    private volatile BlufiNotifyData mNotifyData;
 
-    private byte[] mAESKey;
-    private BlufiAES mEncryptorV2;
-    private BlufiAES mDecryptorV2;
+    private final FrameEncoder mFrameEncoder;
+    private final FrameView mReceiveFrame;
+    private final byte[] mReceiveDataBuffer;
+    private final BlufiNotifyData mNotifyData;
+    private boolean mDiscardingFragments = false;
+    // The drops of the queue which the consumer has handled, and whether the next frame resyncs the sequence
+    private long mParsedDropCount = 0;
+    private boolean mResyncReadSequence = false;
+
+    // Notifications are parsed by one consumer at a time on the scheduler, off the Bluetooth thread
+    private final NotificationRing mNotifications;
+    private final AtomicBoolean mNotificationsDraining;
+    private final Runnable mDrainNotificationsRunnable = this::drainNotifications;
+    // The write results hop to the lane once per frame, without a capturing lambda each
+    private final Runnable mWriteSucceededRunnable = () -> onWriteComplete(true);
+    private final Runnable mWriteFailedRunnable = () -> onWriteComplete(false);
+
+    // Set on the lane by the negotiation and read by the notification consumer on another thread
+    private volatile byte[] mAESKey;
+    private volatile BlufiAESCFB mEncryptorV1;
+    private volatile BlufiAESCFB mDecryptorV1;
+    private volatile BlufiAES mEncryptorV2;
+    private volatile BlufiAES mDecryptorV2;
 
     private boolean mEncrypted = false;
     private boolean mChecksum = false;
 
-    private boolean mRequireAck = false;
+    private volatile boolean mRequireAck = false;
+    private volatile int mAckWindowSize = -1;
+    private volatile boolean mPipelinedConfigure = false;
+    private volatile long mResponseTimeout = RESPONSE_TIMEOUT_DEFAULT;
+    private volatile long mOperationTimeout = 0;
+    private volatile long mConnectTimeout = 0;
 
     private final SecurityCallback mSecurityCallback;
-    private final LinkedBlockingQueue<BigInteger> mDevicePublicKeyQueue;
 
-    private ExecutorService mThreadPool;
+    private final BlufiScheduler mScheduler;
+
+    // The fields below are only accessed by the tasks of mLane
+    private final SerialLane mLane;
+    private final ArrayDeque<QueuedOperation> mOperations;
+    private QueuedOperation mRunningOperation;
+    private PostTask mPostTask;
+    private final AckTracker mAckTracker;
+    private long mNextWriteTime = 0;
+    private BlufiFuture<byte[]> mDevicePublicKeyFuture;
+    private boolean mWaitingOptionalKey = false;
+    private final ResponseQueue<BlufiVersionResponse> mVersionResponses;
+    private final ResponseQueue<BlufiStatusResponse> mStatusResponses;
+    private final ResponseQueue<List<BlufiScanResult>> mScanResponses;
+    private ScheduledFuture<?> mConnectTimer;
+    // Whether onGattPrepared has been reported for the session, every session reports it once
+    private boolean mPrepareReported = true;
+
+    private final ConnectionState mConnection;
     private final Handler mUIHandler;
-
-    private int mConnectState = BluetoothGatt.STATE_DISCONNECTED;
-
-    private Runnable mPreparedRunnable = null;
-    private int mDeviceVersion = -1;
-
-    BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device) {
+    private volatile SerialLane mCallbackLane;
+
+    private volatile int mDeviceVersion = -1;
+
+    private volatile boolean mECDHNegotiation = false;
+    private volatile BlufiSessionCache mSessionCache;
+    private volatile boolean mSessionResumed = false;
+    private volatile int mDHPrivateKeyLength = DH_PRIVATE_KEY_LENGTH_DEFAULT;
+    private volatile boolean mSpeculativeKeyGeneration = false;
+    private volatile SpeculativeDH mSpeculativeDH1024;
+    private volatile SpeculativeDH mSpeculativeDH3072;
+    private volatile long mHiddenKeyGenerationNanos = -1;
+
+    // Increased by every connection, the notification consumer starts parsing a new session when it changes
+    private final AtomicInteger mSessionId = new AtomicInteger(0);
+    private int mParsedSessionId = 0;
+    // Whether the session follows a disconnection of this client, and whether a session of this client
+    // has enabled the notifications of the device, which a bonded device keeps
+    private volatile boolean mReconnecting = false;
+    private volatile boolean mNotificationsEnabled = false;
+    // Whether the session skipped enabling notifications
+    private volatile boolean mNotificationsKept = false;
+    // The discovery and enabling notifications time of the last session which enabled the notifications
+    private volatile long mPrepareNanos = -1;
+    private volatile long mReconnectSavedNanos = -1;
+
+    BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device, BlufiScheduler scheduler) {
         mClient = client;
         mContext = context;
         mDevice = device;
@@ -135,21 +225,42 @@ class BlufiClientImpl implements BlufiParameter {
 
         mSendSequence = new AtomicInteger(-1);
         mReadSequence = new AtomicInteger(-1);
-        mAck = new LinkedBlockingQueue<>();
+        mFrameEncoder = new FrameEncoder();
+        mReceiveFrame = new FrameView();
+        mReceiveDataBuffer = new byte[FrameEncoder.DATA_LENGTH_MAX];
+        mNotifyData = new BlufiNotifyData(RECEIVE_DATA_LENGTH_LIMIT_MAX);
+        mNotifications = new NotificationRing(NOTIFICATION_QUEUE_CAPACITY);
+        mNotificationsDraining = new AtomicBoolean(false);
 
         mSecurityCallback = new SecurityCallback();
-        mDevicePublicKeyQueue = new LinkedBlockingQueue<>();
-
-        mThreadPool = Executors.newSingleThreadExecutor();
+        mConnection = new ConnectionState();
+
+        mScheduler = scheduler;
+        mLane = scheduler.newLane();
+        mOperations = new ArrayDeque<>();
+        mAckTracker = new AckTracker();
+        mVersionResponses = new ResponseQueue<>();
+        mStatusResponses = new ResponseQueue<>();
+        mScanResponses = new ResponseQueue<>();
         mUIHandler = new Handler(Looper.getMainLooper());
-
-        mWriteResultQueue = new LinkedBlockingQueue<>();
+        mCallbackLane = new SerialLane(mUIHandler::post, scheduler.getTimer());
     }
 
     void printDebugLog(boolean enable) {
         mPrintDebug = enable;
     }
 
+    void setCallbackExecutor(Executor executor) {
+        mCallbackLane = new SerialLane(executor == null ? mUIHandler::post : executor, mScheduler.getTimer());
+    }
+
+    /**
+     * Invoke a user callback on the callback executor, one at a time and in order.
+     */
+    private void deliverCallback(Runnable callback) {
+        mCallbackLane.execute(callback);
+    }
+
     void setGattCallback(BluetoothGattCallback callback) {
         mUserGattCallback = callback;
     }
@@ -158,36 +269,110 @@ class BlufiClientImpl implements BlufiParameter {
         mUserBlufiCallback = callback;
     }
 
-    synchronized void connect() {
-        if (mThreadPool == null) {
+    void connect() {
+        if (!mConnection.startConnecting()) {
             throw new IllegalStateException("The BlufiClient has closed");
         }
+        connectGatt(false);
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            mGatt = mDevice.connectGatt(mContext, false, mInnerGattCallback, BluetoothDevice.TRANSPORT_LE);
-        } else {
-            mGatt = mDevice.connectGatt(mContext, false, mInnerGattCallback);
+    void reconnect() {
+        if (mGatt == null || !mConnection.startReconnecting()) {
+            connect();
+            return;
         }
+        connectGatt(true);
     }
 
-    synchronized void close() {
-        mConnectState = BluetoothGatt.STATE_DISCONNECTED;
+    /**
+     * Close the gatt of the previous session and connect a new one directly. A gatt reconnected by
+     * {@link BluetoothGatt#connect()} waits for the device with auto connect, and may never connect again
+     * after a failure such as status 133.
+     */
+    private void connectGatt(boolean reconnecting) {
+        mReconnecting = reconnecting;
+        startSession();
 
-        mWriteResultQueue.clear();
-        if (mThreadPool != null) {
-            mThreadPool.shutdownNow();
-            mThreadPool = null;
+        BluetoothGatt previous = mGatt;
+        if (previous != null) {
+            mGatt = null;
+            previous.close();
+        }
+        BluetoothDevice device = mDevice;
+        BluetoothGatt gatt;
+        if (device == null) {
+            gatt = null;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            gatt = device.connectGatt(mContext, false, mInnerGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            gatt = device.connectGatt(mContext, false, mInnerGattCallback);
         }
-        if (mGatt != null) {
-            mGatt.close();
+        mGatt = gatt;
+        if (mConnection.isClosed()) {
+            // Closed while connecting, close may have missed the gatt and the key generation
             mGatt = null;
+            if (gatt != null) {
+                gatt.close();
+            }
+            cancelSpeculativeDH();
+        }
+    }
+
+    /**
+     * Reset the state of the previous session, the device starts a new one on every connection.
+     */
+    private void startSession() {
+        mSessionId.incrementAndGet();
+        mNotificationsKept = false;
+        mReconnectSavedNanos = -1;
+
+        if (mSpeculativeKeyGeneration) {
+            // The device version is unknown yet, prepare key pairs of both groups
+            cancelSpeculativeDH();
+            mSpeculativeDH1024 = new SpeculativeDH(mScheduler.getKeyExecutor(), DH_GROUP_1024.p, DH_GROUP_1024.g, DH_GROUP_1024.length,
+                    getDHPrivateKeyLength(DH_GROUP_1024));
+            mSpeculativeDH3072 = new SpeculativeDH(mScheduler.getKeyExecutor(), DH_GROUP_3072.p, DH_GROUP_3072.g, DH_GROUP_3072.length,
+                    getDHPrivateKeyLength(DH_GROUP_3072));
+        }
+
+        long connectTimeout = mConnectTimeout;
+        mLane.execute(() -> {
+            mSendSequence.set(-1);
+            mEncrypted = false;
+            mChecksum = false;
+            mNextWriteTime = 0;
+            mPrepareReported = false;
+            armConnectTimer(connectTimeout);
+        });
+    }
+
+    long getReconnectSavedTime() {
+        long nanos = mReconnectSavedNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    int getConnectionState() {
+        return mConnection.get();
+    }
+
+    long getConnectionStateTime(int state) {
+        return mConnection.getTime(state);
+    }
+
+    void close() {
+        if (!mConnection.close()) {
+            return;
+        }
+
+        cancelSpeculativeDH();
+        mLane.execute(this::abortOperations);
+        BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        if (gatt != null) {
+            gatt.close();
         }
         mNotifyChar = null;
         mWriteChar = null;
-        if (mAck != null) {
-            mAck.clear();
-            mAck = null;
-        }
         mClient = null;
         mUserBlufiCallback = null;
         mInnerGattCallback = null;
@@ -195,6 +380,8 @@ class BlufiClientImpl implements BlufiParameter {
         mContext = null;
         mDevice = null;
         mAESKey = null;
+        mDecryptorV1 = null;
+        mEncryptorV1 = null;
         mDecryptorV2 = null;
         mEncryptorV2 = null;
     }
@@ -203,6 +390,38 @@ class BlufiClientImpl implements BlufiParameter {
         mWriteTimeout = timeout;
     }
 
+    void setRequireAck(boolean requireAck) {
+        mRequireAck = requireAck;
+    }
+
+    void setAckWindow(int windowSize) {
+        mAckWindowSize = windowSize <= 0 ? -1 : Math.min(windowSize, ACK_WINDOW_SIZE_MAX);
+    }
+
+    void setPipelinedConfigure(boolean enable) {
+        mPipelinedConfigure = enable;
+    }
+
+    void setResponseTimeout(long timeout) {
+        mResponseTimeout = timeout;
+    }
+
+    void setOperationTimeout(long timeout) {
+        mOperationTimeout = Math.max(timeout, 0);
+    }
+
+    void setConnectTimeout(long timeout) {
+        mConnectTimeout = Math.max(timeout, 0);
+    }
+
+    void setWriteNoResponseWindow(int windowSize) {
+        mWriteWindowSize = Math.min(Math.max(windowSize, 0), WRITE_WINDOW_SIZE_MAX);
+    }
+
+    void setPostInterval(long interval) {
+        mPostInterval = Math.max(interval, 0);
+    }
+
     void setPostPackageLengthLimit(int lengthLimit) {
         if (lengthLimit < 0) {
             mPackageLengthLimit = -1;
@@ -215,69 +434,458 @@ class BlufiClientImpl implements BlufiParameter {
         );
     }
 
-    void requestDeviceVersion() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceVersion();
+    void setReceiveDataLengthLimit(int lengthLimit) {
+        if (lengthLimit < 0) {
+            mNotifyData.setDataLengthLimit(RECEIVE_DATA_LENGTH_LIMIT_MAX);
+            return;
+        }
+
+        mNotifyData.setDataLengthLimit(Math.min(lengthLimit, RECEIVE_DATA_LENGTH_LIMIT_MAX));
+    }
+
+    void setECDHNegotiation(boolean enable) {
+        mECDHNegotiation = enable;
+    }
+
+    void setSessionCache(BlufiSessionCache cache) {
+        mSessionCache = cache;
+    }
+
+    boolean isSessionResumed() {
+        return mSessionResumed;
+    }
+
+    void setDHPrivateKeyLength(int length) {
+        if (length < 0) {
+            mDHPrivateKeyLength = DH_PRIVATE_KEY_LENGTH_DEFAULT;
+            return;
+        }
+
+        mDHPrivateKeyLength = Math.min(
+                Math.max(length, DH_PRIVATE_KEY_LENGTH_MIN),
+                DH_GROUP_3072.length
+        );
+    }
+
+    private int getDHPrivateKeyLength(DHGroup group) {
+        // The 1024 bits group is not a well-known safe prime group, keep full length private value for it
+        return group == DH_GROUP_3072 ? mDHPrivateKeyLength : group.length;
+    }
+
+    void setSpeculativeKeyGeneration(boolean enable) {
+        mSpeculativeKeyGeneration = enable;
+    }
+
+    long getHiddenKeyGenerationTime() {
+        long nanos = mHiddenKeyGenerationNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private void cancelSpeculativeDH() {
+        SpeculativeDH dh1024 = mSpeculativeDH1024;
+        if (dh1024 != null) {
+            dh1024.cancel();
+            mSpeculativeDH1024 = null;
+        }
+        SpeculativeDH dh3072 = mSpeculativeDH3072;
+        if (dh3072 != null) {
+            dh3072.cancel();
+            mSpeculativeDH3072 = null;
+        }
+    }
+
+    /**
+     * Take the key pair generated since connect, each pair is used for only one negotiation.
+     *
+     * @return null if there is no speculative key pair of the group, the future completes on the lane
+     */
+    private BlufiFuture<BlufiDH> takeSpeculativeDH(DHGroup group) {
+        SpeculativeDH speculativeDH;
+        SpeculativeDH unused;
+        if (group == DH_GROUP_3072) {
+            speculativeDH = mSpeculativeDH3072;
+            unused = mSpeculativeDH1024;
+        } else {
+            speculativeDH = mSpeculativeDH1024;
+            unused = mSpeculativeDH3072;
+        }
+        mSpeculativeDH1024 = null;
+        mSpeculativeDH3072 = null;
+        if (unused != null) {
+            unused.cancel();
+        }
+        if (speculativeDH == null) {
+            return null;
+        }
+
+        long requestNanos = SystemClock.elapsedRealtimeNanos();
+        BlufiFuture<BlufiDH> result = new BlufiFuture<>();
+        speculativeDH.getFuture().addListener(future -> mLane.execute(() -> {
+            BlufiDH blufiDH = future.getResult();
+            if (blufiDH != null) {
+                mHiddenKeyGenerationNanos = speculativeDH.getHiddenNanos(requestNanos);
+                if (mPrintDebug) {
+                    Log.d(TAG, "Speculative key generation hidden " + getHiddenKeyGenerationTime() + "ms");
+                }
             }
-        });
+            result.complete(blufiDH);
+        }));
+        return result;
+    }
+
+    void requestDeviceVersion() {
+        requestDeviceVersionAsync();
+    }
+
+    BlufiFuture<BlufiVersionResponse> requestDeviceVersionAsync() {
+        BlufiFuture<BlufiVersionResponse> response = new BlufiFuture<>();
+        enqueueRequest(response, () -> __requestDeviceVersion(response));
+        return response;
     }
 
     void requestDeviceStatus() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceStatus();
-            }
-        });
+        requestDeviceStatusAsync();
+    }
+
+    BlufiFuture<BlufiStatusResponse> requestDeviceStatusAsync() {
+        BlufiFuture<BlufiStatusResponse> response = new BlufiFuture<>();
+        enqueueRequest(response, () -> __requestDeviceStatus(response));
+        return response;
     }
 
     void negotiateSecurity() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __negotiateSecurity();
-            }
-        });
+        enqueueOperation(this::__negotiateSecurity);
+    }
+
+    BlufiFuture<Void> negotiateSecurityAsync() {
+        BlufiFuture<Void> result = new BlufiFuture<>();
+        enqueueRequest(result, () -> completeWith(__negotiateSecurity(), result));
+        return result;
     }
 
     void configure(final BlufiConfigureParams params) {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __configure(params);
-            }
-        });
+        enqueueOperation(() -> __configure(params));
+    }
+
+    BlufiFuture<Void> configureAsync(final BlufiConfigureParams params) {
+        BlufiFuture<Void> result = new BlufiFuture<>();
+        enqueueRequest(result, () -> completeWith(__configure(params), result));
+        return result;
     }
 
     void requestDeviceWifiScan() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceWifiScan();
+        requestDeviceWifiScanAsync();
+    }
+
+    BlufiFuture<List<BlufiScanResult>> requestDeviceWifiScanAsync() {
+        BlufiFuture<List<BlufiScanResult>> response = new BlufiFuture<>();
+        enqueueRequest(response, () -> __requestDeviceWifiScan(response));
+        return response;
+    }
+
+    void postCustomData(final byte[] data) {
+        enqueueOperation(() -> __postCustomData(data));
+    }
+
+    BlufiFuture<Void> postCustomDataAsync(final byte[] data) {
+        BlufiFuture<Void> result = new BlufiFuture<>();
+        enqueueRequest(result, () -> completeWith(__postCustomData(data), result));
+        return result;
+    }
+
+    void requestCloseConnection() {
+        enqueueOperation(this::__requestCloseConnection);
+    }
+
+    /**
+     * A request of the user, the next operation starts when the future of this one completes.
+     */
+    private interface Operation {
+        BlufiFuture<?> start();
+    }
+
+    /**
+     * An operation in the queue, it is aborted if cancelled or timeout while running.
+     * Only accessed by the tasks of mLane.
+     */
+    private static class QueuedOperation {
+        final Operation operation;
+        final BlufiFuture<?> result;
+        boolean aborted = false;
+        ScheduledFuture<?> timer;
+
+        QueuedOperation(Operation operation, BlufiFuture<?> result) {
+            this.operation = operation;
+            this.result = result;
+        }
+    }
+
+    private void enqueueOperation(Operation operation) {
+        QueuedOperation queued = new QueuedOperation(operation, null);
+        mLane.execute(() -> {
+            mOperations.add(queued);
+            startNextOperation();
+        });
+    }
+
+    /**
+     * Enqueue an operation whose result is returned to the user, the future fails if the client closes first.
+     * Cancelling the future removes the operation from the queue, or aborts it if it is running.
+     */
+    private void enqueueRequest(BlufiFuture<?> result, Operation operation) {
+        QueuedOperation queued = new QueuedOperation(operation, result);
+        result.setCanceller(() -> mLane.execute(() -> cancelOperation(queued, result.getStatus())));
+        mLane.execute(() -> {
+            if (result.isDone()) {
+                return;
             }
+            if (mConnection.isClosed()) {
+                result.fail(BlufiCallback.CODE_WRITE_DATA_FAILED);
+                return;
+            }
+            mOperations.add(queued);
+            startNextOperation();
         });
     }
 
-    void postCustomData(final byte[] data) {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __postCustomData(data);
+    private static <T> BlufiFuture<T> completeWith(BlufiFuture<T> source, BlufiFuture<T> target) {
+        source.addListener(future -> {
+            if (future.isSuccess()) {
+                target.complete(future.getResult());
+            } else {
+                target.fail(future.getStatus());
             }
         });
+        return source;
     }
 
-    void requestCloseConnection() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestCloseConnection();
+    private void startNextOperation() {
+        if (mRunningOperation != null || mConnection.isClosed()) {
+            return;
+        }
+        QueuedOperation queued = mOperations.poll();
+        if (queued == null) {
+            return;
+        }
+        if (queued.result != null && queued.result.isDone()) {
+            // Cancelled while queued
+            startNextOperation();
+            return;
+        }
+
+        mRunningOperation = queued;
+        long timeout = mOperationTimeout;
+        if (timeout > 0) {
+            queued.timer = mLane.schedule(() -> {
+                if (mRunningOperation == queued && !queued.aborted) {
+                    Log.w(TAG, "startNextOperation: operation timeout");
+                    abortOperation(queued, BlufiCallback.CODE_OPERATION_TIMEOUT);
+                }
+            }, timeout);
+        }
+        BlufiFuture<?> future;
+        try {
+            future = queued.operation.start();
+        } catch (Exception e) {
+            Log.w(TAG, "startNextOperation: ", e);
+            future = BlufiFuture.failed(BlufiCallback.CODE_CATCH_EXCEPTION);
+        }
+        future.addListener(done -> mLane.execute(() -> {
+            if (queued.timer != null) {
+                queued.timer.cancel(false);
+            }
+            if (mRunningOperation == queued) {
+                mRunningOperation = null;
+            }
+            startNextOperation();
+        }));
+    }
+
+    private void cancelOperation(QueuedOperation queued, int status) {
+        if (mOperations.remove(queued)) {
+            return;
+        }
+        if (mRunningOperation == queued && !queued.aborted) {
+            abortOperation(queued, status);
+        }
+    }
+
+    /**
+     * Stop the waits of the running operation, the operation then completes with a failure and frees the queue.
+     * A key generation in progress can not be stopped, but nothing is posted after it.
+     */
+    private void abortOperation(QueuedOperation queued, int status) {
+        queued.aborted = true;
+        if (queued.result != null) {
+            queued.result.fail(status);
+        }
+        if (mPostTask != null) {
+            mPostTask.fail();
+        }
+        if (mDevicePublicKeyFuture != null) {
+            mDevicePublicKeyFuture.fail(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+            mDevicePublicKeyFuture = null;
+        }
+    }
+
+    private void abortOperations() {
+        cancelConnectTimer();
+        QueuedOperation queued;
+        while ((queued = mOperations.poll()) != null) {
+            if (queued.result != null) {
+                queued.result.fail(BlufiCallback.CODE_WRITE_DATA_FAILED);
+            }
+        }
+        if (mRunningOperation != null && !mRunningOperation.aborted) {
+            abortOperation(mRunningOperation, BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+        failResponses(BlufiCallback.CODE_WRITE_DATA_FAILED);
+    }
+
+    /**
+     * Fail the connection with {@link BlufiCallback#CODE_GATT_CONNECT_TIMEOUT} if it is not prepared in time.
+     */
+    private void armConnectTimer(long timeout) {
+        cancelConnectTimer();
+        if (timeout <= 0) {
+            return;
+        }
+        final ScheduledFuture<?>[] timer = new ScheduledFuture<?>[1];
+        timer[0] = mLane.schedule(() -> {
+            if (mConnectTimer != timer[0]) {
+                return;
+            }
+            mConnectTimer = null;
+            int state = mConnection.get();
+            if (state >= BlufiClient.STATE_VERSION_KNOWN || !mConnection.transition(state, BlufiClient.STATE_DISCONNECTED)) {
+                // Prepared, disconnected or closed meanwhile
+                return;
+            }
+            Log.w(TAG, "onConnectTimeout: gatt is not prepared in " + timeout + "ms");
+            BluetoothGatt gatt = mGatt;
+            if (gatt != null) {
+                gatt.disconnect();
+            }
+            reportGattPrepared(BlufiCallback.CODE_GATT_CONNECT_TIMEOUT, gatt);
+        }, timeout);
+        mConnectTimer = timer[0];
+    }
+
+    private void cancelConnectTimer() {
+        if (mConnectTimer != null) {
+            mConnectTimer.cancel(false);
+            mConnectTimer = null;
+        }
+    }
+
+    private void onGattPrepareFailed(int status, BluetoothGatt gatt) {
+        mLane.executeInline(() -> reportGattPrepared(status, gatt));
+    }
+
+    /**
+     * Report the result of preparing the gatt once for the session, a later result of the session is dropped.
+     * Run on the lane.
+     */
+    private void reportGattPrepared(int status, BluetoothGatt gatt) {
+        if (mPrepareReported) {
+            return;
+        }
+        mPrepareReported = true;
+        cancelConnectTimer();
+        deliverCallback(() -> {
+            if (mUserBlufiCallback != null) {
+                mUserBlufiCallback.onGattPrepared(mClient, status, gatt);
             }
         });
     }
 
+    private void failResponses(int status) {
+        mVersionResponses.failAll(status);
+        mStatusResponses.failAll(status);
+        mScanResponses.failAll(status);
+    }
+
+    /**
+     * The requests waiting for the responses of one type. The device answers requests in order, so a response
+     * belongs to the oldest request the device has acknowledged. A report which arrives while no waiting request
+     * has been acknowledged, such as the status the device reports after connecting to the station, was sent
+     * before the device received a request and is not a response. A request which timed out or was cancelled
+     * after it reached the device keeps its place, so its late response is discarded instead of answering
+     * the next request. Only accessed by the tasks of mLane.
+     */
+    private class ResponseQueue<T> {
+        private final ArrayDeque<Waiter<T>> mWaiters = new ArrayDeque<>();
+
+        void expect(BlufiFuture<T> future) {
+            mWaiters.add(new Waiter<>(future));
+            long timeout = mResponseTimeout;
+            if (timeout > 0) {
+                // Cancel rather than fail, so a request whose frame the device never acks also frees the queue
+                ScheduledFuture<?> timer = mLane.schedule(() -> future.cancel(BlufiCallback.CODE_RESPONSE_TIMEOUT),
+                        timeout);
+                future.addListener(done -> timer.cancel(false));
+            }
+        }
+
+        /**
+         * The device has acknowledged the request of the future, the next response may answer it.
+         */
+        void onRequested(BlufiFuture<T> future) {
+            for (Waiter<T> waiter : mWaiters) {
+                if (waiter.future == future) {
+                    waiter.requested = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The request of the future has not reached the device, no response will answer it.
+         */
+        void cancel(BlufiFuture<T> future, int status) {
+            Iterator<Waiter<T>> iterator = mWaiters.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().future == future) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            future.fail(status);
+        }
+
+        void onResponse(int status, T response) {
+            Waiter<T> waiter = mWaiters.peek();
+            if (waiter == null || !waiter.requested) {
+                // A report nobody asked for
+                return;
+            }
+            mWaiters.poll();
+            if (waiter.future.isDone()) {
+                Log.w(TAG, "onResponse: discard the late response of a request which has timed out or been cancelled");
+            } else if (status == BlufiCallback.STATUS_SUCCESS) {
+                waiter.future.complete(response);
+            } else {
+                waiter.future.fail(status);
+            }
+        }
+
+        void failAll(int status) {
+            Waiter<T> waiter;
+            while ((waiter = mWaiters.poll()) != null) {
+                waiter.future.fail(status);
+            }
+        }
+    }
+
+    private static class Waiter<T> {
+        final BlufiFuture<T> future;
+        boolean requested = false;
+
+        Waiter(BlufiFuture<T> future) {
+            this.future = future;
+        }
+    }
+
     private int toInt(byte b) {
         return b & 0xff;
     }
@@ -295,40 +903,14 @@ class BlufiClientImpl implements BlufiParameter {
         return sb.toString();
     }
 
-    private byte[] toBytes(String hex) {
-        if (hex.length() % 2 != 0) {
-            hex = "0" + hex;
-        }
-        byte[] result = new byte[hex.length() / 2];
-        for (int i = 0; i < hex.length(); i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
-        }
-        return result;
-    }
-
     private int getTypeValue(int type, int subtype) {
         return (subtype << 2) | type;
     }
 
-    private int getPackageType(int typeValue) {
-        return typeValue & 0b11;
-    }
-
-    private int getSubType(int typeValue) {
-        return ((typeValue & 0b11111100) >> 2);
-    }
-
     private int generateSendSequence() {
         return mSendSequence.incrementAndGet() & 0xff;
     }
 
-    private byte[] generateAESIV(int sequence) {
-        byte[] result = new byte[16];
-        result[0] = (byte) sequence;
-
-        return result;
-    }
-
     private byte[] generateAESIV2(String domain, byte[] key) {
         ByteArrayOutputStream bytesOS = new ByteArrayOutputStream();
         byte[] domainBytes = domain.getBytes();
@@ -339,239 +921,662 @@ class BlufiClientImpl implements BlufiParameter {
     }
 
     private boolean isConnected() {
-        return mConnectState == BluetoothGatt.STATE_CONNECTED;
-    }
-
-    private boolean gattWrite(byte[] data) throws InterruptedException {
+        return mConnection.isConnected();
+    }
+
+    /**
+     * Post a message, the frames are written by a {@link PostTask} on the lane.
+     *
+     * @return the future which succeeds when all frames have been written and acked if required
+     */
+    private BlufiFuture<Void> post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
+        PostMessage message = new PostMessage(encrypt, checksum, requireAck, type, data,
+                BlufiCallback.CODE_WRITE_DATA_FAILED);
+        return post(Collections.singletonList(message), mAckWindowSize, false);
+    }
+
+    /**
+     * Post messages back to back, the frames of the next message do not wait for the acks of the previous one.
+     *
+     * @param failOnDeviceError whether an error reported by the device fails the post at once
+     * @return the future which fails with the status of the first failed message
+     */
+    private BlufiFuture<Void> post(List<PostMessage> messages, int ackWindowSize, boolean failOnDeviceError) {
+        if (mRunningOperation != null && mRunningOperation.aborted) {
+            return BlufiFuture.failed(messages.get(0).failureStatus);
+        }
+        if (mPostTask != null) {
+            Log.w(TAG, "post: the previous post is not finished");
+            return BlufiFuture.failed(messages.get(0).failureStatus);
+        }
         if (!isConnected()) {
-            return false;
+            return BlufiFuture.failed(messages.get(0).failureStatus);
+        }
+        // A device without write without response on the write characteristic is written with response
+        int windowSize = mWriteNoResponseSupported ? mWriteWindowSize : 0;
+        PostTask task = new PostTask(messages, windowSize, ackWindowSize, failOnDeviceError);
+        mPostTask = task;
+        task.pump();
+        return task.mFuture;
+    }
+
+    private void scheduleDrainNotifications() {
+        if (mNotificationsDraining.compareAndSet(false, true)) {
+            mScheduler.getExecutor().execute(mDrainNotificationsRunnable);
+        }
+    }
+
+    /**
+     * Parse the queued notifications in order, at most a queue of them before yielding the thread
+     * to the other clients of the scheduler.
+     */
+    private void drainNotifications() {
+        int sessionId = mSessionId.get();
+        if (sessionId != mParsedSessionId) {
+            // The first notifications of a new connection, the device has restarted its sequence
+            mParsedSessionId = sessionId;
+            mReadSequence.set(-1);
+            mNotifyData.reset();
+            mDiscardingFragments = false;
+            mResyncReadSequence = false;
+            mParsedDropCount = mNotifications.getDropCount();
+        }
+        int count = 0;
+        int index;
+        while (count < mNotifications.capacity() && (index = mNotifications.peek()) >= 0) {
+            try {
+                long dropCount = mNotifications.getDropCount(index);
+                if (dropCount != mParsedDropCount) {
+                    onNotificationsDropped(dropCount);
+                }
+                onNotification(mNotifications.getSlot(index), mNotifications.getLength(index));
+            } catch (Exception e) {
+                Log.w(TAG, "drainNotifications: ", e);
+            } finally {
+                mNotifications.release();
+            }
+            count++;
         }
-        if (mPrintDebug) {
-            Log.i(TAG, "gattWrite= " + Arrays.toString(data));
-        }
-        mWriteChar.setValue(data);
-        mGatt.writeCharacteristic(mWriteChar);
-        Boolean result;
-        if (mWriteTimeout > 0) {
-            result = mWriteResultQueue.poll(mWriteTimeout, TimeUnit.MILLISECONDS);
-            if (result == null) {
-                onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
+        if (!mNotifications.isEmpty()) {
+            mScheduler.getExecutor().execute(mDrainNotificationsRunnable);
+            return;
+        }
+        // The queue only drops when full, so with the queue empty the count covers every drop so far.
+        // Handle them now, no notification may follow while the device waits for the client.
+        long dropCount = mNotifications.getDropCount();
+        if (dropCount != mParsedDropCount && mNotifications.isEmpty()) {
+            onNotificationsDropped(dropCount);
+        }
+        mNotificationsDraining.set(false);
+        // A notification offered after the check above may have seen the flag still set
+        if (!mNotifications.isEmpty()) {
+            scheduleDrainNotifications();
+        }
+    }
+
+    /**
+     * Notifications have been dropped since the last parsed one. The message they belong to is broken and
+     * the acks and responses in them are lost, so fail the waits for them and take the sequence of the next
+     * frame. The next frame starts a new message, a rest of the broken message fails its length check.
+     */
+    private void onNotificationsDropped(long dropCount) {
+        Log.w(TAG, "drainNotifications: " + (dropCount - mParsedDropCount) + " notifications dropped");
+        mParsedDropCount = dropCount;
+        mNotifyData.reset();
+        mDiscardingFragments = false;
+        mResyncReadSequence = true;
+        onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
+        mLane.execute(() -> {
+            if (mPostTask != null) {
+                mPostTask.fail();
+            }
+            failResponses(BlufiCallback.CODE_INVALID_NOTIFICATION);
+            if (mDevicePublicKeyFuture != null) {
+                mDevicePublicKeyFuture.fail(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+                mDevicePublicKeyFuture = null;
             }
-        } else {
-            result = mWriteResultQueue.take();
+        });
+    }
+
+    private void onNotification(byte[] data, int length) {
+        if (mPrintDebug) {
+            Log.i(TAG, "Gatt Notification: " + (data == null ? null : Arrays.toString(Arrays.copyOf(data, length))));
+        }
+        // lt 0 is error, eq 0 is complete, gt 0 is continue
+        int parse = parseNotification(data, length, mNotifyData);
+        if (parse < 0) {
+            mNotifyData.reset();
+            onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
+        } else if (parse == 0) {
+            parseBlufiNotifyData(mNotifyData);
+            mNotifyData.reset();
         }
-        return result != null && result;
     }
 
-    private boolean receiveAck(int expectAck) {
-        try {
-            int ack = mAck.take();
-            return ack == expectAck;
-        } catch (InterruptedException e) {
-            Log.w(TAG, "receiveAck: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+    int getNotificationQueueSize() {
+        return mNotifications.size();
+    }
+
+    int getNotificationQueuePeakSize() {
+        return mNotifications.getPeakSize();
+    }
+
+    long getDroppedNotificationCount() {
+        return mNotifications.getDropCount();
+    }
+
+    private void onWriteComplete(boolean success) {
+        if (mPostTask != null) {
+            mPostTask.onWriteComplete(success);
+        }
+    }
+
+    private void onReceiveAck(int ack) {
+        if (mPostTask != null) {
+            mPostTask.onAck(ack);
+        }
+    }
+
+    private void onReceiveDeviceError(int errCode) {
+        if (mSecurityCallback.onReceiveError()) {
+            // The negotiation falls back, the error is not a failure of the user
+            return;
+        }
+        if (mPostTask != null && mPostTask.mFailOnDeviceError) {
+            Log.w(TAG, "onReceiveDeviceError: stop posting");
+            mPostTask.failOnDeviceError();
+        }
+        if (errCode == BlufiCallback.CODE_WIFI_SCAN_FAIL) {
+            mScanResponses.onResponse(errCode, null);
+        }
+        onError(errCode);
+    }
+
+    private static class PostMessage {
+        final boolean encrypt;
+        final boolean checksum;
+        final boolean requireAck;
+        final int type;
+        final byte[] data;
+        final int failureStatus;
+
+        PostMessage(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data, int failureStatus) {
+            this.encrypt = encrypt;
+            this.checksum = checksum;
+            this.requireAck = requireAck;
+            this.type = type;
+            this.data = data;
+            this.failureStatus = failureStatus;
+        }
+    }
+
+    /**
+     * Write the frames of messages on the lane. The next frame is written when the stack reports the previous
+     * write, or when there is room in the window of writes without response. If acks are required,
+     * it is also written when there is room in the window of unacked frames, which are tracked by
+     * {@link AckTracker} with a deadline for each. A frame is encoded just before it is first written,
+     * so a failed post does not take the sequences of the frames it did not write.
+     */
+    private class PostTask {
+        private final List<PostMessage> mMessages;
+        private final boolean mNoResponse;
+        private final int mWindowSize;
+        private final int mAckWindowSize;
+        private final int mPkgLengthLimit;
+        final boolean mFailOnDeviceError;
+
+        final BlufiFuture<Void> mFuture = new BlufiFuture<>();
+
+        // The message of each unacked sequence, null if there is only one message
+        private final byte[] mSequenceMessages;
+
+        private byte[] mPendingFrame;
+        private int mPendingSequence;
+        private int mPendingLength;
+        private boolean mPendingFrag;
+
+        private int mMessageIndex = 0;
+        private int mOffset = 0;
+        private boolean mAllWritten = false;
+        private int mInFlight = 0;
+        private long mBusyDeadline = -1;
+        private ScheduledFuture<?> mWaitTimer;
+        private ScheduledFuture<?> mWriteTimer;
+        // The time in System.nanoTime() the writes in flight must be reported by, -1 without writes in flight
+        private long mWriteDeadline = -1;
+        private final Runnable mWriteTimeoutRunnable = this::onWriteTimer;
+        private ScheduledFuture<?> mAckTimer;
+        private long mAckTimerDeadline = -1;
+
+        PostTask(List<PostMessage> messages, int windowSize, int ackWindowSize, boolean failOnDeviceError) {
+            mMessages = messages;
+            mNoResponse = windowSize > 0;
+            mWindowSize = mNoResponse ? windowSize : 1;
+            // By default the acks of a window of writes without response are waited together
+            mAckWindowSize = ackWindowSize > 0 ? ackWindowSize : mWindowSize;
+            mFailOnDeviceError = failOnDeviceError;
+            mSequenceMessages = messages.size() > 1 ? new byte[256] : null;
+            mAckTracker.clear();
+
+            mPkgLengthLimit = mPackageLengthLimit > 0 ? mPackageLengthLimit :
+                    (mBlufiMTU > 0 ? mBlufiMTU : PACKAGE_LENGTH_DEFAULT);
+        }
+
+        private int getDataLengthLimit(PostMessage message) {
+            int dataLengthLimit = mPkgLengthLimit - PACKAGE_HEADER_LENGTH;
+            dataLengthLimit -= FrameEncoder.TOTAL_LENGTH_LENGTH; // if frag, two bytes total length in data
+            if (message.checksum) {
+                dataLengthLimit -= FrameEncoder.CHECKSUM_LENGTH;
+            }
+            return dataLengthLimit;
+        }
+
+        /**
+         * Write frames as long as the window, the acks and the post interval allow.
+         */
+        void pump() {
+            while (!mFuture.isDone()) {
+                if (mAllWritten) {
+                    if (mInFlight == 0 && mAckTracker.isEmpty()) {
+                        finish(BlufiCallback.STATUS_SUCCESS);
+                    }
+                    return;
+                }
+                if (mWaitTimer != null || mInFlight >= mWindowSize || mAckTracker.size() >= mAckWindowSize) {
+                    return;
+                }
+                long interval = mPostInterval;
+                if (interval > 0) {
+                    long delay = mNextWriteTime - SystemClock.elapsedRealtime();
+                    if (delay > 0) {
+                        waitAndPump(delay);
+                        return;
+                    }
+                }
+                if (!isConnected()) {
+                    fail();
+                    return;
+                }
+
+                if (!writeNextFrame()) {
+                    return;
+                }
+                if (interval > 0) {
+                    mNextWriteTime = SystemClock.elapsedRealtime() + interval;
+                }
+            }
+        }
+
+        /**
+         * @return false if the stack is busy or the post failed
+         */
+        private boolean writeNextFrame() {
+            BluetoothGatt gatt = mGatt;
+            BluetoothGattCharacteristic writeChar = mWriteChar;
+            if (gatt == null || writeChar == null) {
+                fail();
+                return false;
+            }
+            if (mPendingFrame == null && !encodeNextFrame()) {
+                fail();
+                return false;
+            }
+
+            if (mPrintDebug) {
+                Log.i(TAG, "gattWrite= " + Arrays.toString(mPendingFrame));
+            }
+            writeChar.setWriteType(mNoResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : mWriteType);
+            writeChar.setValue(mPendingFrame);
+            if (!gatt.writeCharacteristic(writeChar)) {
+                // Keep the encoded frame, its sequence and cipher stream have been taken
+                onBusy();
+                return false;
+            }
+
+            mPendingFrame = null;
+            mBusyDeadline = -1;
+            mInFlight++;
+            if (mMessages.get(mMessageIndex).requireAck) {
+                long ackTimeout = mWriteTimeout > 0 ? mWriteTimeout : ACK_TIMEOUT_DEFAULT;
+                mAckTracker.add(mPendingSequence, SystemClock.elapsedRealtime() + ackTimeout);
+                if (mSequenceMessages != null) {
+                    mSequenceMessages[mPendingSequence] = (byte) mMessageIndex;
+                }
+                armAckTimer();
+            }
+            if (mPendingFrag) {
+                mOffset += mPendingLength;
+            } else {
+                mOffset = 0;
+                mMessageIndex++;
+                mAllWritten = mMessageIndex == mMessages.size();
+            }
+            armWriteTimer();
+            return true;
+        }
+
+        /**
+         * @return false if the frame could not be encrypted
+         */
+        private boolean encodeNextFrame() {
+            PostMessage message = mMessages.get(mMessageIndex);
+            byte[] data = message.data;
+            int sequence = generateSendSequence();
+            int postLength = 0;
+            boolean frag = false;
+            byte[] frame;
+            if (data == null || data.length == 0) {
+                int frameCtrl = FrameCtrlData.getFrameCTRLValue(message.encrypt, message.checksum, DIRECTION_OUTPUT,
+                        message.requireAck, false);
+                frame = mFrameEncoder.encodeNonData(message.type, frameCtrl, sequence, message.checksum);
+            } else {
+                int remain = data.length - mOffset;
+                postLength = Math.min(remain, getDataLengthLimit(message));
+                if (remain - postLength <= FrameEncoder.TOTAL_LENGTH_LENGTH) {
+                    // The last fragment has no total length, so the room can carry the tail
+                    postLength = remain;
+                }
+                frag = postLength < remain;
+                int frameCtrl = FrameCtrlData.getFrameCTRLValue(message.encrypt, message.checksum, DIRECTION_OUTPUT,
+                        message.requireAck, frag);
+                frame = mFrameEncoder.encode(message.type, frameCtrl, sequence, data, mOffset, postLength,
+                        frag ? remain : -1, message.checksum);
+                if (message.encrypt && !encryptFrame(frame, sequence)) {
+                    Log.w(TAG, "encodeNextFrame: encrypt failed");
+                    return false;
+                }
+            }
+            mPendingFrame = frame;
+            mPendingSequence = sequence;
+            mPendingLength = postLength;
+            mPendingFrag = frag;
+            return true;
+        }
+
+        private void onBusy() {
+            long now = SystemClock.elapsedRealtime();
+            if (mBusyDeadline < 0) {
+                long busyTimeout = mWriteTimeout > 0 ? mWriteTimeout : WRITE_BUSY_TIMEOUT_DEFAULT;
+                mBusyDeadline = now + busyTimeout;
+            } else if (now > mBusyDeadline) {
+                Log.w(TAG, "writeNextFrame: stack busy");
+                fail();
+                return;
+            }
+            if (mInFlight == 0) {
+                // Nothing of this post will be reported, retry later
+                waitAndPump(WRITE_BUSY_RETRY_INTERVAL);
+            }
+        }
+
+        void onWriteComplete(boolean success) {
+            if (mInFlight == 0) {
+                return;
+            }
+            mInFlight--;
+            if (!success) {
+                fail();
+                return;
+            }
+            armWriteTimer();
+            pump();
+        }
+
+        void onAck(int ack) {
+            int released = mAckTracker.acknowledge(ack);
+            if (released == 0) {
+                Log.w(TAG, "onAck: stale ack " + ack + ", oldest unacked " + mAckTracker.oldest());
+                return;
+            }
+            if (released > 1 && mPrintDebug) {
+                Log.d(TAG, "onAck: ack " + ack + " acknowledged " + released + " frames");
+            }
+            armAckTimer();
+            pump();
+        }
+
+        /**
+         * Keep a timer at the earliest deadline of the unacked frames, the post fails if it expires.
+         */
+        private void armAckTimer() {
+            long deadline = mAckTracker.earliestDeadline();
+            if (deadline == mAckTimerDeadline) {
+                return;
+            }
+            if (mAckTimer != null) {
+                mAckTimer.cancel(false);
+                mAckTimer = null;
+            }
+            mAckTimerDeadline = deadline;
+            if (deadline < 0) {
+                return;
+            }
+            long delay = Math.max(deadline - SystemClock.elapsedRealtime(), 0);
+            final ScheduledFuture<?>[] timer = new ScheduledFuture<?>[1];
+            timer[0] = mLane.schedule(() -> {
+                if (mAckTimer == timer[0] && !mFuture.isDone()) {
+                    int sequence = mAckTracker.oldest();
+                    Log.w(TAG, "onAckTimeout: no ack of sequence " + sequence);
+                    finish(getMessage(sequence).failureStatus);
+                }
+            }, delay);
+            mAckTimer = timer[0];
         }
-    }
 
-    private boolean post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
-        if (data == null || data.length == 0) {
-            return postNonData(encrypt, checksum, requireAck, type);
-        } else {
-            return postContainData(encrypt, checksum, requireAck, type, data);
+        private void waitAndPump(long delay) {
+            mWaitTimer = mLane.schedule(() -> {
+                mWaitTimer = null;
+                pump();
+            }, delay);
         }
-    }
-
-    private boolean postNonData(boolean encrypt, boolean checksum, boolean requireAck, int type)
-            throws InterruptedException {
-        int sequence = generateSendSequence();
 
-        byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, false, sequence, null);
-        boolean posted = gattWrite(postBytes);
-
-        return posted && (!requireAck || receiveAck(sequence));
-    }
-
-    private boolean postContainData(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
-        ByteArrayInputStream dataIS = new ByteArrayInputStream(data);
-        ByteArrayOutputStream dataContent = new ByteArrayOutputStream();
-        int pkgLengthLimit = mPackageLengthLimit > 0 ? mPackageLengthLimit :
-                (mBlufiMTU > 0 ? mBlufiMTU : PACKAGE_LENGTH_DEFAULT);
-        int postDataLengthLimit = pkgLengthLimit - PACKAGE_HEADER_LENGTH;
-        postDataLengthLimit -= 2; // if frag, two bytes total length in data
-        if (checksum) {
-            postDataLengthLimit -= 2;
-        }
-        byte[] dataBuf = new byte[postDataLengthLimit];
-        while (true) {
-            int read = dataIS.read(dataBuf, 0, dataBuf.length);
-            if (read == -1) {
-                break;
+        /**
+         * Restart the write timeout while writes are in flight, it fires if the stack reports nothing in time.
+         * Every write and completion only moves the deadline, the one timer catches up with it when it fires.
+         */
+        private void armWriteTimer() {
+            if (mInFlight == 0) {
+                mWriteDeadline = -1;
+                return;
             }
+            // Without a gatt write timeout, still give up a write which the stack never reports
+            long timeout = mWriteTimeout > 0 ? mWriteTimeout : WRITE_TIMEOUT_DEFAULT;
+            mWriteDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            if (mWriteTimer == null) {
+                mWriteTimer = mLane.schedule(mWriteTimeoutRunnable, timeout);
+            }
+        }
 
-            dataContent.write(dataBuf, 0, read);
-            if (dataIS.available() > 0 && dataIS.available() <= 2) {
-                read = dataIS.read(dataBuf, 0, dataIS.available());
-                dataContent.write(dataBuf, 0, read);
+        private void onWriteTimer() {
+            mWriteTimer = null;
+            if (mFuture.isDone() || mWriteDeadline < 0) {
+                return;
             }
-            boolean frag = dataIS.available() > 0;
-            int sequence = generateSendSequence();
-            if (frag) {
-                int totalLen = dataContent.size() + dataIS.available();
-                byte[] tempData = dataContent.toByteArray();
-                dataContent.reset();
-                dataContent.write(totalLen & 0xff);
-                dataContent.write(totalLen >> 8 & 0xff);
-                dataContent.write(tempData, 0, tempData.length);
-            }
-            byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, frag, sequence, dataContent.toByteArray());
-            dataContent.reset();
-            boolean posted = gattWrite(postBytes);
-            if (!posted) {
-                return false;
+            long remaining = mWriteDeadline - System.nanoTime();
+            if (remaining > 0) {
+                mWriteTimer = mLane.schedule(mWriteTimeoutRunnable, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                return;
             }
-            if (frag) {
-                if (requireAck && !receiveAck(sequence)) {
-                    return false;
-                }
-                sleep(10L);
-            } else {
-                return !requireAck || receiveAck(sequence);
+            Log.w(TAG, "onWriteTimeout: " + mInFlight + " writes not reported");
+            if (mWriteTimeout > 0) {
+                onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
             }
+            fail();
         }
 
-        return true;
-    }
-
-    private byte[] getPostBytes(int type, boolean encrypt, boolean checksum, boolean requireAck, boolean hasFrag, int sequence, byte[] data) {
-        ByteArrayOutputStream byteOS = new ByteArrayOutputStream();
-
-        int dataLength = data == null ? 0 : data.length;
-        int frameCtrl = FrameCtrlData.getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, hasFrag);
-
-        byteOS.write(type);
-        byteOS.write(frameCtrl);
-        byteOS.write(sequence);
-        byteOS.write(dataLength);
-
-        byte[] checksumBytes = null;
-        if (checksum) {
-            byte[] willCheckBytes = new byte[]{(byte) sequence, (byte) dataLength};
-            int crc = BlufiCRC.calcCRC(0, willCheckBytes);
-            if (dataLength > 0) {
-                crc = BlufiCRC.calcCRC(crc, data);
-            }
-            checksumBytes = new byte[]{(byte) (crc & 0xff), (byte) (crc >> 8 & 0xff)};
+        private PostMessage getMessage(int sequence) {
+            return mMessages.get(mSequenceMessages == null ? 0 : mSequenceMessages[sequence] & 0xff);
         }
 
-        if (encrypt && data != null && data.length > 0) {
-            BlufiAES aes = null;
-            switch (getSecurityVersion()) {
-                case SECURITY_V1:
-                    aes = new BlufiAES(mAESKey, AES_TRANSFORMATION, generateAESIV(sequence));
-                    data = aes.encrypt(data);
-                    break;
-                case SECURITY_V2:
-                    data = mEncryptorV2.encryptUpdate(data);
-                    break;
+        /**
+         * The device rejects a frame instead of acking it, so fail with the status of the message of the oldest
+         * unacked frame. Without unacked frames, fail with the status of the message being written.
+         */
+        void failOnDeviceError() {
+            int sequence = mAckTracker.oldest();
+            if (sequence < 0) {
+                fail();
+            } else {
+                finish(getMessage(sequence).failureStatus);
             }
         }
-        if (data != null) {
-            byteOS.write(data, 0, data.length);
+
+        /**
+         * Fail with the status of the message being written.
+         */
+        void fail() {
+            int index = Math.min(mMessageIndex, mMessages.size() - 1);
+            finish(mMessages.get(index).failureStatus);
         }
 
-        if (checksumBytes != null) {
-            byteOS.write(checksumBytes[0]);
-            byteOS.write(checksumBytes[1]);
+        void finish(int status) {
+            if (mWaitTimer != null) {
+                mWaitTimer.cancel(false);
+                mWaitTimer = null;
+            }
+            if (mWriteTimer != null) {
+                mWriteTimer.cancel(false);
+                mWriteTimer = null;
+            }
+            if (mAckTimer != null) {
+                mAckTimer.cancel(false);
+                mAckTimer = null;
+            }
+            if (mPostTask == this) {
+                mAckTracker.clear();
+                mPostTask = null;
+            }
+            if (status == BlufiCallback.STATUS_SUCCESS) {
+                mFuture.complete(null);
+            } else {
+                mFuture.fail(status);
+            }
         }
+    }
 
-        return byteOS.toByteArray();
+    /**
+     * Encrypt the data of an encoded frame in place, the checksum has been calculated over the plain data.
+     *
+     * @return false if the cipher failed
+     */
+    private boolean encryptFrame(byte[] frame, int sequence) {
+        int dataLength = toInt(frame[3]);
+        switch (getSecurityVersion()) {
+            case SECURITY_V1:
+                return mEncryptorV1.encrypt(sequence, frame, PACKAGE_HEADER_LENGTH, dataLength, frame,
+                        PACKAGE_HEADER_LENGTH);
+            case SECURITY_V2:
+                return mEncryptorV2.encryptUpdate(frame, PACKAGE_HEADER_LENGTH, dataLength, frame,
+                        PACKAGE_HEADER_LENGTH) == dataLength;
+            default:
+                return true;
+        }
     }
 
-    private int parseNotification(byte[] response, BlufiNotifyData notification) {
+    private int parseNotification(byte[] response, int length, BlufiNotifyData notification) {
         if (response == null) {
             Log.w(TAG, "parseNotification null data");
             return -1;
         }
         if (mPrintDebug) {
-            Log.d(TAG, "parseNotification Notification= " + Arrays.toString(response));
+            Log.d(TAG, "parseNotification Notification= " + Arrays.toString(Arrays.copyOf(response, length)));
         }
 
-        if (response.length < 4) {
+        if (length < 4) {
             Log.w(TAG, "parseNotification data length less than 4");
             return -2;
         }
 
-        int sequence = toInt(response[2]);
-        if (sequence != (mReadSequence.incrementAndGet() & 0xff)) {
+        FrameView frame = mReceiveFrame.wrap(response, 0, length);
+        try {
+            return parseFrame(frame, notification);
+        } finally {
+            frame.clear();
+        }
+    }
+
+    private int parseFrame(FrameView frame, BlufiNotifyData notification) {
+        int sequence = frame.getSequence();
+        if (mResyncReadSequence) {
+            // The frames before were dropped
+            mResyncReadSequence = false;
+            mReadSequence.set(sequence);
+        } else if (sequence != (mReadSequence.incrementAndGet() & 0xff)) {
             Log.w(TAG, "parseNotification read sequence wrong");
             return -3;
         }
 
-        int type = toInt(response[0]);
-        int pkgType = getPackageType(type);
-        int subType = getSubType(type);
+        int type = frame.getType();
+        if (notification.isReassembling() && notification.getType() != type) {
+            Log.w(TAG, "parseNotification: fragment type changed");
+            return -5;
+        }
         notification.setType(type);
-        notification.setPkgType(pkgType);
-        notification.setSubType(subType);
+        notification.setPkgType(frame.getPkgType());
+        notification.setSubType(frame.getSubType());
+        notification.setFrameCtrl(frame.getFrameCtrl());
 
-        int frameCtrl = toInt(response[1]);
-        notification.setFrameCtrl(frameCtrl);
-        FrameCtrlData frameCtrlData = new FrameCtrlData(frameCtrl);
-
-        int dataLen = toInt(response[3]);
-        byte[] dataBytes = new byte[dataLen];
-        int dataOffset = 4;
-        try {
-            System.arraycopy(response, dataOffset, dataBytes, 0, dataLen);
-        } catch (Exception e) {
-            Log.w(TAG, "parseNotification: ", e);
+        if (!frame.isComplete()) {
+            Log.w(TAG, "parseNotification: frame length " + frame.length() + " is less than declared");
             return -100;
         }
+        int dataLen = frame.getDataLength();
+        byte[] dataBytes = mReceiveDataBuffer;
+        System.arraycopy(frame.array(), frame.getDataOffset(), dataBytes, 0, dataLen);
 
-        if (frameCtrlData.isEncrypted()) {
-            BlufiAES aes = null;
+        if (frame.isEncrypted() && dataLen > 0) {
             switch (getSecurityVersion()) {
                 case SECURITY_V1:
-                    aes = new BlufiAES(mAESKey, AES_TRANSFORMATION, generateAESIV(sequence));
-                    dataBytes = aes.decrypt(dataBytes);
+                    mDecryptorV1.decrypt(sequence, dataBytes, 0, dataLen, dataBytes, 0);
                     break;
                 case SECURITY_V2:
-                    dataBytes = mDecryptorV2.decryptUpdate(dataBytes);
+                    mDecryptorV2.decryptUpdate(dataBytes, 0, dataLen, dataBytes, 0);
                     break;
             }
         }
 
-        if (frameCtrlData.isChecksum()) {
-            int respChecksum1 = toInt(response[response.length - 1]);
-            int respChecksum2 = toInt(response[response.length - 2]);
+        if (frame.isChecksum()) {
+            int respChecksum = frame.getChecksum();
 
-            int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) dataLen});
-            crc = BlufiCRC.calcCRC(crc, dataBytes);
-            int calcChecksum1 = crc >> 8 & 0xff;
-            int calcChecksum2 = crc & 0xff;
+            int crc = BlufiCRC.calcCRC(0, frame.array(), frame.getSequenceOffset(), 2);
+            crc = BlufiCRC.calcCRC(crc, dataBytes, 0, dataLen);
 
-            if (respChecksum1 != calcChecksum1 || respChecksum2 != calcChecksum2) {
+            if (respChecksum != crc) {
                 Log.w(TAG, "parseNotification: read invalid checksum");
                 if (mPrintDebug) {
-                    Log.d(TAG, "expect   checksum: " + respChecksum1 + ", " + respChecksum2);
-                    Log.d(TAG, "received checksum: " + calcChecksum1 + ", " + calcChecksum2);
+                    Log.d(TAG, "expect   checksum: " + (respChecksum >> 8) + ", " + (respChecksum & 0xff));
+                    Log.d(TAG, "received checksum: " + (crc >> 8) + ", " + (crc & 0xff));
                 }
                 return -4;
             }
         }
 
-        if (frameCtrlData.hasFrag()) {
-//            int totalLen = dataBytes[0] | (dataBytes[1] << 8);
-            dataOffset = 2;
-        } else {
-            dataOffset = 0;
+        if (mDiscardingFragments) {
+            // Drop the rest fragments of the message which has been rejected
+            mDiscardingFragments = frame.hasFrag();
+            return 1;
         }
-        notification.addData(dataBytes, dataOffset);
 
-        return frameCtrlData.hasFrag() ? 1 : 0;
+        if (frame.hasFrag()) {
+            if (dataLen < 2) {
+                Log.w(TAG, "parseNotification: fragment without total length");
+                mDiscardingFragments = true;
+                return -5;
+            }
+            int totalLen = toInt(dataBytes[0]) | (toInt(dataBytes[1]) << 8);
+            if (!notification.addFragment(dataBytes, 2, dataLen - 2, totalLen)) {
+                Log.w(TAG, "parseNotification: invalid fragment total length " + totalLen);
+                mDiscardingFragments = true;
+                return -5;
+            }
+            return 1;
+        } else {
+            if (!notification.addLastFragment(dataBytes, 0, dataLen)) {
+                Log.w(TAG, "parseNotification: invalid last fragment length " + dataLen);
+                return -5;
+            }
+            return 0;
+        }
     }
 
     private void parseBlufiNotifyData(BlufiNotifyData data) {
@@ -620,7 +1625,7 @@ class BlufiClientImpl implements BlufiParameter {
                 break;
             case Type.Data.SUBTYPE_ERROR:
                 int errCode = data.length > 0 ? (data[0] & 0xff) : 0xff;
-                onError(errCode);
+                mLane.executeInline(() -> onReceiveDeviceError(errCode));
                 break;
         }
     }
@@ -631,21 +1636,26 @@ class BlufiClientImpl implements BlufiParameter {
             ack = data[0] & 0xff;
         }
 
-        mAck.add(ack);
+        final int receivedAck = ack;
+        mLane.executeInline(() -> onReceiveAck(receivedAck));
     }
 
     private void parseVersion(byte[] data) {
         if (data.length != 2) {
+            mLane.executeInline(() -> mVersionResponses.onResponse(BlufiCallback.CODE_INVALID_DATA, null));
             onVersionResponse(BlufiCallback.CODE_INVALID_DATA, null);
+            return;
         }
 
         BlufiVersionResponse response = new BlufiVersionResponse();
         response.setVersionValues(toInt(data[0]), toInt(data[1]));
+        mLane.executeInline(() -> mVersionResponses.onResponse(BlufiCallback.STATUS_SUCCESS, response));
         onVersionResponse(BlufiCallback.STATUS_SUCCESS, response);
     }
 
     private void parseWifiState(byte[] data) {
         if (data.length < 3) {
+            mLane.executeInline(() -> mStatusResponses.onResponse(BlufiCallback.CODE_INVALID_DATA, null));
             onStatusResponse(BlufiCallback.CODE_INVALID_DATA, null);
             return;
         }
@@ -676,6 +1686,8 @@ class BlufiClientImpl implements BlufiParameter {
             parseWifiStateData(response, infoType, stateBytes);
         }
 
+        final int status = callbackStatus;
+        mLane.executeInline(() -> mStatusResponses.onResponse(status, response));
         onStatusResponse(callbackStatus, response);
     }
 
@@ -755,46 +1767,259 @@ class BlufiClientImpl implements BlufiParameter {
             result.add(sr);
         }
 
+        mLane.executeInline(() -> mScanResponses.onResponse(BlufiCallback.STATUS_SUCCESS, result));
         onDeviceScanResult(BlufiCallback.STATUS_SUCCESS, result);
     }
 
     private void onError(final int errCode) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onError(mClient, errCode);
             }
         });
     }
 
-    private void __negotiateSecurity() {
-        BlufiDH espDH = postNegotiateSecurity();
-        if (espDH == null) {
-            Log.w(TAG, "negotiateSecurity postNegotiateSecurity failed");
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_POST_FAILED);
-            return;
+    private BlufiFuture<Void> __negotiateSecurity() {
+        mSessionResumed = false;
+        // Older firmware ignores the resume message, the client would wait for an answer which never comes
+        BlufiSessionCache cache = mDeviceVersion >= RESUME_DEVICE_VERSION_MIN ? mSessionCache : null;
+        BluetoothDevice device = mDevice;
+        String address = device == null ? null : device.getAddress();
+        BlufiSessionTicket ticket = cache == null || address == null ? null : cache.take(address);
+
+        final boolean[] resumed = new boolean[1];
+        BlufiFuture<byte[]> secretKey;
+        if (ticket != null) {
+            secretKey = negotiateSecurityResume(ticket).then(key -> {
+                if (key == null) {
+                    Log.w(TAG, "Device does not resume the session, fall back to key agreement");
+                    return negotiateSecretKey();
+                }
+                resumed[0] = true;
+                return BlufiFuture.completed(key);
+            });
+        } else {
+            secretKey = negotiateSecretKey();
         }
 
-        BigInteger devicePublicKey;
-        try {
-            devicePublicKey = mDevicePublicKeyQueue.poll(20, TimeUnit.SECONDS);
-            if (devicePublicKey == null || devicePublicKey.bitLength() == 0) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
-                return;
+        BlufiFuture<Void> result = secretKey.then(key -> setupSecurity(key).then(secured -> {
+            mSessionResumed = resumed[0];
+            if (cache != null && address != null) {
+                // The device derives the same ticket from the secret key
+                BlufiSessionTicket nextTicket = BlufiSessionTicket.fromSecretKey(key);
+                if (nextTicket != null) {
+                    cache.put(address, nextTicket);
+                }
             }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "Take device public key interrupted");
-            Thread.currentThread().interrupt();
-            return;
+            return BlufiFuture.completed(null);
+        }));
+        result.addListener(future -> onNegotiateSecurityResult(future.getStatus()));
+        return result;
+    }
+
+    private BlufiFuture<byte[]> negotiateSecretKey() {
+        if (mECDHNegotiation && mDeviceVersion >= ECDH_DEVICE_VERSION_MIN) {
+            return negotiateSecurityECDH().then(key -> {
+                if (key == null) {
+                    Log.w(TAG, "Device rejects ECDH negotiation, fall back to DH");
+                    return negotiateSecurityDH();
+                }
+                return BlufiFuture.completed(key);
+            });
+        } else {
+            return negotiateSecurityDH();
+        }
+    }
+
+    /**
+     * @return the future of the secret key, its value is null if the device does not resume the session
+     */
+    private BlufiFuture<byte[]> negotiateSecurityResume(BlufiSessionTicket ticket) {
+        byte[] clientNonce = BlufiSessionTicket.generateNonce();
+        byte[] resumeData = ticket.getResumeData(clientNonce);
+        if (resumeData == null) {
+            return BlufiFuture.completed(null);
+        }
+
+        BlufiFuture<byte[]> deviceProof = expectDevicePublicKey(DH_DEVICE_KEY_TIMEOUT);
+        mWaitingOptionalKey = true;
+        return postNegotiateSecurityResume(resumeData).handle(posted -> {
+            if (!posted.isSuccess()) {
+                Log.w(TAG, "negotiateSecurity postNegotiateSecurityResume failed");
+                mWaitingOptionalKey = false;
+                return BlufiFuture.failed(BlufiCallback.CODE_NEG_POST_FAILED);
+            }
+            return deviceProof.handle(received -> {
+                mWaitingOptionalKey = false;
+                if (!received.isSuccess()) {
+                    // The device reported resumption support, no answer is a failure rather than a fallback
+                    return BlufiFuture.failed(received.getStatus());
+                }
+                byte[] proofData = received.getResult();
+                if (proofData == null || proofData.length == 0) {
+                    // The device rejected the ticket with an error, such as after a restart
+                    return BlufiFuture.completed(null);
+                }
+                byte[] secretKey = ticket.resume(clientNonce, proofData);
+                if (secretKey == null) {
+                    Log.w(TAG, "negotiateSecurityResume: invalid device proof");
+                }
+                return BlufiFuture.completed(secretKey);
+            });
+        });
+    }
+
+    /**
+     * @return the future of the secret key, its value is null if the device rejects ECDH
+     */
+    private BlufiFuture<byte[]> negotiateSecurityECDH() {
+        return computeKey(() -> {
+            BlufiECDH espECDH = new BlufiECDH();
+            return espECDH.getPublicKeyBytes() == null ? null : espECDH;
+        }).then(espECDH -> {
+            if (espECDH == null) {
+                return BlufiFuture.failed(BlufiCallback.CODE_NEG_POST_FAILED);
+            }
+            BlufiFuture<byte[]> deviceKey = expectDevicePublicKey(DH_DEVICE_KEY_TIMEOUT);
+            mWaitingOptionalKey = true;
+            return postNegotiateSecurityECDH(espECDH.getPublicKeyBytes()).handle(posted -> {
+                if (!posted.isSuccess()) {
+                    Log.w(TAG, "negotiateSecurity postNegotiateSecurityECDH failed");
+                    mWaitingOptionalKey = false;
+                    return BlufiFuture.failed(BlufiCallback.CODE_NEG_POST_FAILED);
+                }
+                return deviceKey.handle(received -> {
+                    mWaitingOptionalKey = false;
+                    if (!received.isSuccess()) {
+                        // The device reported ECDH support, no answer is a failure rather than a fallback
+                        return BlufiFuture.failed(received.getStatus());
+                    }
+                    byte[] keyData = received.getResult();
+                    if (keyData == null || keyData.length == 0) {
+                        // The device rejected the key with an error
+                        return BlufiFuture.completed(null);
+                    }
+                    return computeKey(() -> espECDH.generateSecretKey(keyData) ? espECDH.getSecretKey() : null)
+                            .then(secretKey -> secretKey == null ?
+                                    BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_DEV_KEY) :
+                                    BlufiFuture.completed(secretKey));
+                });
+            });
+        });
+    }
+
+    private BlufiFuture<byte[]> negotiateSecurityDH() {
+        DHGroup group = getSecurityVersion() == SECURITY_V2 ? DH_GROUP_3072 : DH_GROUP_1024;
+        return obtainDH(group).then(espDH -> {
+            BlufiFuture<byte[]> deviceKey = expectDevicePublicKey(DH_DEVICE_KEY_TIMEOUT);
+            return postNegotiateSecurity(group, espDH)
+                    .failWith(BlufiCallback.CODE_NEG_POST_FAILED)
+                    .then(posted -> deviceKey)
+                    .then(keyData -> {
+                        // Big-endian unsigned value, empty data is zero and will be rejected
+                        BigInteger devicePublicKey = new BigInteger(1, keyData);
+                        if (devicePublicKey.bitLength() == 0) {
+                            return BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+                        }
+                        return computeKey(() -> {
+                            espDH.generateSecretKey(devicePublicKey);
+                            return espDH.getSecretKey();
+                        });
+                    })
+                    .then(secretKey -> secretKey == null ?
+                            BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_SECURITY) :
+                            BlufiFuture.completed(secretKey));
+        });
+    }
+
+    /**
+     * Take the speculative key pair if there is, otherwise generate one on the key threads.
+     * The future completes on the lane.
+     */
+    private BlufiFuture<BlufiDH> obtainDH(DHGroup group) {
+        BlufiFuture<BlufiDH> speculative = takeSpeculativeDH(group);
+        BlufiFuture<BlufiDH> keyPair;
+        if (speculative == null) {
+            keyPair = computeKey(() -> generateDH(group));
+        } else {
+            keyPair = onLane(speculative).then(blufiDH -> blufiDH != null && blufiDH.getPublicKeyBytes() != null ?
+                    BlufiFuture.completed(blufiDH) : computeKey(() -> generateDH(group)));
         }
+        return keyPair.then(blufiDH -> blufiDH == null ?
+                BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_SECURITY) :
+                BlufiFuture.completed(blufiDH));
+    }
+
+    /**
+     * @return null if the key pair could not be generated
+     */
+    private BlufiDH generateDH(DHGroup group) {
+        BlufiDH blufiDH = new BlufiDH(group.p, group.g, group.length, getDHPrivateKeyLength(group));
+        return blufiDH.getPublicKeyBytes() == null ? null : blufiDH;
+    }
 
+    /**
+     * Run the key work on the key threads of the scheduler and complete the future with its result on the lane,
+     * so neither the lane nor the Bluetooth thread waits for the big number arithmetic.
+     * The result is null if the work failed.
+     */
+    private <T> BlufiFuture<T> computeKey(Callable<T> work) {
+        BlufiFuture<T> future = new BlufiFuture<>();
         try {
-            espDH.generateSecretKey(devicePublicKey);
-            byte[] secretKey = espDH.getSecretKey();
-            if (secretKey == null) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-                return;
+            mScheduler.getKeyExecutor().execute(() -> {
+                if (future.isDone()) {
+                    // Cancelled before the work started
+                    return;
+                }
+                T result = null;
+                try {
+                    result = work.call();
+                } catch (Exception e) {
+                    Log.w(TAG, "computeKey: ", e);
+                }
+                T value = result;
+                mLane.execute(() -> future.complete(value));
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "computeKey: the scheduler is shut down");
+            future.fail(BlufiCallback.CODE_CATCH_EXCEPTION);
+        }
+        return future;
+    }
+
+    /**
+     * @return a future which completes on the lane when the future completes on another thread
+     */
+    private <T> BlufiFuture<T> onLane(BlufiFuture<T> future) {
+        BlufiFuture<T> next = new BlufiFuture<>();
+        next.setCanceller(() -> future.cancel(next.getStatus()));
+        future.addListener(done -> mLane.execute(() -> {
+            if (done.isSuccess()) {
+                next.complete(done.getResult());
+            } else {
+                next.fail(done.getStatus());
             }
+        }));
+        return next;
+    }
+
+    /**
+     * The future fails with {@link BlufiCallback#CODE_NEG_ERR_DEV_KEY} if the device does not answer in time.
+     */
+    private BlufiFuture<byte[]> expectDevicePublicKey(long timeout) {
+        BlufiFuture<byte[]> future = new BlufiFuture<>();
+        mDevicePublicKeyFuture = future;
+        ScheduledFuture<?> timer = mLane.schedule(() -> {
+            if (future.fail(BlufiCallback.CODE_NEG_ERR_DEV_KEY) && mDevicePublicKeyFuture == future) {
+                mDevicePublicKeyFuture = null;
+            }
+        }, timeout);
+        future.addListener(done -> timer.cancel(false));
+        return future;
+    }
 
+    private BlufiFuture<Void> setupSecurity(byte[] secretKey) {
+        try {
             int securityVersion = getSecurityVersion();
             if (securityVersion == SECURITY_V2) {
                 mAESKey = BlufiHash.getSHA256Bytes(secretKey);
@@ -804,33 +2029,30 @@ class BlufiClientImpl implements BlufiParameter {
                 mDecryptorV2 = new BlufiAES(mAESKey, AES_TRANSFORMATION_V2, decIV);
             } else {
                 mAESKey = BlufiHash.getMD5Bytes(secretKey);
+                mEncryptorV1 = new BlufiAESCFB(mAESKey);
+                mDecryptorV1 = new BlufiAESCFB(mAESKey);
             }
         } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-            return;
-        }
-
-        boolean setSecurity = false;
-        try {
-            setSecurity = postSetSecurity(false, false, true, true);
-        } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
+            Log.w(TAG, "setupSecurity: ", e);
+            return BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_SECURITY);
         }
 
-        if (setSecurity) {
-            mEncrypted = true;
-            mChecksum = true;
-            onNegotiateSecurityResult(BlufiCallback.STATUS_SUCCESS);
-        } else {
-            mEncrypted = false;
-            mChecksum = false;
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SET_SECURITY);
-        }
+        return postSetSecurity(false, false, true, true).handle(future -> {
+            if (future.isSuccess()) {
+                mEncrypted = true;
+                mChecksum = true;
+                mConnection.advance(BlufiClient.STATE_SECURED);
+                return BlufiFuture.completed(null);
+            } else {
+                mEncrypted = false;
+                mChecksum = false;
+                return BlufiFuture.failed(BlufiCallback.CODE_NEG_ERR_SET_SECURITY);
+            }
+        });
     }
 
     private void onNegotiateSecurityResult(final int status) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onNegotiateSecurityResult(mClient, status);
             }
@@ -845,115 +2067,63 @@ class BlufiClientImpl implements BlufiParameter {
         }
     }
 
-    private BlufiDH postNegotiateSecurity() {
+    private BlufiFuture<Void> postNegotiateSecurity(DHGroup group, BlufiDH blufiDH) {
         int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
 
-        final int radix = 16;
-        final int dhLength;
-        final BigInteger dhP;
-        final BigInteger dhG;
-        int securityVersion = getSecurityVersion();
-        if (securityVersion == SECURITY_V2) {
-            dhLength = 3072;
-            dhP = new BigInteger(DH_P_3072, radix);
-            dhG = new BigInteger(DH_G);
-        } else {
-            dhLength = 1024;
-            dhP = new BigInteger(DH_P, radix);
-            dhG = new BigInteger(DH_G);
-        }
-
-        BlufiDH blufiDH;
-        String p;
-        String g;
-        String k;
-        do {
-            blufiDH = new BlufiDH(dhP, dhG, dhLength);
-            p = blufiDH.getP().toString(radix);
-            g = blufiDH.getG().toString(radix);
-            k = getPublicValue(blufiDH);
-        } while (k == null);
-
-        byte[] pBytes = toBytes(p);
-        byte[] gBytes = toBytes(g);
-        byte[] kBytes = toBytes(k);
-
-        ByteArrayOutputStream dataOS = new ByteArrayOutputStream();
+        byte[] pBytes = group.pBytes;
+        byte[] gBytes = group.gBytes;
+        byte[] kBytes = blufiDH.getPublicKeyBytes();
 
         int pgkLength = pBytes.length + gBytes.length + kBytes.length + 6;
-        int pgkLen1 = (pgkLength >> 8) & 0xff;
-        int pgkLen2 = pgkLength & 0xff;
-        dataOS.write(NEG_SECURITY_SET_TOTAL_LENGTH);
-        dataOS.write((byte) pgkLen1);
-        dataOS.write((byte) pgkLen2);
-        try {
-            boolean postLength = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postLength) {
-                return null;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: pgk length interrupted");
-            Thread.currentThread().interrupt();
-            return null;
-        }
+        byte[] lengthData = {
+                NEG_SECURITY_SET_TOTAL_LENGTH,
+                (byte) (pgkLength >> 8),
+                (byte) pgkLength
+        };
 
-        sleep(10);
+        byte[] pgkData = new byte[1 + pgkLength];
+        pgkData[0] = NEG_SECURITY_SET_ALL_DATA;
+        int position = 1;
+        position = putLengthValue(pgkData, position, pBytes);
+        position = putLengthValue(pgkData, position, gBytes);
+        putLengthValue(pgkData, position, kBytes);
 
-        dataOS.reset();
-        dataOS.write(NEG_SECURITY_SET_ALL_DATA);
-
-        int pLength = pBytes.length;
-        int pLen1 = (pLength >> 8) & 0xff;
-        int pLen2 = pLength & 0xff;
-        dataOS.write(pLen1);
-        dataOS.write(pLen2);
-        dataOS.write(pBytes, 0, pLength);
+        return post(false, false, mRequireAck, type, lengthData)
+                .then(posted -> post(false, false, mRequireAck, type, pgkData));
+    }
 
-        int gLength = gBytes.length;
-        int gLen1 = (gLength >> 8) & 0xff;
-        int gLen2 = gLength & 0xff;
-        dataOS.write(gLen1);
-        dataOS.write(gLen2);
-        dataOS.write(gBytes, 0, gLength);
+    private BlufiFuture<Void> postNegotiateSecurityECDH(byte[] keyBytes) {
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
 
-        int kLength = kBytes.length;
-        int kLen1 = (kLength >> 8) & 0xff;
-        int kLen2 = kLength & 0xff;
-        dataOS.write(kLen1);
-        dataOS.write(kLen2);
-        dataOS.write(kBytes, 0, kLength);
+        byte[] data = new byte[1 + keyBytes.length];
+        data[0] = NEG_SECURITY_SET_ECDH_KEY;
+        System.arraycopy(keyBytes, 0, data, 1, keyBytes.length);
+        return post(false, false, mRequireAck, type, data);
+    }
 
-        try {
-            boolean postPGK = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postPGK) {
-                return null;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: PGK interrupted");
-            Thread.currentThread().interrupt();
-            return null;
-        }
+    private BlufiFuture<Void> postNegotiateSecurityResume(byte[] resumeData) {
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
 
-        dataOS.reset();
-        return blufiDH;
+        byte[] data = new byte[1 + resumeData.length];
+        data[0] = NEG_SECURITY_RESUME;
+        System.arraycopy(resumeData, 0, data, 1, resumeData.length);
+        return post(false, false, mRequireAck, type, data);
     }
 
-    private String getPublicValue(BlufiDH espDH) {
-        DHPublicKey publicKey = espDH.getPublicKey();
-        if (publicKey != null) {
-            BigInteger y = publicKey.getY();
-            StringBuilder keySB = new StringBuilder(y.toString(16));
-            int keyStrLength = espDH.getLength() / 8 * 2;
-            while (keySB.length() < keyStrLength) {
-                keySB.insert(0, "0");
-            }
-            return keySB.toString();
-        }
-
-        return null;
+    /**
+     * Put two bytes big-endian length and the value
+     *
+     * @return the position after the value
+     */
+    private int putLengthValue(byte[] dest, int position, byte[] value) {
+        dest[position++] = (byte) (value.length >> 8);
+        dest[position++] = (byte) value.length;
+        System.arraycopy(value, 0, dest, position, value.length);
+        return position + value.length;
     }
 
-    private boolean postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum) {
+    private BlufiFuture<Void> postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted,
+                                              boolean dataChecksum) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_SEC_MODE);
         int data = 0;
         if (dataChecksum) {
@@ -971,277 +2141,243 @@ class BlufiClientImpl implements BlufiParameter {
 
         byte[] postData = {(byte) data};
 
-        try {
-            return post(false, true, mRequireAck, type, postData);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSetSecurity interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
+        return post(false, true, mRequireAck, type, postData);
     }
 
     private class SecurityCallback {
         void onReceiveDevicePublicKey(byte[] keyData) {
-            String keyStr = toHex(keyData);
-            try {
-                BigInteger devicePublicValue = new BigInteger(keyStr, 16);
-                mDevicePublicKeyQueue.add(devicePublicValue);
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "onReceiveDevicePublicKey: NumberFormatException -> " + keyStr);
-                mDevicePublicKeyQueue.add(new BigInteger("0"));
+            // The key agreement takes a while, leave the Bluetooth callback thread
+            mLane.execute(() -> {
+                BlufiFuture<byte[]> future = mDevicePublicKeyFuture;
+                if (future != null) {
+                    mDevicePublicKeyFuture = null;
+                    future.complete(keyData);
+                }
+            });
+        }
+
+        /**
+         * Run on the lane.
+         *
+         * @return true if the error rejected the ECDH key or the ticket and the negotiation falls back
+         */
+        boolean onReceiveError() {
+            BlufiFuture<byte[]> future = mDevicePublicKeyFuture;
+            if (mWaitingOptionalKey && future != null) {
+                // Wake up the negotiation to fall back
+                mDevicePublicKeyFuture = null;
+                future.complete(new byte[0]);
+                return true;
             }
+            return false;
         }
     }
 
-    private void __configure(BlufiConfigureParams params) {
+    private BlufiFuture<Void> __configure(BlufiConfigureParams params) {
         int opMode = params.getOpMode();
+        BlufiFuture<Void> result;
         switch (opMode) {
-            case OP_MODE_NULL: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
-            case OP_MODE_STA: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
-
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
-            case OP_MODE_SOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
-                    return;
-                }
-
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
+            case OP_MODE_NULL:
+            case OP_MODE_STA:
+            case OP_MODE_SOFTAP:
             case OP_MODE_STASOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
-                    return;
+                List<PostMessage> messages = getConfigureMessages(params);
+                if (mPipelinedConfigure) {
+                    int ackWindowSize = mAckWindowSize > 0 ? mAckWindowSize : ACK_WINDOW_SIZE_MAX;
+                    result = post(messages, ackWindowSize, true);
+                } else {
+                    result = BlufiFuture.completed(null);
+                    for (PostMessage message : messages) {
+                        result = result.then(posted -> post(message.encrypt, message.checksum, message.requireAck,
+                                message.type, message.data).failWith(message.failureStatus));
+                    }
                 }
-
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
                 break;
             }
             default: {
-                onPostConfigureParams(BlufiCallback.CODE_CONF_INVALID_OPMODE);
+                result = BlufiFuture.failed(BlufiCallback.CODE_CONF_INVALID_OPMODE);
                 break;
             }
         }
+
+        result.addListener(future -> onPostConfigureParams(future.getStatus()));
+        return result;
     }
 
     private void onPostConfigureParams(final int status) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onPostConfigureParams(mClient, status);
             }
         });
     }
 
-    private boolean postDeviceMode(int deviceMode) {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
-        byte[] data = {(byte) deviceMode};
+    /**
+     * @return the messages of the params in the order they are posted, each with the status if it fails
+     */
+    private List<PostMessage> getConfigureMessages(BlufiConfigureParams params) {
+        List<PostMessage> messages = new ArrayList<>();
+        int opMode = params.getOpMode();
 
-        try {
-            return post(mEncrypted, mChecksum, true, type, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postDeviceMode interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
-    }
+        int modeType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
+        messages.add(new PostMessage(mEncrypted, mChecksum, true, modeType, new byte[]{(byte) opMode},
+                BlufiCallback.CODE_CONF_ERR_SET_OPMODE));
 
-    private boolean postStaWifiInfo(BlufiConfigureParams params) {
-        try {
+        if (opMode == OP_MODE_STA || opMode == OP_MODE_STASOFTAP) {
+            int status = BlufiCallback.CODE_CONF_ERR_POST_STA;
             int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_SSID);
-            byte[] ssidBytes = params.getStaSSIDBytes();
-            if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, ssidBytes)) {
-                return false;
-            }
-            sleep(10);
-
+            messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, ssidType,
+                    params.getStaSSIDBytes(), status));
             int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
-            if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, params.getStaPassword().getBytes())) {
-                return false;
-            }
-            sleep(10);
-
+            messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, pwdType,
+                    params.getStaPassword().getBytes(), status));
             int comfirmType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CONNECT_WIFI);
-            return post(false, false, mRequireAck, comfirmType, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postStaWifiInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+            messages.add(new PostMessage(false, false, mRequireAck, comfirmType, null, status));
         }
-    }
 
-    private boolean postSoftAPInfo(BlufiConfigureParams params) {
-        try {
+        if (opMode == OP_MODE_SOFTAP || opMode == OP_MODE_STASOFTAP) {
+            int status = BlufiCallback.CODE_CONF_ERR_POST_SOFTAP;
             String ssid = params.getSoftAPSSID();
             if (!TextUtils.isEmpty(ssid)) {
                 int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
-                if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, params.getSoftAPSSID().getBytes())) {
-                    return false;
-                }
-                sleep(10);
+                messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, ssidType, ssid.getBytes(), status));
             }
 
             String password = params.getSoftAPPassword();
             if (!TextUtils.isEmpty(password)) {
                 int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
-                if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes())) {
-                    return false;
-                }
-                sleep(10);
+                messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes(),
+                        status));
             }
 
             int channel = params.getSoftAPChannel();
             if (channel > 0) {
                 int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_CHANNEL);
-                if (!post(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{(byte) channel})) {
-                    return false;
-                }
-                sleep(10);
+                messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, channelType,
+                        new byte[]{(byte) channel}, status));
             }
 
             int maxConn = params.getSoftAPMaxConnection();
             if (maxConn > 0) {
-                int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
-                if (!post(mEncrypted, mChecksum, mRequireAck, maxConnType, new byte[]{(byte) maxConn})) {
-                    return false;
-                }
-                sleep(10);
+                int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE,
+                        Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
+                messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, maxConnType,
+                        new byte[]{(byte) maxConn}, status));
             }
 
             int securityType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE);
-            byte[] securityBytes = {(byte) params.getSoftAPSecurity()};
-            return post(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSoftAPInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+            messages.add(new PostMessage(mEncrypted, mChecksum, mRequireAck, securityType,
+                    new byte[]{(byte) params.getSoftAPSecurity()}, status));
         }
+        return messages;
     }
 
-    private void __requestDeviceVersion() {
+    private BlufiFuture<Void> __requestDeviceVersion(BlufiFuture<BlufiVersionResponse> response) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceVersion interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
-
-        if (!request) {
-            onVersionResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
-        }
+        mVersionResponses.expect(response);
+        // The ack of the device tells which responses may answer the request
+        BlufiFuture<Void> request = post(mEncrypted, mChecksum, true, type, null);
+        request.addListener(future -> {
+            if (future.isSuccess()) {
+                mVersionResponses.onRequested(response);
+            } else {
+                mVersionResponses.cancel(response, BlufiCallback.CODE_WRITE_DATA_FAILED);
+                onVersionResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
+            }
+        });
+        return request;
     }
 
     private void onVersionResponse(final int status, final BlufiVersionResponse response) {
         if (status == BlufiCallback.STATUS_SUCCESS) {
             int[] version = response.getVersionValues();
             mDeviceVersion = (version[0] << 8) | version[1];
-        }
-        if (mPreparedRunnable != null) {
-            mPreparedRunnable.run();
-            mPreparedRunnable = null;
-        }
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceVersionResponse(mClient, status, response);
+
+            // Stop generating the key pair of the group which will not be used
+            SpeculativeDH unused = getSecurityVersion() == SECURITY_V2 ? mSpeculativeDH1024 : mSpeculativeDH3072;
+            if (unused != null) {
+                unused.cancel();
+            }
+        }
+        mLane.executeInline(() -> {
+            // The first version response after enabling notifications prepares the gatt
+            if (mConnection.transition(BlufiClient.STATE_NOTIFY_ENABLED, BlufiClient.STATE_VERSION_KNOWN)) {
+                cancelConnectTimer();
+                long prepareNanos = mConnection.getTime(BlufiClient.STATE_NOTIFY_ENABLED) -
+                        mConnection.getTime(BlufiClient.STATE_CONNECTED);
+                if (!mNotificationsKept) {
+                    mPrepareNanos = prepareNanos;
+                } else if (mPrepareNanos >= 0) {
+                    mReconnectSavedNanos = Math.max(mPrepareNanos - prepareNanos, 0);
+                }
+                reportGattPrepared(BlufiCallback.STATUS_SUCCESS, mGatt);
             }
+            deliverCallback(() -> {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onDeviceVersionResponse(mClient, status, response);
+                }
+            });
         });
     }
 
-    private void __requestDeviceStatus() {
+    private BlufiFuture<Void> __requestDeviceStatus(BlufiFuture<BlufiStatusResponse> response) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceStatus interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
-
-        if (!request) {
-            onStatusResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
-        }
+        mStatusResponses.expect(response);
+        BlufiFuture<Void> request = post(mEncrypted, mChecksum, true, type, null);
+        request.addListener(future -> {
+            if (future.isSuccess()) {
+                mStatusResponses.onRequested(response);
+            } else {
+                mStatusResponses.cancel(response, BlufiCallback.CODE_WRITE_DATA_FAILED);
+                onStatusResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
+            }
+        });
+        return request;
     }
 
     private void onStatusResponse(final int status, final BlufiStatusResponse response) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onDeviceStatusResponse(mClient, status, response);
             }
         });
     }
 
-    private void __requestDeviceWifiScan() {
+    private BlufiFuture<Void> __requestDeviceWifiScan(BlufiFuture<List<BlufiScanResult>> response) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_LIST);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, mRequireAck, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceWifiScan interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
-
-        if (!request) {
-            onDeviceScanResult(BlufiCallback.CODE_WRITE_DATA_FAILED, Collections.emptyList());
-        }
+        mScanResponses.expect(response);
+        BlufiFuture<Void> request = post(mEncrypted, mChecksum, true, type, null);
+        request.addListener(future -> {
+            if (future.isSuccess()) {
+                mScanResponses.onRequested(response);
+            } else {
+                mScanResponses.cancel(response, BlufiCallback.CODE_WRITE_DATA_FAILED);
+                onDeviceScanResult(BlufiCallback.CODE_WRITE_DATA_FAILED, Collections.emptyList());
+            }
+        });
+        return request;
     }
 
     private void onDeviceScanResult(final int status, final List<BlufiScanResult> results) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onDeviceScanResult(mClient, status, results);
             }
         });
     }
 
-    private void __postCustomData(byte[] data) {
+    private BlufiFuture<Void> __postCustomData(byte[] data) {
         int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
-        try {
-            boolean suc = post(mEncrypted, mChecksum, mRequireAck, type, data);
-            int status = suc ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_WRITE_DATA_FAILED;
+        BlufiFuture<Void> request = post(mEncrypted, mChecksum, mRequireAck, type, data);
+        request.addListener(future -> {
+            int status = future.isSuccess() ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_WRITE_DATA_FAILED;
             onPostCustomDataResult(status, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post postCustomData interrupted");
-            Thread.currentThread().interrupt();
-        }
+        });
+        return request;
     }
 
     private void onPostCustomDataResult(final int status, final byte[] data) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onPostCustomDataResult(mClient, status, data);
             }
@@ -1249,7 +2385,7 @@ class BlufiClientImpl implements BlufiParameter {
     }
 
     private void onReceiveCustomData(final byte[] data) {
-        mUIHandler.post(() -> {
+        deliverCallback(() -> {
             if (mUserBlufiCallback != null) {
                 int status = BlufiCallback.STATUS_SUCCESS;
                 mUserBlufiCallback.onReceiveCustomData(mClient, status, data);
@@ -1257,47 +2393,48 @@ class BlufiClientImpl implements BlufiParameter {
         });
     }
 
-    private void __requestCloseConnection() {
+    private BlufiFuture<Void> __requestCloseConnection() {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CLOSE_CONNECTION);
-        try {
-            post(false, false, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestCloseConnection interrupted");
-            Thread.currentThread().interrupt();
-        }
+        return post(false, false, false, type, null);
     }
 
-    private abstract static class ThrowableRunnable implements Runnable {
-        @Override
-        public void run() {
-            try {
-                execute();
-            } catch (Exception e) {
-                Log.w(TAG, "ThrowableRunnable: ", e);
-                onError(e);
-            }
-        }
-
-        abstract void execute();
-
-        void onError(Exception e) {
-        }
-    }
+    private static class DHGroup {
+        final BigInteger p;
+        final BigInteger g;
+        final int length;
+        final byte[] pBytes;
+        final byte[] gBytes;
 
-    private void sleep(long timeout) {
-        try {
-            Thread.sleep(timeout);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "sleep: interrupted");
-            Thread.currentThread().interrupt();
+        DHGroup(String pHex, String g, int length) {
+            this.p = new BigInteger(pHex, 16);
+            this.g = new BigInteger(g);
+            this.length = length;
+            this.pBytes = BlufiDH.toUnsignedBytes(this.p, (this.p.bitLength() + 7) / 8);
+            this.gBytes = BlufiDH.toUnsignedBytes(this.g, (this.g.bitLength() + 7) / 8);
         }
     }
 
     private class InnerGattCallback extends BluetoothGattCallback {
 
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            mConnectState = newState;
             mBlufiMTU = -1;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnection.transition(BlufiClient.STATE_CONNECTING, BlufiClient.STATE_CONNECTED);
+            } else {
+                mConnection.disconnect();
+                // Writes in flight and responses will not be reported
+                mLane.executeInline(() -> {
+                    if (mPostTask != null) {
+                        mPostTask.fail();
+                    }
+                    failResponses(BlufiCallback.CODE_WRITE_DATA_FAILED);
+                    if (!mPrepareReported) {
+                        // Such as status 133 of a failed connection, or a link lost during the discovery
+                        Log.w(TAG, "onConnectionStateChange: disconnected before prepared, status " + status);
+                        reportGattPrepared(BlufiCallback.CODE_GATT_CONNECT_FAILED, gatt);
+                    }
+                });
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -1328,6 +2465,13 @@ class BlufiClientImpl implements BlufiParameter {
                 }
 
                 mWriteChar = writeChar;
+                mWriteType = writeChar == null ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT :
+                        writeChar.getWriteType();
+                mWriteNoResponseSupported = writeChar != null && (writeChar.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+                if (!mWriteNoResponseSupported && mWriteWindowSize > 0) {
+                    Log.w(TAG, "onServicesDiscovered: write without response is not supported, write with response");
+                }
                 mNotifyChar = notifyChar;
             }
 
@@ -1347,37 +2491,35 @@ class BlufiClientImpl implements BlufiParameter {
                 } else if (notifyDesc == null) {
                     failedStatus = BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY;
                 } else {
-                    // Write ENABLE_NOTIFICATION_VALUE
-                    notifyDesc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    gatt.writeDescriptor(notifyDesc);
+                    mConnection.transition(BlufiClient.STATE_CONNECTED, BlufiClient.STATE_DISCOVERED);
+                    if (mReconnecting && mNotificationsEnabled &&
+                            gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
+                        // A bonded device keeps the client configuration between connections
+                        mNotificationsKept = true;
+                        if (mConnection.transition(BlufiClient.STATE_DISCOVERED, BlufiClient.STATE_NOTIFY_ENABLED)) {
+                            requestDeviceVersion();
+                        }
+                    } else {
+                        // Write ENABLE_NOTIFICATION_VALUE
+                        notifyDesc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        gatt.writeDescriptor(notifyDesc);
+                    }
                 }
 
                 if (failedStatus != null) {
-                    final int statusCode = failedStatus;
-                    mUIHandler.post(() -> {
-                        mUserBlufiCallback.onGattPrepared(mClient, statusCode, gatt);
-                    });
+                    onGattPrepareFailed(failedStatus, gatt);
                 }
             }
         }
 
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             if (characteristic.equals(mNotifyChar)) {
-                if (mNotifyData == null) {
-                    mNotifyData = new BlufiNotifyData();
-                }
-                byte[] data = characteristic.getValue();
-                if (mPrintDebug) {
-                    Log.i(TAG, "Gatt Notification: " + Arrays.toString(data));
-                }
-                // lt 0 is error, eq 0 is complete, gt 0 is continue
-                int parse = parseNotification(data, mNotifyData);
-                if (parse < 0) {
-                    onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
-                } else if (parse == 0) {
-                    parseBlufiNotifyData(mNotifyData);
-                    mNotifyData = null;
+                // Only copy the value here, the next notification and the write results share this thread,
+                // which never waits for the consumer. A drop is handled by the consumer in order.
+                if (!mNotifications.offer(characteristic.getValue())) {
+                    Log.w(TAG, "onCharacteristicChanged: notification queue is full, drop notification");
                 }
+                scheduleDrainNotifications();
             }
 
             if (mUserGattCallback != null) {
@@ -1390,7 +2532,8 @@ class BlufiClientImpl implements BlufiParameter {
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.w(TAG, "onCharacteristicWrite: status=" + status);
                 }
-                mWriteResultQueue.add(status == BluetoothGatt.GATT_SUCCESS);
+                mLane.executeInline(status == BluetoothGatt.GATT_SUCCESS ? mWriteSucceededRunnable :
+                        mWriteFailedRunnable);
             }
 
             if (mUserGattCallback != null) {
@@ -1416,20 +2559,14 @@ class BlufiClientImpl implements BlufiParameter {
                 BluetoothGattService service = descriptor.getCharacteristic().getService();
                 BluetoothGattCharacteristic notifyChar = descriptor.getCharacteristic();
                 BluetoothGattCharacteristic writeChar = mWriteChar;
-                mUIHandler.post(() -> {
-                    if (mUserBlufiCallback != null) {
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-//                            mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.STATUS_SUCCESS, gatt);
-                            mPreparedRunnable = () -> {
-                                mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.STATUS_SUCCESS, gatt);
-                            };
-                            requestDeviceVersion();
-                        } else {
-                            mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY, gatt);
-                        }
-
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mNotificationsEnabled = true;
+                    if (mConnection.transition(BlufiClient.STATE_DISCOVERED, BlufiClient.STATE_NOTIFY_ENABLED)) {
+                        requestDeviceVersion();
                     }
-                });
+                } else {
+                    onGattPrepareFailed(BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY, gatt);
+                }
             }
 
             if (mUserGattCallback != null) {
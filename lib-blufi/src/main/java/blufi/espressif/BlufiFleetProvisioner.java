@@ -0,0 +1,699 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import blufi.espressif.params.BlufiConfigureParams;
+import blufi.espressif.response.BlufiStatusResponse;
+import blufi.espressif.response.BlufiVersionResponse;
+
+/**
+ * Provision a batch of devices with the same params, a limited number of devices at a time.
+ * <p>
+ * Each device goes through connect, version, negotiate, configure and waiting for the station to connect.
+ * A failed step closes the connection, and the device is tried again from connect after a backoff
+ * until the attempts run out. The result of each device and the throughput of the batch are reported.
+ * <p>
+ * A {@link Pipeline} takes the devices while it runs instead, such as the devices found by a scan.
+ * <p>
+ * The steps run on a {@link Session} of each device. The sessions are {@link BlufiClient}s by default,
+ * give a {@link SessionFactory} to run the provisioner against simulated devices.
+ */
+public class BlufiFleetProvisioner {
+    private static final String TAG = "BlufiFleetProvisioner";
+
+    public static final int STEP_CONNECT = 0;
+    public static final int STEP_VERSION = 1;
+    public static final int STEP_NEGOTIATE = 2;
+    public static final int STEP_CONFIGURE = 3;
+    public static final int STEP_WAIT_STA = 4;
+
+    /**
+     * Android keeps about 7 gatt connections at once, more connections fail or drop each other.
+     */
+    public static final int CONCURRENCY_MAX = 7;
+
+    private static final int CONCURRENCY_DEFAULT = 4;
+    private static final int MAX_ATTEMPTS_DEFAULT = 3;
+    private static final long RETRY_BACKOFF_DEFAULT = 1000L;
+    private static final long RETRY_BACKOFF_MAX_DEFAULT = 8000L;
+    private static final long STEP_TIMEOUT_DEFAULT = 20000L;
+    private static final long STA_CONNECT_TIMEOUT_DEFAULT = 30000L;
+    private static final long STA_STATUS_INTERVAL = 1000L;
+    // How long after its timeout a step is cancelled, the session should have failed it by then
+    private static final long STEP_DEADLINE_GRACE = 1000L;
+
+    /**
+     * The steps of provisioning on one device, each future completes on any thread.
+     * <p>
+     * A step which has not completed shortly after the step timeout is cancelled with
+     * {@link BlufiCallback#CODE_OPERATION_TIMEOUT}, so a session which never completes it does not
+     * keep the slot of its device.
+     */
+    public interface Session {
+        /**
+         * @return the future which succeeds when the gatt is prepared
+         */
+        BlufiFuture<Void> connect();
+
+        BlufiFuture<BlufiVersionResponse> requestDeviceVersion();
+
+        BlufiFuture<Void> negotiateSecurity();
+
+        BlufiFuture<Void> configure(BlufiConfigureParams params);
+
+        BlufiFuture<BlufiStatusResponse> requestDeviceStatus();
+
+        /**
+         * Disconnect and release the session, the pending futures fail.
+         */
+        void close();
+    }
+
+    public interface SessionFactory {
+        /**
+         * @param stepTimeout how long connecting or a request may take, in milliseconds
+         */
+        Session create(BluetoothDevice device, long stepTimeout);
+    }
+
+    public interface Listener {
+        /**
+         * Invoked on a worker thread when a device has succeeded or failed its last attempt, it must not block.
+         */
+        void onDeviceResult(DeviceResult result);
+    }
+
+    public static class DeviceResult {
+        private final BluetoothDevice mDevice;
+        private final int mStatus;
+        private final int mFailedStep;
+        private final int mAttempts;
+        private final long mDuration;
+
+        DeviceResult(BluetoothDevice device, int status, int failedStep, int attempts, long duration) {
+            mDevice = device;
+            mStatus = status;
+            mFailedStep = failedStep;
+            mAttempts = attempts;
+            mDuration = duration;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public boolean isSuccess() {
+            return mStatus == BlufiCallback.STATUS_SUCCESS;
+        }
+
+        /**
+         * @return {@link BlufiCallback#STATUS_SUCCESS} or the error code of the last failed step
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return the STEP constant of the last failed step, -1 if succeeded or cancelled before it started
+         */
+        public int getFailedStep() {
+            return mFailedStep;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return the time from the start of the first attempt to the end of the last one, in milliseconds
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+    }
+
+    public static class Report {
+        private final List<DeviceResult> mResults;
+        private final long mElapsedTime;
+
+        Report(List<DeviceResult> results, long elapsedTime) {
+            mResults = Collections.unmodifiableList(results);
+            mElapsedTime = elapsedTime;
+        }
+
+        /**
+         * @return the results in the order the devices finished
+         */
+        public List<DeviceResult> getResults() {
+            return mResults;
+        }
+
+        public int getSucceededCount() {
+            int count = 0;
+            for (DeviceResult result : mResults) {
+                if (result.isSuccess()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public int getFailedCount() {
+            return mResults.size() - getSucceededCount();
+        }
+
+        /**
+         * @return the time of the batch or the pipeline in milliseconds
+         */
+        public long getElapsedTime() {
+            return mElapsedTime;
+        }
+
+        /**
+         * @return the succeeded devices per minute over the whole batch
+         */
+        public double getDevicesPerMinute() {
+            return mElapsedTime <= 0 ? 0 : getSucceededCount() * 60000.0 / mElapsedTime;
+        }
+    }
+
+    private final SessionFactory mSessionFactory;
+    private final BlufiScheduler mScheduler;
+
+    private volatile int mConcurrency = CONCURRENCY_DEFAULT;
+    private volatile int mMaxAttempts = MAX_ATTEMPTS_DEFAULT;
+    private volatile long mRetryBackoff = RETRY_BACKOFF_DEFAULT;
+    private volatile long mRetryBackoffMax = RETRY_BACKOFF_MAX_DEFAULT;
+    private volatile long mStepTimeout = STEP_TIMEOUT_DEFAULT;
+    private volatile long mStaConnectTimeout = STA_CONNECT_TIMEOUT_DEFAULT;
+    private volatile Listener mListener;
+
+    /**
+     * Create a provisioner which connects the devices with {@link BlufiClient}s.
+     *
+     * @param scheduler the scheduler of the clients and the provisioner, the default one if null
+     */
+    public BlufiFleetProvisioner(Context context, BlufiScheduler scheduler) {
+        this((device, stepTimeout) -> new ClientSession(context, device, scheduler, stepTimeout), scheduler);
+    }
+
+    /**
+     * @param sessionFactory creates the session of each attempt on a device
+     * @param scheduler the scheduler of the provisioner, the default one if null
+     */
+    public BlufiFleetProvisioner(SessionFactory sessionFactory, BlufiScheduler scheduler) {
+        mSessionFactory = sessionFactory;
+        mScheduler = scheduler == null ? BlufiScheduler.getDefault() : scheduler;
+    }
+
+    /**
+     * Set how many devices are provisioned at the same time.
+     *
+     * @param concurrency range is 1 ~ {@link #CONCURRENCY_MAX}, default is 4
+     */
+    public void setConcurrency(int concurrency) {
+        mConcurrency = Math.min(Math.max(concurrency, 1), CONCURRENCY_MAX);
+    }
+
+    /**
+     * @param maxAttempts the attempts of each device including the first one, default is 3
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+    }
+
+    /**
+     * Set the wait before trying a failed device again, it doubles after each attempt.
+     *
+     * @param backoff the wait after the first attempt in milliseconds, default is 1000
+     * @param maxBackoff the longest wait in milliseconds, default is 8000
+     */
+    public void setRetryBackoff(long backoff, long maxBackoff) {
+        mRetryBackoff = Math.max(backoff, 0);
+        mRetryBackoffMax = Math.max(maxBackoff, mRetryBackoff);
+    }
+
+    /**
+     * @param timeout how long connecting or a request of a device may take in milliseconds, default is 20000.
+     *                A step which has not completed a second after it is cancelled
+     */
+    public void setStepTimeout(long timeout) {
+        mStepTimeout = Math.max(timeout, 1);
+    }
+
+    /**
+     * @param timeout how long to wait for the station of a configured device to connect in milliseconds,
+     *                default is 30000. If 0, do not wait
+     */
+    public void setStaConnectTimeout(long timeout) {
+        mStaConnectTimeout = Math.max(timeout, 0);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Provision the devices, the settings are taken when it is called.
+     * Cancelling the future stops the batch, the running attempts are aborted.
+     *
+     * @param devices the devices, each one is provisioned once
+     * @param params the params configured to every device
+     * @return the future of the report, it completes when every device has a result
+     */
+    public BlufiFuture<Report> provision(List<BluetoothDevice> devices, BlufiConfigureParams params) {
+        Batch batch = new Batch(devices, params, false);
+        batch.mFuture.setCanceller(() -> batch.mLane.execute(batch::cancel));
+        batch.mLane.execute(batch::start);
+        return batch.mFuture;
+    }
+
+    /**
+     * Start provisioning devices as they are offered to the returned pipeline, the settings are taken
+     * when it is called.
+     *
+     * @param params the params configured to every device
+     * @param queueCapacity how many offered devices may wait for a free slot
+     */
+    public Pipeline startPipeline(BlufiConfigureParams params, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+        }
+        Batch batch = new Batch(Collections.emptyList(), params, true);
+        Pipeline pipeline = new Pipeline(batch, queueCapacity);
+        batch.mFuture.setCanceller(() -> {
+            pipeline.close();
+            batch.mLane.execute(batch::cancel);
+        });
+        batch.mLane.execute(batch::start);
+        return pipeline;
+    }
+
+    /**
+     * A batch which takes devices while it runs. A device is taken once per pipeline, and only while fewer
+     * than the queue capacity of devices wait for a free slot, so a scan can keep offering the devices
+     * it sees.
+     */
+    public static class Pipeline {
+        private final Batch mBatch;
+        private final int mQueueCapacity;
+        private final Set<String> mAddresses = new HashSet<>();
+        private boolean mClosed = false;
+
+        private Pipeline(Batch batch, int queueCapacity) {
+            mBatch = batch;
+            mQueueCapacity = queueCapacity;
+        }
+
+        /**
+         * Add a device to provision, it may be called from any thread.
+         *
+         * @return false if the device has been taken before, the queue is full or the pipeline is finished
+         */
+        public boolean offer(BluetoothDevice device) {
+            synchronized (mAddresses) {
+                if (mClosed || mAddresses.contains(device.getAddress())) {
+                    return false;
+                }
+                if (mBatch.mWaitingCount.get() >= mQueueCapacity) {
+                    return false;
+                }
+                mAddresses.add(device.getAddress());
+                mBatch.mWaitingCount.incrementAndGet();
+            }
+            mBatch.mLane.execute(() -> mBatch.add(new Job(device)));
+            return true;
+        }
+
+        /**
+         * Take no more devices, the future completes when the taken devices have results.
+         */
+        public void finish() {
+            close();
+            mBatch.mLane.execute(mBatch::closeInput);
+        }
+
+        /**
+         * @return the future of the report, cancelling it stops the pipeline and aborts the running attempts
+         */
+        public BlufiFuture<Report> getFuture() {
+            return mBatch.mFuture;
+        }
+
+        /**
+         * @return how many taken devices wait for a free slot
+         */
+        public int getQueuedCount() {
+            return Math.max(mBatch.mWaitingCount.get(), 0);
+        }
+
+        /**
+         * @return how many devices have been taken
+         */
+        public int getTakenCount() {
+            synchronized (mAddresses) {
+                return mAddresses.size();
+            }
+        }
+
+        private void close() {
+            synchronized (mAddresses) {
+                mClosed = true;
+            }
+        }
+    }
+
+    /**
+     * A device in a batch, only accessed by the tasks of the batch lane but the step, which is set by the
+     * continuations of the attempt.
+     */
+    private static class Job {
+        final BluetoothDevice device;
+        int attempts = 0;
+        long startNanos = -1;
+        volatile int step = STEP_CONNECT;
+        Session session;
+        BlufiFuture<Void> attempt;
+        ScheduledFuture<?> retryTimer;
+
+        Job(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private class Batch {
+        final SerialLane mLane = mScheduler.newLane();
+        final BlufiFuture<Report> mFuture = new BlufiFuture<>();
+
+        final BlufiConfigureParams mParams;
+        final int mConcurrency = BlufiFleetProvisioner.this.mConcurrency;
+        final int mMaxAttempts = BlufiFleetProvisioner.this.mMaxAttempts;
+        final long mRetryBackoff = BlufiFleetProvisioner.this.mRetryBackoff;
+        final long mRetryBackoffMax = BlufiFleetProvisioner.this.mRetryBackoffMax;
+        final long mStepTimeout = BlufiFleetProvisioner.this.mStepTimeout;
+        final long mStaConnectTimeout = BlufiFleetProvisioner.this.mStaConnectTimeout;
+        final Listener mListener = BlufiFleetProvisioner.this.mListener;
+        // The devices which have not started their first attempt
+        final AtomicInteger mWaitingCount = new AtomicInteger(0);
+
+        // The fields below are only accessed by the tasks of mLane
+        final ArrayDeque<Job> mPending = new ArrayDeque<>();
+        final List<Job> mActive = new ArrayList<>();
+        final List<Job> mRetrying = new ArrayList<>();
+        final List<DeviceResult> mResults = new ArrayList<>();
+        final Random mRandom = new Random();
+        long mStartNanos;
+        boolean mCancelled = false;
+        // Whether devices may still be added, the batch does not complete before
+        boolean mOpen;
+
+        Batch(List<BluetoothDevice> devices, BlufiConfigureParams params, boolean open) {
+            mParams = params;
+            mOpen = open;
+            for (BluetoothDevice device : devices) {
+                mPending.add(new Job(device));
+            }
+            mWaitingCount.set(mPending.size());
+        }
+
+        void add(Job job) {
+            if (mCancelled) {
+                mWaitingCount.decrementAndGet();
+                finishJob(job, BlufiCallback.CODE_CANCELLED, -1);
+                return;
+            }
+            mPending.add(job);
+            startJobs();
+        }
+
+        void closeInput() {
+            mOpen = false;
+            startJobs();
+        }
+
+        void start() {
+            mStartNanos = System.nanoTime();
+            startJobs();
+        }
+
+        private void startJobs() {
+            while (!mCancelled && mActive.size() < mConcurrency && !mPending.isEmpty()) {
+                Job job = mPending.poll();
+                if (job.attempts == 0) {
+                    mWaitingCount.decrementAndGet();
+                }
+                mActive.add(job);
+                startAttempt(job);
+            }
+            if (!mOpen && mPending.isEmpty() && mActive.isEmpty() && mRetrying.isEmpty() && !mFuture.isDone()) {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+                mFuture.complete(new Report(new ArrayList<>(mResults), elapsed));
+            }
+        }
+
+        private void startAttempt(Job job) {
+            job.attempts++;
+            if (job.startNanos < 0) {
+                job.startNanos = System.nanoTime();
+            }
+            job.step = STEP_CONNECT;
+            long deadline = mStepTimeout + STEP_DEADLINE_GRACE;
+            BlufiFuture<Void> attempt;
+            try {
+                Session session = mSessionFactory.create(job.device, mStepTimeout);
+                job.session = session;
+                attempt = withDeadline(session.connect(), deadline)
+                        .then(v -> {
+                            job.step = STEP_VERSION;
+                            return withDeadline(session.requestDeviceVersion(), deadline);
+                        })
+                        .then(version -> {
+                            job.step = STEP_NEGOTIATE;
+                            return withDeadline(session.negotiateSecurity(), deadline);
+                        })
+                        .then(v -> {
+                            job.step = STEP_CONFIGURE;
+                            return withDeadline(session.configure(mParams), deadline);
+                        })
+                        .then(v -> {
+                            job.step = STEP_WAIT_STA;
+                            return withDeadline(waitStaConnected(session), mStaConnectTimeout + deadline);
+                        });
+            } catch (RuntimeException e) {
+                Log.w(TAG, "startAttempt: ", e);
+                attempt = BlufiFuture.failed(BlufiCallback.CODE_CATCH_EXCEPTION);
+            }
+            job.attempt = attempt;
+            attempt.addListener(future -> mLane.execute(() -> onAttemptComplete(job, future)));
+        }
+
+        /**
+         * Cancel the step with {@link BlufiCallback#CODE_OPERATION_TIMEOUT} if it is not done in time.
+         */
+        private <T> BlufiFuture<T> withDeadline(BlufiFuture<T> step, long timeout) {
+            ScheduledFuture<?> timer = mScheduler.getTimer().schedule(
+                    () -> step.cancel(BlufiCallback.CODE_OPERATION_TIMEOUT), timeout, TimeUnit.MILLISECONDS);
+            step.addListener(future -> timer.cancel(false));
+            return step;
+        }
+
+        private void onAttemptComplete(Job job, BlufiFuture<Void> attempt) {
+            if (job.session != null) {
+                job.session.close();
+                job.session = null;
+            }
+            job.attempt = null;
+            mActive.remove(job);
+
+            if (attempt.isSuccess()) {
+                finishJob(job, BlufiCallback.STATUS_SUCCESS, -1);
+            } else if (mCancelled) {
+                finishJob(job, BlufiCallback.CODE_CANCELLED, job.step);
+            } else if (job.attempts >= mMaxAttempts) {
+                Log.w(TAG, "onAttemptComplete: " + job.device.getAddress() + " failed at step " + job.step
+                        + ", status " + attempt.getStatus());
+                finishJob(job, attempt.getStatus(), job.step);
+            } else {
+                // Free the slot for another device during the backoff
+                long backoff = getBackoff(job.attempts);
+                Log.w(TAG, "onAttemptComplete: " + job.device.getAddress() + " failed at step " + job.step
+                        + ", status " + attempt.getStatus() + ", retry in " + backoff + "ms");
+                mRetrying.add(job);
+                job.retryTimer = mLane.schedule(() -> {
+                    if (mRetrying.remove(job)) {
+                        job.retryTimer = null;
+                        mPending.addFirst(job);
+                        startJobs();
+                    }
+                }, backoff);
+            }
+            startJobs();
+        }
+
+        /**
+         * @return the doubled backoff of the attempt with a jitter of a quarter, so failed devices do not
+         * retry together
+         */
+        private long getBackoff(int attempts) {
+            long backoff = mRetryBackoff;
+            for (int i = 1; i < attempts && backoff < mRetryBackoffMax; i++) {
+                backoff *= 2;
+            }
+            backoff = Math.min(backoff, mRetryBackoffMax);
+            long jitter = backoff / 4;
+            if (jitter > 0) {
+                backoff += (long) ((mRandom.nextDouble() * 2 - 1) * jitter);
+            }
+            return backoff;
+        }
+
+        private void finishJob(Job job, int status, int failedStep) {
+            long duration = job.startNanos < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.startNanos);
+            DeviceResult result = new DeviceResult(job.device, status, failedStep, job.attempts, duration);
+            mResults.add(result);
+            Listener listener = mListener;
+            if (listener != null) {
+                try {
+                    listener.onDeviceResult(result);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "onDeviceResult: ", e);
+                }
+            }
+        }
+
+        /**
+         * Poll the status of the device until its station is connected.
+         */
+        private BlufiFuture<Void> waitStaConnected(Session session) {
+            BlufiFuture<Void> result = new BlufiFuture<>();
+            if (mStaConnectTimeout <= 0) {
+                result.complete(null);
+                return result;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mStaConnectTimeout);
+            requestStaStatus(session, deadline, result);
+            return result;
+        }
+
+        private void requestStaStatus(Session session, long deadline, BlufiFuture<Void> result) {
+            if (result.isDone()) {
+                return;
+            }
+            session.requestDeviceStatus().addListener(future -> {
+                if (!future.isSuccess()) {
+                    result.fail(future.getStatus());
+                } else if (future.getResult().isStaConnectWifi()) {
+                    result.complete(null);
+                } else if (System.nanoTime() - deadline >= 0) {
+                    result.fail(BlufiCallback.CODE_CONF_STA_CONNECT_TIMEOUT);
+                } else {
+                    mLane.schedule(() -> requestStaStatus(session, deadline, result), STA_STATUS_INTERVAL);
+                }
+            });
+        }
+
+        /**
+         * Fail the devices which have not finished, the running attempts are cancelled.
+         */
+        void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            mOpen = false;
+            Job job;
+            while ((job = mPending.poll()) != null) {
+                if (job.attempts == 0) {
+                    mWaitingCount.decrementAndGet();
+                }
+                finishJob(job, BlufiCallback.CODE_CANCELLED, -1);
+            }
+            for (Job retrying : mRetrying) {
+                if (retrying.retryTimer != null) {
+                    retrying.retryTimer.cancel(false);
+                    retrying.retryTimer = null;
+                }
+                finishJob(retrying, BlufiCallback.CODE_CANCELLED, -1);
+            }
+            mRetrying.clear();
+            for (Job active : new ArrayList<>(mActive)) {
+                if (active.attempt != null) {
+                    active.attempt.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * The session of a {@link BlufiClient}, the callbacks are invoked on the threads of the client.
+     */
+    private static class ClientSession extends BlufiCallback implements Session {
+        private final BlufiClient mClient;
+        private final BlufiFuture<Void> mConnectFuture = new BlufiFuture<>();
+
+        ClientSession(Context context, BluetoothDevice device, BlufiScheduler scheduler, long stepTimeout) {
+            mClient = new BlufiClient(context, device, scheduler);
+            mClient.setCallbackExecutor(Runnable::run);
+            mClient.setBlufiCallback(this);
+            mClient.setConnectTimeout(stepTimeout);
+            mClient.setOperationTimeout(stepTimeout);
+            mClient.setResponseTimeout(stepTimeout);
+        }
+
+        @Override
+        public void onGattPrepared(BlufiClient client, int status, BluetoothGatt gatt) {
+            if (status == STATUS_SUCCESS) {
+                mConnectFuture.complete(null);
+            } else {
+                mConnectFuture.fail(status);
+            }
+        }
+
+        @Override
+        public BlufiFuture<Void> connect() {
+            mConnectFuture.setCanceller(mClient::close);
+            mClient.connect();
+            return mConnectFuture;
+        }
+
+        @Override
+        public BlufiFuture<BlufiVersionResponse> requestDeviceVersion() {
+            return mClient.requestDeviceVersionAsync();
+        }
+
+        @Override
+        public BlufiFuture<Void> negotiateSecurity() {
+            return mClient.negotiateSecurityAsync();
+        }
+
+        @Override
+        public BlufiFuture<Void> configure(BlufiConfigureParams params) {
+            return mClient.configureAsync(params);
+        }
+
+        @Override
+        public BlufiFuture<BlufiStatusResponse> requestDeviceStatus() {
+            return mClient.requestDeviceStatusAsync();
+        }
+
+        @Override
+        public void close() {
+            mConnectFuture.fail(BlufiCallback.CODE_CANCELLED);
+            mClient.close();
+        }
+    }
+}
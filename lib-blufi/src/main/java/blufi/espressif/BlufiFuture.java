@@ -0,0 +1,287 @@
+package blufi.espressif;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of an asynchronous request, it succeeds with a value or fails with a status code of {@link BlufiCallback}.
+ * <p>
+ * Listeners and continuations run on the thread which completes the future, a Bluetooth or a worker thread
+ * of the client, or on the calling thread if the future has completed. They must not block,
+ * use {@link #await(long)} on a thread of your own to wait for the result.
+ */
+public class BlufiFuture<T> {
+    private static final String TAG = "BlufiFuture";
+
+    private static final int STATUS_PENDING = Integer.MIN_VALUE;
+
+    public interface Listener<T> {
+        void onComplete(BlufiFuture<T> future);
+    }
+
+    /**
+     * Start the next step with the value of a succeeded future.
+     */
+    public interface Continuation<T, R> {
+        BlufiFuture<R> apply(T result);
+    }
+
+    /**
+     * Start the next step with a completed future, whether it succeeded or failed.
+     */
+    public interface Completion<T, R> {
+        BlufiFuture<R> apply(BlufiFuture<T> future);
+    }
+
+    private int mStatus = STATUS_PENDING;
+    private T mResult;
+    private List<Listener<T>> mListeners;
+    private volatile Runnable mCanceller;
+
+    public static <T> BlufiFuture<T> completed(T result) {
+        BlufiFuture<T> future = new BlufiFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> BlufiFuture<T> failed(int status) {
+        BlufiFuture<T> future = new BlufiFuture<>();
+        future.fail(status);
+        return future;
+    }
+
+    /**
+     * @return false if the future has completed
+     */
+    boolean complete(T result) {
+        return finish(BlufiCallback.STATUS_SUCCESS, result);
+    }
+
+    /**
+     * @param status an error code which is not {@link BlufiCallback#STATUS_SUCCESS}
+     * @return false if the future has completed
+     */
+    boolean fail(int status) {
+        if (status == BlufiCallback.STATUS_SUCCESS || status == STATUS_PENDING) {
+            throw new IllegalArgumentException("Invalid failure status " + status);
+        }
+        return finish(status, null);
+    }
+
+    private boolean finish(int status, T result) {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (mStatus != STATUS_PENDING) {
+                return false;
+            }
+            mStatus = status;
+            mResult = result;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (Listener<T> listener : listeners) {
+                listener.onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the action which stops the work of this future when it is cancelled.
+     */
+    void setCanceller(Runnable canceller) {
+        mCanceller = canceller;
+    }
+
+    /**
+     * Fail the future with {@link BlufiCallback#CODE_CANCELLED} and stop the request.
+     * The request is removed from the queue of the client, or aborted if it is running.
+     * Cancelling a future returned by {@link #then(Continuation)}, {@link #handle(Completion)} or
+     * {@link #failWith(int)} cancels the step which is running.
+     *
+     * @return false if the future has completed
+     */
+    public boolean cancel() {
+        return cancel(BlufiCallback.CODE_CANCELLED);
+    }
+
+    boolean cancel(int status) {
+        if (!fail(status)) {
+            return false;
+        }
+        Runnable canceller = mCanceller;
+        if (canceller != null) {
+            canceller.run();
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the future with {@link BlufiCallback#CODE_OPERATION_TIMEOUT} if it is not done in time.
+     * Call it on the last future of a chain to set one deadline for all the steps.
+     * The deadline runs on the timer of {@link BlufiScheduler#getDefault()}, which is started if no client
+     * uses it, see {@link #cancelAfter(long, BlufiScheduler)} for the scheduler of a client.
+     *
+     * @param timeout in milliseconds from now
+     * @return this future
+     */
+    public BlufiFuture<T> cancelAfter(long timeout) {
+        return cancelAfter(timeout, BlufiScheduler.getDefault());
+    }
+
+    /**
+     * Like {@link #cancelAfter(long)}, the deadline runs on the timer of the scheduler, such as the one the client
+     * of the future was created with.
+     *
+     * @param timeout in milliseconds from now
+     * @return this future
+     */
+    public BlufiFuture<T> cancelAfter(long timeout, BlufiScheduler scheduler) {
+        ScheduledFuture<?> timer = scheduler.getTimer().schedule(
+                () -> cancel(BlufiCallback.CODE_OPERATION_TIMEOUT), timeout, TimeUnit.MILLISECONDS);
+        addListener(future -> timer.cancel(false));
+        return this;
+    }
+
+    public synchronized boolean isDone() {
+        return mStatus != STATUS_PENDING;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mStatus == BlufiCallback.STATUS_SUCCESS;
+    }
+
+    /**
+     * @return {@link BlufiCallback#STATUS_SUCCESS} or the error code, undefined if not done
+     */
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return the value if succeeded, otherwise null
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * Wait until the future completes, do not call it on the main thread.
+     *
+     * @param timeout in milliseconds, 0 means no timeout
+     * @return true if the future has completed
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            while (mStatus == STATUS_PENDING) {
+                wait();
+            }
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (mStatus == STATUS_PENDING) {
+            long remain = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remain <= 0) {
+                return false;
+            }
+            wait(remain);
+        }
+        return true;
+    }
+
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (mStatus == STATUS_PENDING) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>(2);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * Start the next step when this future succeeds, a failure is passed to the returned future.
+     */
+    public <R> BlufiFuture<R> then(Continuation<? super T, R> continuation) {
+        BlufiFuture<R> next = new BlufiFuture<>();
+        next.setCanceller(() -> cancel(next.getStatus()));
+        addListener(future -> {
+            if (future.isSuccess()) {
+                startNext(next, () -> continuation.apply(future.getResult()));
+            } else {
+                next.fail(future.getStatus());
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Start the next step when this future completes, whether it succeeded or failed.
+     */
+    public <R> BlufiFuture<R> handle(Completion<T, R> completion) {
+        BlufiFuture<R> next = new BlufiFuture<>();
+        next.setCanceller(() -> cancel(next.getStatus()));
+        addListener(future -> startNext(next, () -> completion.apply(future)));
+        return next;
+    }
+
+    /**
+     * @return a future which fails with the status if this one fails
+     */
+    public BlufiFuture<T> failWith(int status) {
+        BlufiFuture<T> next = new BlufiFuture<>();
+        next.setCanceller(() -> cancel(next.getStatus()));
+        addListener(future -> {
+            if (future.isSuccess()) {
+                next.complete(future.getResult());
+            } else {
+                next.fail(status);
+            }
+        });
+        return next;
+    }
+
+    private interface Step<R> {
+        BlufiFuture<R> start();
+    }
+
+    private static <R> void startNext(BlufiFuture<R> next, Step<R> step) {
+        if (next.isDone()) {
+            // Cancelled before the step started
+            return;
+        }
+        BlufiFuture<R> stepFuture;
+        try {
+            stepFuture = step.start();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "startNext: ", e);
+            next.fail(BlufiCallback.CODE_CATCH_EXCEPTION);
+            return;
+        }
+        if (stepFuture == null) {
+            next.complete(null);
+            return;
+        }
+        next.setCanceller(() -> stepFuture.cancel(next.getStatus()));
+        if (next.isDone()) {
+            // Cancelled while the step was starting
+            stepFuture.cancel(next.getStatus());
+        }
+        stepFuture.addListener(future -> {
+            if (future.isSuccess()) {
+                next.complete(future.getResult());
+            } else {
+                next.fail(future.getStatus());
+            }
+        });
+    }
+}
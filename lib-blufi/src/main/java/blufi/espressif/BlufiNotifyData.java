@@ -1,18 +1,42 @@
 package blufi.espressif;
 
-import java.io.ByteArrayOutputStream;
-
+/**
+ * Reassemble the data of a notification message.
+ * <p>
+ * The first fragment declares the total length, the data array is allocated once with that length,
+ * each later fragment declares the length remaining from itself and must match the received offset.
+ */
 class BlufiNotifyData {
+    private static final byte[] EMPTY_DATA = new byte[0];
+
     private int mTypeValue;
     private int mPkgType;
     private int mSubType;
 
     private int mFrameCtrlValue;
 
-    private final ByteArrayOutputStream mDataOS;
+    private volatile int mDataLengthLimit;
+    private byte[] mData;
+    private int mDataOffset;
+
+    BlufiNotifyData(int dataLengthLimit) {
+        mDataLengthLimit = dataLengthLimit;
+    }
+
+    void setDataLengthLimit(int dataLengthLimit) {
+        mDataLengthLimit = dataLengthLimit;
+    }
 
-    BlufiNotifyData() {
-        mDataOS = new ByteArrayOutputStream();
+    /**
+     * Clear the received data and wait for a new message, the array returned by {@link #getDataArray()} is not reused.
+     */
+    void reset() {
+        mTypeValue = 0;
+        mPkgType = 0;
+        mSubType = 0;
+        mFrameCtrlValue = 0;
+        mData = null;
+        mDataOffset = 0;
     }
 
     int getType() {
@@ -47,11 +71,64 @@ class BlufiNotifyData {
         mFrameCtrlValue = frameCtrl;
     }
 
-    void addData(byte[] bytes, int offset) {
-        mDataOS.write(bytes, offset, bytes.length - offset);
+    /**
+     * @return true if some fragments have been received and the message is not complete
+     */
+    boolean isReassembling() {
+        return mData != null && mDataOffset < mData.length;
+    }
+
+    /**
+     * Add a fragment which is followed by other fragments.
+     *
+     * @param remainLength the length declared in the fragment, counting from this fragment to the end
+     * @return false if the fragment does not match the declared length
+     */
+    boolean addFragment(byte[] bytes, int offset, int length, int remainLength) {
+        if (mData == null) {
+            if (remainLength > mDataLengthLimit || length > remainLength) {
+                return false;
+            }
+            mData = new byte[remainLength];
+            mDataOffset = 0;
+        } else if (remainLength != mData.length - mDataOffset || length > remainLength) {
+            return false;
+        }
+
+        System.arraycopy(bytes, offset, mData, mDataOffset, length);
+        mDataOffset += length;
+        return true;
+    }
+
+    /**
+     * Add the last fragment, or the whole data if the message is not fragmented.
+     *
+     * @return false if the data is over the limit or does not fill the declared length
+     */
+    boolean addLastFragment(byte[] bytes, int offset, int length) {
+        if (mData == null) {
+            if (length > mDataLengthLimit) {
+                return false;
+            }
+            if (length == 0) {
+                mData = EMPTY_DATA;
+            } else {
+                mData = new byte[length];
+                System.arraycopy(bytes, offset, mData, 0, length);
+            }
+            mDataOffset = length;
+            return true;
+        }
+
+        if (mDataOffset + length != mData.length) {
+            return false;
+        }
+        System.arraycopy(bytes, offset, mData, mDataOffset, length);
+        mDataOffset += length;
+        return true;
     }
 
     byte[] getDataArray() {
-        return mDataOS.toByteArray();
+        return mData == null ? EMPTY_DATA : mData;
     }
 }
@@ -0,0 +1,109 @@
+package blufi.espressif;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads which run the work of {@link BlufiClient}s: writing frames, handling acks and responses,
+ * key generation and timeouts.
+ * <p>
+ * Each client runs its work in a serial lane on the threads of its scheduler, so the work of one client
+ * keeps its order and never runs concurrently, and no thread belongs to a client. Key generation and
+ * agreement take tens of milliseconds, they run on a few separate key threads and their results are
+ * passed back to the lane, so they never hold up the lanes of other clients. Clients use the default
+ * scheduler unless one is given to {@link BlufiClient#BlufiClient(android.content.Context,
+ * android.bluetooth.BluetoothDevice, BlufiScheduler)}.
+ */
+public class BlufiScheduler {
+    private static final AtomicInteger SCHEDULER_COUNT = new AtomicInteger(0);
+    private static final int KEY_THREADS_MAX = 2;
+
+    private static volatile BlufiScheduler sDefault;
+
+    private final ExecutorService mExecutor;
+    private final ExecutorService mKeyExecutor;
+    private final ScheduledExecutorService mTimer;
+
+    /**
+     * @return the scheduler shared by the clients created without one, its threads are bounded by the processors
+     */
+    public static BlufiScheduler getDefault() {
+        if (sDefault == null) {
+            synchronized (BlufiScheduler.class) {
+                if (sDefault == null) {
+                    sDefault = new BlufiScheduler(Math.max(2, Runtime.getRuntime().availableProcessors()));
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * Create a scheduler with a fixed number of threads, the threads stop when idle for a while.
+     *
+     * @param threads the threads running the work of the clients, a timer thread is added for timeouts
+     *                and at most 2 threads, never more than this count, for keys
+     */
+    public BlufiScheduler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count " + threads);
+        }
+        String name = "Blufi-" + SCHEDULER_COUNT.incrementAndGet();
+        mExecutor = newPool(name + "-", threads);
+        mKeyExecutor = newPool(name + "-key-", Math.min(threads, KEY_THREADS_MAX));
+        mTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stop the threads, the clients using this scheduler must have been closed.
+     * The default scheduler can not be shut down.
+     */
+    public void shutdown() {
+        if (this == sDefault) {
+            throw new IllegalStateException("The default scheduler can not be shut down");
+        }
+        mExecutor.shutdown();
+        mKeyExecutor.shutdown();
+        mTimer.shutdown();
+    }
+
+    private static ExecutorService newPool(String threadPrefix, int threads) {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, threadPrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * @return the threads for key generation and agreement, which must not run on the lanes
+     */
+    ExecutorService getKeyExecutor() {
+        return mKeyExecutor;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return mTimer;
+    }
+
+    SerialLane newLane() {
+        return new SerialLane(mExecutor, mTimer);
+    }
+}
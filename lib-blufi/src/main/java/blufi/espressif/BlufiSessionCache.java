@@ -0,0 +1,119 @@
+package blufi.espressif;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import blufi.espressif.security.BlufiSessionTicket;
+
+/**
+ * The session tickets of negotiated devices, keyed by the device address. A client with a cache set by
+ * {@link BlufiClient#setSessionCache(BlufiSessionCache)} resumes the last session of a device instead of
+ * a new key agreement, and falls back to the key agreement if the device rejects the ticket.
+ * <p>
+ * The cache keeps at most a number of tickets and drops a ticket when it expires or when it has been taken
+ * for a resumption. Tickets are kept in memory only, as plain values: they are never persisted, and are lost
+ * with the process. The cache may be shared by the clients of many devices.
+ */
+public class BlufiSessionCache {
+    public static final int CAPACITY_DEFAULT = 16;
+    public static final long LIFETIME_DEFAULT = 10 * 60 * 1000L;
+
+    private final int mCapacity;
+    private final long mLifetime;
+    private final LinkedHashMap<String, Entry> mTickets;
+
+    public BlufiSessionCache() {
+        this(CAPACITY_DEFAULT, LIFETIME_DEFAULT);
+    }
+
+    /**
+     * @param capacity the most tickets to keep, the least recently used one is dropped for a new one
+     * @param lifetime how long a ticket may be used after its session was negotiated, in milliseconds
+     */
+    public BlufiSessionCache(int capacity, long lifetime) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("Invalid lifetime " + lifetime);
+        }
+        mCapacity = capacity;
+        mLifetime = lifetime;
+        mTickets = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * Drop the ticket of the device, its next session will run the key agreement.
+     */
+    public synchronized void remove(String address) {
+        mTickets.remove(address);
+    }
+
+    public synchronized void clear() {
+        mTickets.clear();
+    }
+
+    /**
+     * @return the number of tickets which have not expired
+     */
+    public synchronized int size() {
+        removeExpired();
+        return mTickets.size();
+    }
+
+    synchronized void put(String address, BlufiSessionTicket ticket) {
+        mTickets.put(address, new Entry(ticket, elapsedRealtime() + mLifetime));
+    }
+
+    /**
+     * Remove the ticket of the device, a ticket resumes one session only.
+     *
+     * @return null if there is no ticket or it has expired
+     */
+    synchronized BlufiSessionTicket take(String address) {
+        Entry entry = mTickets.remove(address);
+        if (entry == null || entry.isExpired(elapsedRealtime())) {
+            return null;
+        }
+        return entry.ticket;
+    }
+
+    /**
+     * @return the clock of the ticket lifetimes in milliseconds
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void removeExpired() {
+        long now = elapsedRealtime();
+        Iterator<Entry> iterator = mTickets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+        final BlufiSessionTicket ticket;
+        final long expireTime;
+
+        Entry(BlufiSessionTicket ticket, long expireTime) {
+            this.ticket = ticket;
+            this.expireTime = expireTime;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expireTime;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package blufi.espressif;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The connection state of a client, changed by compare-and-set transitions from any thread.
+ * <p>
+ * The states of a session follow the order of the constants in {@link BlufiClient}, from
+ * {@link BlufiClient#STATE_CONNECTING} to {@link BlufiClient#STATE_SECURED}. Each transition records
+ * the time the state was entered, a new connection clears the times of the previous session.
+ */
+class ConnectionState {
+    private static final int STATE_COUNT = BlufiClient.STATE_CLOSED + 1;
+
+    private final AtomicInteger mState = new AtomicInteger(BlufiClient.STATE_IDLE);
+    private final AtomicLongArray mTimes = new AtomicLongArray(STATE_COUNT);
+
+    ConnectionState() {
+        for (int i = 0; i < STATE_COUNT; i++) {
+            mTimes.set(i, -1);
+        }
+        mTimes.set(BlufiClient.STATE_IDLE, SystemClock.elapsedRealtimeNanos());
+    }
+
+    int get() {
+        return mState.get();
+    }
+
+    boolean isClosed() {
+        return mState.get() == BlufiClient.STATE_CLOSED;
+    }
+
+    /**
+     * @return whether the gatt is connected, whatever the phase of the session
+     */
+    boolean isConnected() {
+        int state = mState.get();
+        return state >= BlufiClient.STATE_CONNECTED && state <= BlufiClient.STATE_SECURED;
+    }
+
+    /**
+     * @return the time in {@link SystemClock#elapsedRealtimeNanos()} the state was entered, -1 if not in this session
+     */
+    long getTime(int state) {
+        if (state < 0 || state >= STATE_COUNT) {
+            return -1;
+        }
+        return mTimes.get(state);
+    }
+
+    /**
+     * Change the state if it is the expected one.
+     *
+     * @return false if the state is not the expected one
+     */
+    boolean transition(int expect, int state) {
+        if (!mState.compareAndSet(expect, state)) {
+            return false;
+        }
+        mTimes.set(state, SystemClock.elapsedRealtimeNanos());
+        return true;
+    }
+
+    /**
+     * Start a new session from any state but closed.
+     *
+     * @return false if closed
+     */
+    boolean startConnecting() {
+        while (true) {
+            int state = mState.get();
+            if (state == BlufiClient.STATE_CLOSED) {
+                return false;
+            }
+            if (mState.compareAndSet(state, BlufiClient.STATE_CONNECTING)) {
+                resetTimes();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Start a new session after a disconnection.
+     *
+     * @return false if not disconnected
+     */
+    boolean startReconnecting() {
+        if (!mState.compareAndSet(BlufiClient.STATE_DISCONNECTED, BlufiClient.STATE_CONNECTING)) {
+            return false;
+        }
+        resetTimes();
+        return true;
+    }
+
+    private void resetTimes() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (int i = BlufiClient.STATE_CONNECTED; i < BlufiClient.STATE_CLOSED; i++) {
+            mTimes.set(i, -1);
+        }
+        mTimes.set(BlufiClient.STATE_CONNECTING, now);
+    }
+
+    /**
+     * Move forward to the state from any connected state before it, the state never moves back.
+     *
+     * @return false if not connected or the state has been reached
+     */
+    boolean advance(int state) {
+        while (true) {
+            int current = mState.get();
+            if (current < BlufiClient.STATE_CONNECTED || current >= state) {
+                return false;
+            }
+            if (transition(current, state)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * End the session unless closed.
+     *
+     * @return false if disconnected or closed
+     */
+    boolean disconnect() {
+        while (true) {
+            int current = mState.get();
+            if (current == BlufiClient.STATE_DISCONNECTED || current == BlufiClient.STATE_CLOSED) {
+                return false;
+            }
+            if (transition(current, BlufiClient.STATE_DISCONNECTED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return false if closed
+     */
+    boolean close() {
+        int previous = mState.getAndSet(BlufiClient.STATE_CLOSED);
+        if (previous == BlufiClient.STATE_CLOSED) {
+            return false;
+        }
+        mTimes.set(BlufiClient.STATE_CLOSED, SystemClock.elapsedRealtimeNanos());
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package blufi.espressif;
+
+import blufi.espressif.security.BlufiCRC;
+
+/**
+ * Writes Blufi frames into reusable buffers.
+ * <p>
+ * BluetoothGattCharacteristic takes the whole array as the written value, so one buffer is kept
+ * for each frame length. A returned frame stays valid until the next frame of the same length is encoded.
+ */
+class FrameEncoder {
+    static final int HEADER_LENGTH = 4;
+    static final int TOTAL_LENGTH_LENGTH = 2;
+    static final int CHECKSUM_LENGTH = 2;
+
+    static final int DATA_LENGTH_MAX = 0xff;
+    private static final int FRAME_LENGTH_MAX = HEADER_LENGTH + DATA_LENGTH_MAX + CHECKSUM_LENGTH;
+
+    private static final int[] NON_DATA_CHECKSUM = new int[256];
+
+    static {
+        for (int sequence = 0; sequence < NON_DATA_CHECKSUM.length; sequence++) {
+            NON_DATA_CHECKSUM[sequence] = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, 0});
+        }
+    }
+
+    private final byte[][] mFramePool = new byte[FRAME_LENGTH_MAX + 1][];
+
+    /**
+     * Encode a frame without data, the checksum comes from the precomputed table.
+     */
+    byte[] encodeNonData(int type, int frameCtrl, int sequence, boolean checksum) {
+        byte[] frame = obtain(checksum ? HEADER_LENGTH + CHECKSUM_LENGTH : HEADER_LENGTH);
+        frame[0] = (byte) type;
+        frame[1] = (byte) frameCtrl;
+        frame[2] = (byte) sequence;
+        frame[3] = 0;
+        if (checksum) {
+            int crc = NON_DATA_CHECKSUM[sequence & 0xff];
+            frame[4] = (byte) crc;
+            frame[5] = (byte) (crc >> 8);
+        }
+        return frame;
+    }
+
+    /**
+     * Encode a frame carrying {@code length} bytes of {@code data} from {@code offset}.
+     *
+     * @param totalLength the remaining length written before the data of a fragment, -1 if not a fragment
+     */
+    byte[] encode(int type, int frameCtrl, int sequence, byte[] data, int offset, int length, int totalLength,
+                  boolean checksum) {
+        int dataLength = totalLength >= 0 ? length + TOTAL_LENGTH_LENGTH : length;
+        if (dataLength > DATA_LENGTH_MAX) {
+            throw new IllegalArgumentException("Frame data length " + dataLength + " exceeds " + DATA_LENGTH_MAX);
+        }
+        int frameLength = HEADER_LENGTH + dataLength + (checksum ? CHECKSUM_LENGTH : 0);
+        byte[] frame = obtain(frameLength);
+        frame[0] = (byte) type;
+        frame[1] = (byte) frameCtrl;
+        frame[2] = (byte) sequence;
+        frame[3] = (byte) dataLength;
+
+        int position = HEADER_LENGTH;
+        if (totalLength >= 0) {
+            frame[position++] = (byte) totalLength;
+            frame[position++] = (byte) (totalLength >> 8);
+        }
+        System.arraycopy(data, offset, frame, position, length);
+
+        if (checksum) {
+            // Sequence and data length are followed by the data, so one pass covers all of them
+            int crc = BlufiCRC.calcCRC(0, frame, 2, 2 + dataLength);
+            int checksumPosition = HEADER_LENGTH + dataLength;
+            frame[checksumPosition] = (byte) crc;
+            frame[checksumPosition + 1] = (byte) (crc >> 8);
+        }
+        return frame;
+    }
+
+    private byte[] obtain(int frameLength) {
+        byte[] frame = mFramePool[frameLength];
+        if (frame == null) {
+            frame = new byte[frameLength];
+            mFramePool[frameLength] = frame;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,114 @@
+package blufi.espressif;
+
+/**
+ * Read the fields of a received frame in place, one instance can be reused for every frame.
+ */
+class FrameView {
+    private byte[] mFrame;
+    private int mOffset;
+    private int mLength;
+
+    FrameView wrap(byte[] frame) {
+        return wrap(frame, 0, frame.length);
+    }
+
+    FrameView wrap(byte[] frame, int offset, int length) {
+        mFrame = frame;
+        mOffset = offset;
+        mLength = length;
+        return this;
+    }
+
+    void clear() {
+        mFrame = null;
+        mOffset = 0;
+        mLength = 0;
+    }
+
+    byte[] array() {
+        return mFrame;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    private int getByte(int index) {
+        return mFrame[mOffset + index] & 0xff;
+    }
+
+    int getType() {
+        return getByte(0);
+    }
+
+    int getPkgType() {
+        return getType() & 0b11;
+    }
+
+    int getSubType() {
+        return (getType() & 0b11111100) >> 2;
+    }
+
+    int getFrameCtrl() {
+        return getByte(1);
+    }
+
+    boolean isEncrypted() {
+        return FrameCtrlData.isEncrypted(getFrameCtrl());
+    }
+
+    boolean isChecksum() {
+        return FrameCtrlData.isChecksum(getFrameCtrl());
+    }
+
+    boolean isAckRequirement() {
+        return FrameCtrlData.isAckRequirement(getFrameCtrl());
+    }
+
+    boolean hasFrag() {
+        return FrameCtrlData.hasFrag(getFrameCtrl());
+    }
+
+    int getSequence() {
+        return getByte(2);
+    }
+
+    int getDataLength() {
+        return getByte(3);
+    }
+
+    /**
+     * @return the offset of data in {@link #array()}
+     */
+    int getDataOffset() {
+        return mOffset + FrameEncoder.HEADER_LENGTH;
+    }
+
+    /**
+     * @return the offset of sequence in {@link #array()}, the sequence and data length are checked by the checksum
+     */
+    int getSequenceOffset() {
+        return mOffset + 2;
+    }
+
+    /**
+     * @return the little-endian checksum at the end of the frame
+     */
+    int getChecksum() {
+        return getByte(mLength - 2) | (getByte(mLength - 1) << 8);
+    }
+
+    /**
+     * @return true if the frame holds the header, data and checksum its header declares
+     */
+    boolean isComplete() {
+        if (mLength < FrameEncoder.HEADER_LENGTH) {
+            return false;
+        }
+        int expectLength = FrameEncoder.HEADER_LENGTH + getDataLength();
+        if (isChecksum()) {
+            expectLength += FrameEncoder.CHECKSUM_LENGTH;
+        }
+        return mLength >= expectLength;
+    }
+}
@@ -0,0 +1,144 @@
+package blufi.espressif;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of notification values from the Bluetooth thread to the consumer of a client.
+ * <p>
+ * One producer thread offers and one consumer thread peeks and releases at a time. A value is copied into
+ * the slot of its position, a slot is allocated once and only grows for a longer value, so the queue
+ * does not allocate in steady use. The producer never waits, a value offered while the queue is full is
+ * dropped and counted. Each slot records the count of drops before its value, so the consumer knows where
+ * values are missing.
+ */
+class NotificationRing {
+    private static final int SLOT_SIZE_MIN = 32;
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final long[] mDropCounts;
+    private final int mMask;
+
+    // The next position to offer, written by the producer
+    private final AtomicLong mTail = new AtomicLong(0);
+    // The next position to consume, written by the consumer
+    private final AtomicLong mHead = new AtomicLong(0);
+
+    private final AtomicLong mDropCount = new AtomicLong(0);
+    private final AtomicInteger mPeakSize = new AtomicInteger(0);
+
+    /**
+     * @param capacity a power of two
+     */
+    NotificationRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mSlots = new byte[capacity][];
+        mLengths = new int[capacity];
+        mDropCounts = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Copy the value into the queue without waiting, called by the producer.
+     *
+     * @param value the value, null is queued as a null value
+     * @return false if the queue is full and the value is dropped
+     */
+    boolean offer(byte[] value) {
+        long tail = mTail.get();
+        int size = (int) (tail - mHead.get());
+        if (size >= mSlots.length) {
+            mDropCount.incrementAndGet();
+            return false;
+        }
+
+        int index = (int) tail & mMask;
+        mDropCounts[index] = mDropCount.get();
+        if (value == null) {
+            mLengths[index] = -1;
+        } else {
+            byte[] slot = mSlots[index];
+            if (slot == null || slot.length < value.length) {
+                slot = new byte[Math.max(value.length, SLOT_SIZE_MIN)];
+                mSlots[index] = slot;
+            }
+            System.arraycopy(value, 0, slot, 0, value.length);
+            mLengths[index] = value.length;
+        }
+        // Publish the slot to the consumer
+        mTail.lazySet(tail + 1);
+
+        size++;
+        int peak = mPeakSize.get();
+        if (size > peak) {
+            mPeakSize.compareAndSet(peak, size);
+        }
+        return true;
+    }
+
+    /**
+     * Get the slot of the oldest value, called by the consumer. The slot is owned by the consumer until
+     * {@link #release()}, the value may be modified in place.
+     *
+     * @return the index of the slot, -1 if the queue is empty
+     */
+    int peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return -1;
+        }
+        return (int) head & mMask;
+    }
+
+    /**
+     * @return the slot array of the index, null if the value is null
+     */
+    byte[] getSlot(int index) {
+        return mLengths[index] < 0 ? null : mSlots[index];
+    }
+
+    /**
+     * @return the length of the value in the slot
+     */
+    int getLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * @return the count of values dropped before the value in the slot was offered,
+     * values are missing before it if the count is greater than the one of the previous slot
+     */
+    long getDropCount(int index) {
+        return mDropCounts[index];
+    }
+
+    /**
+     * Give the slot of the oldest value back to the producer, called by the consumer.
+     */
+    void release() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) Math.max(mTail.get() - mHead.get(), 0);
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    int getPeakSize() {
+        return mPeakSize.get();
+    }
+
+    long getDropCount() {
+        return mDropCount.get();
+    }
+}
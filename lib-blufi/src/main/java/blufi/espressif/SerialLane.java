@@ -0,0 +1,114 @@
+package blufi.espressif;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run the tasks of one client one by one without a dedicated thread.
+ * <p>
+ * Tasks must not block. A task submitted by {@link #execute(Runnable)} runs on the shared executor,
+ * a task submitted by {@link #executeInline(Runnable)} runs on the calling thread if the lane is idle,
+ * so Bluetooth callbacks drive the lane without switching threads. Then any task of the lane may run on the
+ * Bluetooth binder thread, so long computations such as key agreement run on
+ * {@link BlufiScheduler#getKeyExecutor()} and pass their results back to the lane.
+ * Lanes are created by {@link BlufiScheduler}.
+ * <p>
+ * A drain runs at most {@link #TASKS_PER_DRAIN} tasks, then yields the thread to the other lanes of the
+ * executor and continues on the executor.
+ */
+class SerialLane {
+    private static final String TAG = "SerialLane";
+
+    static final int TASKS_PER_DRAIN = 64;
+
+    private final Executor mExecutor;
+    private final ScheduledExecutorService mTimer;
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning = false;
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    SerialLane(Executor executor, ScheduledExecutorService timer) {
+        mExecutor = executor;
+        mTimer = timer;
+    }
+
+    /**
+     * Run the task on the executor after the tasks submitted before.
+     *
+     * @throws RejectedExecutionException if the executor rejects the lane, the task is not run
+     */
+    void execute(Runnable task) {
+        synchronized (this) {
+            mTasks.add(task);
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mTasks.removeLastOccurrence(task);
+                // The next execute submits the lane again for the tasks queued meanwhile
+                mRunning = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run the task on the calling thread if the lane is idle, otherwise after the running tasks.
+     */
+    void executeInline(Runnable task) {
+        synchronized (this) {
+            mTasks.add(task);
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        drain();
+    }
+
+    /**
+     * Run the task on the lane after the delay.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return mTimer.schedule(() -> execute(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        for (int count = 0; count < TASKS_PER_DRAIN; count++) {
+            Runnable task;
+            synchronized (this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.w(TAG, "drain: ", e);
+            }
+        }
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "drain: ", e);
+            synchronized (this) {
+                mRunning = false;
+            }
+        }
+    }
+}
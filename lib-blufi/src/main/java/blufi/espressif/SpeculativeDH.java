@@ -0,0 +1,65 @@
+package blufi.espressif;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.math.BigInteger;
+import java.util.concurrent.Executor;
+
+import blufi.espressif.security.BlufiDH;
+
+/**
+ * Generate a DH key pair in background before the negotiation needs it.
+ */
+class SpeculativeDH {
+    private static final String TAG = "SpeculativeDH";
+
+    private final BlufiFuture<BlufiDH> mFuture = new BlufiFuture<>();
+    private final long mStartNanos;
+    private volatile long mEndNanos = -1;
+    private volatile boolean mCancelled = false;
+
+    SpeculativeDH(Executor executor, final BigInteger p, final BigInteger g, final int length,
+                  final int privateKeyLength) {
+        mStartNanos = SystemClock.elapsedRealtimeNanos();
+        executor.execute(() -> {
+            BlufiDH blufiDH = null;
+            if (!mCancelled) {
+                try {
+                    blufiDH = new BlufiDH(p, g, length, privateKeyLength);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "generate: ", e);
+                } finally {
+                    mEndNanos = SystemClock.elapsedRealtimeNanos();
+                }
+            }
+            mFuture.complete(blufiDH);
+        });
+    }
+
+    /**
+     * Skip the generation if it has not started.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return the future of the key pair, its value is null if generation failed or was cancelled.
+     * It completes on the generator thread.
+     */
+    BlufiFuture<BlufiDH> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * @return the part of generation time which ran before the request
+     */
+    long getHiddenNanos(long requestNanos) {
+        long end = mEndNanos;
+        if (end < 0 || end > requestNanos) {
+            end = requestNanos;
+        }
+        return Math.max(0, end - mStartNanos);
+    }
+}
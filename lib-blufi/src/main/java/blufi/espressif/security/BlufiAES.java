@@ -10,6 +10,7 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -85,6 +86,34 @@ public class BlufiAES {
         return mEncryptCipher.update(content);
     }
 
+    /**
+     * Encrypt into the output array, the input and output may be the same array.
+     *
+     * @return the number of bytes stored in output, -1 if failed
+     */
+    public int encrypt(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        try {
+            return mEncryptCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+        } catch (ShortBufferException | BadPaddingException | IllegalBlockSizeException e) {
+            Log.e(TAG, "encrypt: ", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Continue the encryption into the output array, the input and output may be the same array.
+     *
+     * @return the number of bytes stored in output, -1 if failed
+     */
+    public int encryptUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        try {
+            return mEncryptCipher.update(input, inputOffset, inputLen, output, outputOffset);
+        } catch (ShortBufferException e) {
+            Log.e(TAG, "encryptUpdate: ", e);
+        }
+        return -1;
+    }
+
     public byte[] decrypt(byte[] content) {
         try {
             return mDecryptCipher.doFinal(content);
@@ -98,4 +127,32 @@ public class BlufiAES {
     public byte[] decryptUpdate(byte[] content) {
         return mDecryptCipher.update(content);
     }
+
+    /**
+     * Decrypt into the output array, the input and output may be the same array.
+     *
+     * @return the number of bytes stored in output, -1 if failed
+     */
+    public int decrypt(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        try {
+            return mDecryptCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+        } catch (ShortBufferException | BadPaddingException | IllegalBlockSizeException e) {
+            Log.e(TAG, "decrypt: ", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Continue the decryption into the output array, the input and output may be the same array.
+     *
+     * @return the number of bytes stored in output, -1 if failed
+     */
+    public int decryptUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        try {
+            return mDecryptCipher.update(input, inputOffset, inputLen, output, outputOffset);
+        } catch (ShortBufferException e) {
+            Log.e(TAG, "decryptUpdate: ", e);
+        }
+        return -1;
+    }
 }
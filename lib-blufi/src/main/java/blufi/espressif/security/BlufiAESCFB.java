@@ -0,0 +1,128 @@
+package blufi.espressif.security;
+
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES/CFB/NoPadding whose IV is the frame sequence followed by 15 zero bytes.
+ * <p>
+ * One keyed block cipher is kept for the session and the CFB keystream is computed from it,
+ * the first keystream block of each of the 256 IVs is cached after first use.
+ * An instance is not thread safe, use one for each direction.
+ */
+public class BlufiAESCFB {
+    private static final String TAG = "BlufiAESCFB";
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int IV_COUNT = 256;
+
+    private final Cipher mBlockCipher;
+    private final byte[][] mIVKeystream;
+    private final byte[] mKeystream;
+    private final byte[] mFeedback;
+
+    public BlufiAESCFB(byte[] key) {
+        mBlockCipher = createBlockCipher(key);
+        mIVKeystream = new byte[IV_COUNT][];
+        mKeystream = new byte[BLOCK_SIZE];
+        mFeedback = new byte[BLOCK_SIZE];
+    }
+
+    private static Cipher createBlockCipher(byte[] key) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return cipher;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+            Log.e(TAG, "createBlockCipher: ", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Encrypt into the output array, the input and output may be the same array.
+     *
+     * @param sequence the frame sequence which is the first byte of IV
+     * @return false if failed
+     */
+    public boolean encrypt(int sequence, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        if (!loadIVKeystream(sequence)) {
+            return false;
+        }
+        for (int position = 0; position < inputLen; position += BLOCK_SIZE) {
+            int blockLen = Math.min(BLOCK_SIZE, inputLen - position);
+            for (int i = 0; i < blockLen; i++) {
+                output[outputOffset + position + i] = (byte) (input[inputOffset + position + i] ^ mKeystream[i]);
+            }
+            if (position + BLOCK_SIZE < inputLen && !encryptBlock(output, outputOffset + position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decrypt into the output array, the input and output may be the same array.
+     *
+     * @param sequence the frame sequence which is the first byte of IV
+     * @return false if failed
+     */
+    public boolean decrypt(int sequence, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        if (!loadIVKeystream(sequence)) {
+            return false;
+        }
+        for (int position = 0; position < inputLen; position += BLOCK_SIZE) {
+            int blockLen = Math.min(BLOCK_SIZE, inputLen - position);
+            boolean hasNext = position + BLOCK_SIZE < inputLen;
+            if (hasNext) {
+                // Keep the cipher block, the output may overwrite it
+                System.arraycopy(input, inputOffset + position, mFeedback, 0, BLOCK_SIZE);
+            }
+            for (int i = 0; i < blockLen; i++) {
+                output[outputOffset + position + i] = (byte) (input[inputOffset + position + i] ^ mKeystream[i]);
+            }
+            if (hasNext && !encryptBlock(mFeedback, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean loadIVKeystream(int sequence) {
+        if (mBlockCipher == null) {
+            return false;
+        }
+        int index = sequence & 0xff;
+        byte[] ivKeystream = mIVKeystream[index];
+        if (ivKeystream == null) {
+            byte[] iv = new byte[BLOCK_SIZE];
+            iv[0] = (byte) index;
+            if (!encryptBlock(iv, 0)) {
+                return false;
+            }
+            ivKeystream = mKeystream.clone();
+            mIVKeystream[index] = ivKeystream;
+        } else {
+            System.arraycopy(ivKeystream, 0, mKeystream, 0, BLOCK_SIZE);
+        }
+        return true;
+    }
+
+    private boolean encryptBlock(byte[] block, int offset) {
+        try {
+            mBlockCipher.update(block, offset, BLOCK_SIZE, mKeystream, 0);
+            return true;
+        } catch (ShortBufferException e) {
+            Log.e(TAG, "encryptBlock: ", e);
+        }
+        return false;
+    }
+}
@@ -1,6 +1,13 @@
 package blufi.espressif.security;
 
+import java.nio.ByteBuffer;
+
 public class BlufiCRC {
+    /**
+     * Data shorter than this is processed one byte per table lookup, longer data eight bytes per round.
+     */
+    private static final int SLICING_THRESHOLD = 64;
+
     private static final int[] CRC_TB = {
             0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7, 0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef,
             0x1231, 0x0210, 0x3273, 0x2252, 0x52b5, 0x4294, 0x72f7, 0x62d6, 0x9339, 0x8318, 0xb37b, 0xa35a, 0xd3bd, 0xc39c, 0xf3ff, 0xe3de,
@@ -20,10 +27,74 @@ public class BlufiCRC {
             0xef1f, 0xff3e, 0xcf5d, 0xdf7c, 0xaf9b, 0xbfba, 0x8fd9, 0x9ff8, 0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
     };
 
+    /**
+     * CRC_TB_SLICING[k][v] is the CRC contribution of byte v followed by k zero bytes.
+     */
+    private static final int[][] CRC_TB_SLICING = new int[8][256];
+
+    static {
+        System.arraycopy(CRC_TB, 0, CRC_TB_SLICING[0], 0, 256);
+        for (int k = 1; k < 8; k++) {
+            for (int v = 0; v < 256; v++) {
+                int prev = CRC_TB_SLICING[k - 1][v];
+                CRC_TB_SLICING[k][v] = (CRC_TB[prev >> 8] ^ (prev << 8)) & 0xffff;
+            }
+        }
+    }
+
     public static int calcCRC(int crc, byte[] pByte) {
+        return calcCRC(crc, pByte, 0, pByte.length);
+    }
+
+    public static int calcCRC(int crc, byte[] pByte, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > pByte.length - length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", size=" + pByte.length);
+        }
+        crc = (~crc) & 0xffff;
+        int i = offset;
+        int end = offset + length;
+        if (length >= SLICING_THRESHOLD) {
+            final int[] t0 = CRC_TB_SLICING[0];
+            final int[] t1 = CRC_TB_SLICING[1];
+            final int[] t2 = CRC_TB_SLICING[2];
+            final int[] t3 = CRC_TB_SLICING[3];
+            final int[] t4 = CRC_TB_SLICING[4];
+            final int[] t5 = CRC_TB_SLICING[5];
+            final int[] t6 = CRC_TB_SLICING[6];
+            final int[] t7 = CRC_TB_SLICING[7];
+            for (int sliceEnd = end - 7; i < sliceEnd; i += 8) {
+                // The 16 bit crc folds into the first two bytes, the other six only add their table values
+                crc = t7[((crc >> 8) ^ pByte[i]) & 0xff]
+                        ^ t6[(crc ^ pByte[i + 1]) & 0xff]
+                        ^ t5[pByte[i + 2] & 0xff]
+                        ^ t4[pByte[i + 3] & 0xff]
+                        ^ t3[pByte[i + 4] & 0xff]
+                        ^ t2[pByte[i + 5] & 0xff]
+                        ^ t1[pByte[i + 6] & 0xff]
+                        ^ t0[pByte[i + 7] & 0xff];
+            }
+        }
+        for (; i < end; i++) {
+            crc = CRC_TB[(crc >> 8) ^ (pByte[i] & 0xff)] ^ (crc << 8);
+            crc &= 0xffff;
+        }
+        return (~crc) & 0xffff;
+    }
+
+    /**
+     * Calculate the bytes from position to limit of the buffer, the position will be advanced to the limit.
+     */
+    public static int calcCRC(int crc, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            crc = calcCRC(crc, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+            return crc;
+        }
+
         crc = (~crc) & 0xffff;
-        for (byte aPByte : pByte) {
-            crc = CRC_TB[(crc >> 8) ^ (aPByte & 0xff)] ^ (crc << 8);
+        for (int i = 0; i < length; i++) {
+            crc = CRC_TB[(crc >> 8) ^ (buffer.get() & 0xff)] ^ (crc << 8);
             crc &= 0xffff;
         }
         return (~crc) & 0xffff;
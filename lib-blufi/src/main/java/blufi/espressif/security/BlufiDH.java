@@ -25,6 +25,7 @@ public class BlufiDH {
     private final BigInteger mP;
     private final BigInteger mG;
     private final int mLength;
+    private final int mPrivateKeyLength;
 
     private final DHPrivateKey mPrivateKey;
     private final DHPublicKey mPublicKey;
@@ -32,10 +33,20 @@ public class BlufiDH {
     private byte[] mSecretKey;
 
     public BlufiDH(BigInteger p, BigInteger g, int length) {
+        this(p, g, length, length);
+    }
+
+    /**
+     * @param length the bit length of p
+     * @param privateKeyLength the bit length of the private value, shorter value makes key generation
+     *                         and agreement faster
+     */
+    public BlufiDH(BigInteger p, BigInteger g, int length, int privateKeyLength) {
         mP = p;
         mG = g;
         mLength = length;
-        Key[] keys = generateKeys(p, g, length);
+        mPrivateKeyLength = privateKeyLength;
+        Key[] keys = generateKeys(p, g, privateKeyLength);
         assert keys != null;
         mPrivateKey = (DHPrivateKey) keys[0];
         mPublicKey = (DHPublicKey) keys[1];
@@ -43,6 +54,7 @@ public class BlufiDH {
 
     public BlufiDH(int length) {
         mLength = length;
+        mPrivateKeyLength = length;
         Key[] keys = generateKeys(length);
         assert keys != null;
         mPrivateKey = (DHPrivateKey) keys[0];
@@ -63,6 +75,10 @@ public class BlufiDH {
         return mLength;
     }
 
+    public int getPrivateKeyLength() {
+        return mPrivateKeyLength;
+    }
+
     public DHPrivateKey getPrivateKey() {
         return mPrivateKey;
     }
@@ -75,6 +91,39 @@ public class BlufiDH {
         return mSecretKey;
     }
 
+    /**
+     * Get the public value as big-endian bytes, padded to length / 8 bytes
+     *
+     * @return null if the key pair was not generated
+     */
+    public byte[] getPublicKeyBytes() {
+        if (mPublicKey == null) {
+            return null;
+        }
+        return toUnsignedBytes(mPublicKey.getY(), mLength / 8);
+    }
+
+    /**
+     * Convert a non-negative value to big-endian bytes of fixed length
+     */
+    public static byte[] toUnsignedBytes(BigInteger value, int length) {
+        if (value.signum() < 0 || value.bitLength() > length * 8) {
+            throw new IllegalArgumentException("Value does not fit in " + length + " bytes");
+        }
+        byte[] bytes = value.toByteArray();
+        if (bytes.length == length) {
+            return bytes;
+        }
+        byte[] result = new byte[length];
+        if (bytes.length > length) {
+            // Drop the leading sign byte
+            System.arraycopy(bytes, bytes.length - length, result, 0, length);
+        } else {
+            System.arraycopy(bytes, 0, result, length - bytes.length, bytes.length);
+        }
+        return result;
+    }
+
     public void generateSecretKey(BigInteger y) {
         try {
             DHPublicKeySpec pbks = new DHPublicKeySpec(y, mP, mG);
@@ -109,11 +158,11 @@ public class BlufiDH {
         }
     }
 
-    private static Key[] generateKeys(BigInteger p, BigInteger g, int length) {
+    private static Key[] generateKeys(BigInteger p, BigInteger g, int privateKeyLength) {
         try {
             // Use the values to generate a key pair
             KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            DHParameterSpec dhSpec = new DHParameterSpec(p, g, length);
+            DHParameterSpec dhSpec = new DHParameterSpec(p, g, privateKeyLength);
             keyGen.initialize(dhSpec);
             KeyPair keypair = keyGen.generateKeyPair();
 
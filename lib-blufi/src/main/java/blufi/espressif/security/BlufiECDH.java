@@ -0,0 +1,133 @@
+package blufi.espressif.security;
+
+import android.util.Log;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * ECDH key agreement on the P-256 curve, public keys are exchanged as 65 bytes uncompressed points.
+ */
+public class BlufiECDH {
+    private static final String TAG = "BlufiECDH";
+
+    private static final String CURVE = "secp256r1";
+    private static final int FIELD_SIZE = 32;
+    public static final int PUBLIC_KEY_LENGTH = 1 + FIELD_SIZE * 2;
+    private static final byte POINT_UNCOMPRESSED = 0x04;
+
+    private final ECPrivateKey mPrivateKey;
+    private final ECPublicKey mPublicKey;
+
+    private byte[] mSecretKey;
+
+    public BlufiECDH() {
+        KeyPair keyPair = generateKeys();
+        if (keyPair == null) {
+            mPrivateKey = null;
+            mPublicKey = null;
+        } else {
+            mPrivateKey = (ECPrivateKey) keyPair.getPrivate();
+            mPublicKey = (ECPublicKey) keyPair.getPublic();
+        }
+    }
+
+    public ECPrivateKey getPrivateKey() {
+        return mPrivateKey;
+    }
+
+    public ECPublicKey getPublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * @return the 32 bytes x coordinate of the shared point, null if not generated
+     */
+    public byte[] getSecretKey() {
+        return mSecretKey;
+    }
+
+    /**
+     * Get the public key as an uncompressed point, 0x04 followed by big-endian x and y
+     *
+     * @return null if the key pair was not generated
+     */
+    public byte[] getPublicKeyBytes() {
+        if (mPublicKey == null) {
+            return null;
+        }
+        ECPoint point = mPublicKey.getW();
+        byte[] result = new byte[PUBLIC_KEY_LENGTH];
+        result[0] = POINT_UNCOMPRESSED;
+        byte[] x = BlufiDH.toUnsignedBytes(point.getAffineX(), FIELD_SIZE);
+        byte[] y = BlufiDH.toUnsignedBytes(point.getAffineY(), FIELD_SIZE);
+        System.arraycopy(x, 0, result, 1, FIELD_SIZE);
+        System.arraycopy(y, 0, result, 1 + FIELD_SIZE, FIELD_SIZE);
+        return result;
+    }
+
+    /**
+     * Generate the secret key with the uncompressed point of the other party
+     *
+     * @return false if the point is invalid or the agreement failed
+     */
+    public boolean generateSecretKey(byte[] publicKeyBytes) {
+        if (mPrivateKey == null) {
+            return false;
+        }
+        if (publicKeyBytes == null || publicKeyBytes.length != PUBLIC_KEY_LENGTH
+                || publicKeyBytes[0] != POINT_UNCOMPRESSED) {
+            Log.w(TAG, "generateSecretKey: invalid public key");
+            return false;
+        }
+        byte[] xBytes = new byte[FIELD_SIZE];
+        byte[] yBytes = new byte[FIELD_SIZE];
+        System.arraycopy(publicKeyBytes, 1, xBytes, 0, FIELD_SIZE);
+        System.arraycopy(publicKeyBytes, 1 + FIELD_SIZE, yBytes, 0, FIELD_SIZE);
+        ECPoint point = new ECPoint(new BigInteger(1, xBytes), new BigInteger(1, yBytes));
+
+        try {
+            ECParameterSpec params = mPublicKey.getParams();
+            KeyFactory keyFact = KeyFactory.getInstance("EC");
+            PublicKey publicKey = keyFact.generatePublic(new ECPublicKeySpec(point, params));
+
+            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            ka.init(mPrivateKey);
+            ka.doPhase(publicKey, true);
+
+            byte[] secret = ka.generateSecret();
+            if (secret.length != FIELD_SIZE) {
+                secret = BlufiDH.toUnsignedBytes(new BigInteger(1, secret), FIELD_SIZE);
+            }
+            mSecretKey = secret;
+            return true;
+        } catch (GeneralSecurityException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, e);
+            return false;
+        }
+    }
+
+    private static KeyPair generateKeys() {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(new ECGenParameterSpec(CURVE));
+            return keyGen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, e);
+
+            return null;
+        }
+    }
+}
@@ -2,9 +2,13 @@ package blufi.espressif.security;
 
 import android.util.Log;
 
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 public class BlufiHash {
     public static byte[] getMD5Bytes(byte[] data) {
         try {
@@ -29,4 +33,22 @@ public class BlufiHash {
 
         return null;
     }
+
+    /**
+     * @return the HMAC-SHA256 of the data parts in order
+     */
+    public static byte[] getHmacSHA256Bytes(byte[] key, byte[]... data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            for (byte[] part : data) {
+                mac.update(part);
+            }
+            return mac.doFinal();
+        } catch (NoSuchAlgorithmException | InvalidKeyException | IllegalArgumentException e) {
+            Log.e("BlufiHash", "getHmacSHA256Bytes error", e);
+        }
+
+        return null;
+    }
 }
@@ -0,0 +1,108 @@
+package blufi.espressif.security;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The resumption secret of a negotiated session, a later session resumes it with a short proof exchange
+ * instead of a new key agreement.
+ * <p>
+ * Both sides derive the ticket from the secret key of the session. The client sends the ticket id,
+ * its nonce and a proof of the resumption secret. The device answers with its nonce and its proof,
+ * and both sides derive the secret key of the new session from the resumption secret and the nonces.
+ */
+public class BlufiSessionTicket {
+    public static final int ID_LENGTH = 16;
+    public static final int NONCE_LENGTH = 16;
+    public static final int PROOF_LENGTH = 32;
+    public static final int SECRET_LENGTH = 32;
+
+    private static final byte[] LABEL_RESUME = label("blufi_resume");
+    private static final byte[] LABEL_TICKET = label("blufi_ticket");
+    private static final byte[] LABEL_CLIENT = label("blufi_resume_client");
+    private static final byte[] LABEL_DEVICE = label("blufi_resume_device");
+    private static final byte[] LABEL_KEY = label("blufi_resume_key");
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] mId;
+    private final byte[] mSecret;
+
+    public BlufiSessionTicket(byte[] id, byte[] secret) {
+        if (id.length != ID_LENGTH || secret.length != SECRET_LENGTH) {
+            throw new IllegalArgumentException("Invalid ticket");
+        }
+        mId = id;
+        mSecret = secret;
+    }
+
+    /**
+     * Derive the ticket of a session.
+     *
+     * @return null if the derivation failed
+     */
+    public static BlufiSessionTicket fromSecretKey(byte[] secretKey) {
+        byte[] secret = BlufiHash.getHmacSHA256Bytes(secretKey, LABEL_RESUME);
+        if (secret == null) {
+            return null;
+        }
+        byte[] idHash = BlufiHash.getHmacSHA256Bytes(secret, LABEL_TICKET);
+        if (idHash == null) {
+            return null;
+        }
+        return new BlufiSessionTicket(Arrays.copyOf(idHash, ID_LENGTH), secret);
+    }
+
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    public byte[] getId() {
+        return mId;
+    }
+
+    public byte[] getSecret() {
+        return mSecret;
+    }
+
+    /**
+     * @return the ticket id, the client nonce and the client proof
+     */
+    public byte[] getResumeData(byte[] clientNonce) {
+        byte[] proof = BlufiHash.getHmacSHA256Bytes(mSecret, LABEL_CLIENT, mId, clientNonce);
+        if (proof == null) {
+            return null;
+        }
+        byte[] data = new byte[ID_LENGTH + NONCE_LENGTH + PROOF_LENGTH];
+        System.arraycopy(mId, 0, data, 0, ID_LENGTH);
+        System.arraycopy(clientNonce, 0, data, ID_LENGTH, NONCE_LENGTH);
+        System.arraycopy(proof, 0, data, ID_LENGTH + NONCE_LENGTH, PROOF_LENGTH);
+        return data;
+    }
+
+    /**
+     * Verify the answer of the device and derive the secret key of the resumed session.
+     *
+     * @param deviceData the device nonce and the device proof
+     * @return the secret key, null if the answer is invalid
+     */
+    public byte[] resume(byte[] clientNonce, byte[] deviceData) {
+        if (deviceData == null || deviceData.length != NONCE_LENGTH + PROOF_LENGTH) {
+            return null;
+        }
+        byte[] deviceNonce = Arrays.copyOf(deviceData, NONCE_LENGTH);
+        byte[] deviceProof = Arrays.copyOfRange(deviceData, NONCE_LENGTH, deviceData.length);
+        byte[] expectProof = BlufiHash.getHmacSHA256Bytes(mSecret, LABEL_DEVICE, clientNonce, deviceNonce);
+        if (expectProof == null || !MessageDigest.isEqual(expectProof, deviceProof)) {
+            return null;
+        }
+        return BlufiHash.getHmacSHA256Bytes(mSecret, LABEL_KEY, clientNonce, deviceNonce);
+    }
+
+    private static byte[] label(String label) {
+        return label.getBytes();
+    }
+}
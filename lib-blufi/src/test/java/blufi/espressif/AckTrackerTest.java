@@ -0,0 +1,94 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AckTrackerTest {
+    @Test
+    public void anAckReleasesItsFrameAndTheFramesBefore() {
+        AckTracker tracker = new AckTracker();
+        for (int sequence = 10; sequence < 15; sequence++) {
+            assertTrue(tracker.add(sequence, 1000 + sequence));
+        }
+
+        assertEquals(3, tracker.acknowledge(12));
+        assertEquals(2, tracker.size());
+        assertEquals(13, tracker.oldest());
+        assertEquals(2, tracker.acknowledge(14));
+        assertTrue(tracker.isEmpty());
+        assertEquals(-1, tracker.oldest());
+    }
+
+    @Test
+    public void ignoresStaleAcks() {
+        AckTracker tracker = new AckTracker();
+        tracker.add(1, 100);
+        tracker.add(2, 100);
+        assertEquals(1, tracker.acknowledge(1));
+
+        assertEquals(0, tracker.acknowledge(1));
+        assertEquals(0, tracker.acknowledge(3));
+        assertEquals(0, tracker.acknowledge(-1));
+        assertEquals(0, tracker.acknowledge(256));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void tracksSequencesAcrossTheWrap() {
+        AckTracker tracker = new AckTracker();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(tracker.add(252 + i, 0));
+        }
+
+        assertEquals(252, tracker.oldest());
+        assertEquals(5, tracker.acknowledge(0));
+        assertEquals(1, tracker.oldest());
+        assertEquals(3, tracker.acknowledge(3));
+        assertTrue(tracker.isEmpty());
+    }
+
+    @Test
+    public void rejectsAnOutstandingSequenceAndAFullWindow() {
+        AckTracker tracker = new AckTracker();
+        assertTrue(tracker.add(7, 0));
+        assertFalse(tracker.add(7, 0));
+        assertFalse(tracker.add(7 + 256, 0));
+
+        tracker.clear();
+        for (int i = 0; i < AckTracker.WINDOW_MAX; i++) {
+            assertTrue(tracker.add(i, 0));
+        }
+        assertFalse(tracker.add(AckTracker.WINDOW_MAX, 0));
+        tracker.acknowledge(0);
+        assertTrue(tracker.add(AckTracker.WINDOW_MAX, 0));
+    }
+
+    @Test
+    public void reportsTheEarliestOutstandingDeadline() {
+        AckTracker tracker = new AckTracker();
+        assertEquals(-1, tracker.earliestDeadline());
+        tracker.add(1, 300);
+        tracker.add(2, 100);
+        tracker.add(3, 200);
+
+        assertEquals(100, tracker.earliestDeadline());
+        tracker.acknowledge(2);
+        assertEquals(200, tracker.earliestDeadline());
+    }
+
+    @Test
+    public void clearForgetsTheOutstandingSequences() {
+        AckTracker tracker = new AckTracker();
+        tracker.add(5, 0);
+        tracker.add(6, 0);
+        tracker.clear();
+
+        assertTrue(tracker.isEmpty());
+        assertEquals(0, tracker.acknowledge(6));
+        assertTrue(tracker.add(5, 0));
+        assertEquals(5, tracker.oldest());
+    }
+}
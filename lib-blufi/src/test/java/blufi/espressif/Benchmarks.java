@@ -0,0 +1,122 @@
+package blufi.espressif;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Helpers of the benchmarks, which are skipped unless the tests run with {@code -Pblufi.benchmark=true}.
+ * <p>
+ * The benchmarks measure on the JVM of the build machine, so their numbers compare two paths of the same run
+ * rather than predict the time on a phone.
+ */
+public final class Benchmarks {
+    private static final int ROUNDS = 7;
+
+    /**
+     * Written by the measured tasks so the JIT keeps their results.
+     */
+    public static volatile long sink;
+
+    private Benchmarks() {
+    }
+
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Pblufi.benchmark=true", Boolean.getBoolean("blufi.benchmark"));
+    }
+
+    /**
+     * Run the task in warm up rounds and measured rounds.
+     *
+     * @return the median nanoseconds of one of the {@code operations} a round of the task runs
+     */
+    public static double measure(int operations, Runnable task) {
+        for (int i = 0; i < ROUNDS; i++) {
+            task.run();
+        }
+        long[] rounds = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            rounds[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(rounds);
+        return (double) rounds[ROUNDS / 2] / operations;
+    }
+
+    /**
+     * Like {@link #measure(int, Runnable)}, with the CPU time of the calling thread instead of the wall time.
+     */
+    public static double measureCpu(int operations, Runnable task) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("No thread CPU time", threads.isCurrentThreadCpuTimeSupported());
+        for (int i = 0; i < ROUNDS; i++) {
+            task.run();
+        }
+        long[] rounds = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = threads.getCurrentThreadCpuTime();
+            task.run();
+            rounds[i] = threads.getCurrentThreadCpuTime() - start;
+        }
+        Arrays.sort(rounds);
+        return (double) rounds[ROUNDS / 2] / operations;
+    }
+
+    /**
+     * Like {@link #measure(int, Runnable)}, with the bytes the calling thread allocates instead of the time.
+     */
+    public static double measureAllocation(int operations, Runnable task) {
+        com.sun.management.ThreadMXBean threads = getAllocationBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < ROUNDS; i++) {
+            task.run();
+        }
+        long[] rounds = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = threads.getThreadAllocatedBytes(thread);
+            task.run();
+            rounds[i] = threads.getThreadAllocatedBytes(thread) - start;
+        }
+        Arrays.sort(rounds);
+        return (double) rounds[ROUNDS / 2] / operations;
+    }
+
+    /**
+     * @return the bytes the live threads whose names start with one of the prefixes have allocated, for paths
+     * which hop threads
+     */
+    public static long allocatedBytesOfThreads(String... namePrefixes) {
+        com.sun.management.ThreadMXBean threads = getAllocationBean();
+        Thread[] live = new Thread[Thread.activeCount() * 2 + 16];
+        int count = Thread.enumerate(live);
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            for (String prefix : namePrefixes) {
+                if (live[i].getName().startsWith(prefix)) {
+                    sum += Math.max(threads.getThreadAllocatedBytes(live[i].getId()), 0);
+                    break;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("No thread allocation counters", threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        return (com.sun.management.ThreadMXBean) threads;
+    }
+
+    public static void report(String name, double nanosPerOperation) {
+        report(name, nanosPerOperation, "ns/op");
+    }
+
+    public static void report(String name, double value, String unit) {
+        System.out.println(String.format(Locale.ENGLISH, "%-48s %12.1f %s", name, value, unit));
+    }
+}
@@ -0,0 +1,808 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import blufi.espressif.params.BlufiConfigureParams;
+import blufi.espressif.params.BlufiParameter;
+import blufi.espressif.response.BlufiScanResult;
+import blufi.espressif.response.BlufiStatusResponse;
+import blufi.espressif.response.BlufiVersionResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drive a client against {@link FakeBlufiDevice} through the gatt callbacks.
+ */
+public class BlufiClientTest {
+    private FakeBlufiDevice mDevice;
+    private RecordingCallback mCallback;
+    private BlufiClient mClient;
+
+    @Before
+    public void setUp() {
+        mDevice = new FakeBlufiDevice("24:0A:C4:00:00:01");
+        mCallback = new RecordingCallback();
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.close();
+        }
+        mDevice.shutdown();
+    }
+
+    private void connect() throws InterruptedException {
+        mClient = mCallback.newClient(mDevice);
+        mClient.connect();
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        assertEquals(BlufiClient.STATE_VERSION_KNOWN, mClient.getConnectionState());
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static <T> T await(BlufiFuture<T> future) throws InterruptedException {
+        assertTrue("Future not done", future.await(RecordingCallback.WAIT_TIMEOUT));
+        assertEquals("Future status", BlufiCallback.STATUS_SUCCESS, future.getStatus());
+        return future.getResult();
+    }
+
+    @Test
+    public void reportsAFailedConnection() throws InterruptedException {
+        mDevice.connectStatus = FakeBlufiDevice.GATT_ERROR;
+        mClient = mCallback.newClient(mDevice);
+        mClient.connect();
+
+        assertEquals(BlufiCallback.CODE_GATT_CONNECT_FAILED, (int) RecordingCallback.take(mCallback.prepared));
+        assertEquals(BlufiClient.STATE_DISCONNECTED, mClient.getConnectionState());
+    }
+
+    @Test
+    public void reportsNoTimeForAStateNotEnteredInThisSession() throws InterruptedException {
+        connect();
+
+        assertTrue(mClient.getConnectionStateTime(BlufiClient.STATE_CONNECTED) >= 0);
+        assertTrue(mClient.getConnectionStateTime(BlufiClient.STATE_VERSION_KNOWN) >= 0);
+        assertEquals(-1, mClient.getConnectionStateTime(BlufiClient.STATE_SECURED));
+        assertEquals(-1, mClient.getConnectionStateTime(BlufiClient.STATE_DISCONNECTED));
+        assertEquals(-1, mClient.getConnectionStateTime(BlufiClient.STATE_CLOSED));
+    }
+
+    @Test
+    public void reportsALinkLostDuringTheDiscovery() throws InterruptedException {
+        mDevice.disconnectOnDiscover = true;
+        mClient = mCallback.newClient(mDevice);
+        mClient.connect();
+
+        assertEquals(BlufiCallback.CODE_GATT_CONNECT_FAILED, (int) RecordingCallback.take(mCallback.prepared));
+    }
+
+    @Test
+    public void reportsTheConnectTimeoutOnce() throws InterruptedException {
+        mDevice.silent = true;
+        mClient = mCallback.newClient(mDevice);
+        mClient.setConnectTimeout(200);
+        mClient.connect();
+
+        assertEquals(BlufiCallback.CODE_GATT_CONNECT_TIMEOUT, (int) RecordingCallback.take(mCallback.prepared));
+        // The disconnect of the timeout is not reported as another failure
+        assertNull(mCallback.prepared.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aLinkLostAfterPreparedIsNotReportedAsPrepareFailure() throws InterruptedException {
+        connect();
+        mDevice.dropConnection(FakeBlufiDevice.GATT_CONN_TIMEOUT);
+
+        assertNull(mCallback.prepared.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(BlufiClient.STATE_DISCONNECTED, mClient.getConnectionState());
+    }
+
+    private void awaitDisconnected() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RecordingCallback.WAIT_TIMEOUT;
+        while (mClient.getConnectionState() != BlufiClient.STATE_DISCONNECTED) {
+            assertTrue("Not disconnected", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void reconnectsWithANewGattAfterALinkLoss() throws InterruptedException {
+        connect();
+        mDevice.dropConnection(FakeBlufiDevice.GATT_ERROR);
+        awaitDisconnected();
+        mClient.reconnect();
+
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        // The old gatt is closed and not reconnected with auto connect
+        assertEquals(0, mDevice.gattConnectCount.get());
+        assertEquals(2, mDevice.connectGattCount.get());
+        assertEquals(1, mDevice.closeCount.get());
+        assertEquals(2, mDevice.discoverCount.get());
+        assertEquals(2, mDevice.descriptorWriteCount.get());
+        assertEquals(-1, mClient.getReconnectSavedTime());
+    }
+
+    @Test
+    public void reconnectKeepsTheNotificationsOfABondedDevice() throws InterruptedException {
+        mDevice.bonded = true;
+        connect();
+        mDevice.dropConnection(FakeBlufiDevice.GATT_CONN_TIMEOUT);
+        awaitDisconnected();
+        mClient.reconnect();
+
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        assertEquals(1, mDevice.descriptorWriteCount.get());
+        assertTrue(mClient.getReconnectSavedTime() >= 0);
+        byte[] data = randomData(100);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+    }
+
+    @Test
+    public void reconnectConnectsIfTheClientHasNotConnected() throws InterruptedException {
+        mDevice.bonded = true;
+        mClient = mCallback.newClient(mDevice);
+        mClient.reconnect();
+
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        assertEquals(1, mDevice.descriptorWriteCount.get());
+    }
+
+    private static <T> void awaitFailure(int status, BlufiFuture<T> future) throws InterruptedException {
+        assertTrue("Future not done", future.await(RecordingCallback.WAIT_TIMEOUT));
+        assertEquals("Future status", status, future.getStatus());
+    }
+
+    @Test
+    public void theOperationTimeoutFailsAnOperationOfASilentDeviceAndRunsTheNext() throws InterruptedException {
+        connect();
+        mClient.setOperationTimeout(200);
+        mDevice.silent = true;
+        BlufiFuture<Void> negotiated = mClient.negotiateSecurityAsync();
+        // The silent device still completes the writes, a post without acks succeeds
+        BlufiFuture<Void> posted = mClient.postCustomDataAsync(randomData(10));
+        awaitFailure(BlufiCallback.CODE_OPERATION_TIMEOUT, negotiated);
+        await(posted);
+        // The callback reports the failure of the aborted step
+        assertTrue(RecordingCallback.take(mCallback.negotiated) != BlufiCallback.STATUS_SUCCESS);
+    }
+
+    @Test
+    public void theResponseTimeoutFailsARequestOfASilentDeviceAndRunsTheNext() throws InterruptedException {
+        connect();
+        mClient.setResponseTimeout(200);
+        mDevice.silent = true;
+        long start = System.nanoTime();
+        BlufiFuture<BlufiStatusResponse> requested = mClient.requestDeviceStatusAsync();
+        BlufiFuture<Void> posted = mClient.postCustomDataAsync(randomData(10));
+        awaitFailure(BlufiCallback.CODE_RESPONSE_TIMEOUT, requested);
+        await(posted);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        // Without waiting for the ack timeout of 5 seconds of the request
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 2000);
+    }
+
+    @Test
+    public void cancellingAQueuedRequestRemovesItAndCancellingARunningOneRunsTheNext() throws InterruptedException {
+        connect();
+        mDevice.silent = true;
+        BlufiFuture<Void> negotiated = mClient.negotiateSecurityAsync();
+        BlufiFuture<BlufiVersionResponse> queued = mClient.requestDeviceVersionAsync();
+        BlufiFuture<Void> posted = mClient.postCustomDataAsync(randomData(10));
+        assertTrue(queued.cancel());
+        assertTrue(negotiated.cancel());
+
+        await(posted);
+        assertEquals(BlufiCallback.CODE_CANCELLED, negotiated.getStatus());
+        assertEquals(BlufiCallback.CODE_CANCELLED, queued.getStatus());
+        assertFalse(queued.cancel());
+    }
+
+    @Test
+    public void cancelAfterCountsTheWaitInTheQueueOnTheSchedulerOfTheClient() throws InterruptedException {
+        BlufiScheduler scheduler = new BlufiScheduler(1);
+        try {
+            mClient = new BlufiClient(null, mDevice.device, scheduler);
+            mClient.setCallbackExecutor(Runnable::run);
+            mClient.setBlufiCallback(mCallback);
+            mClient.connect();
+            assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+            mDevice.silent = true;
+            mClient.setOperationTimeout(300);
+            BlufiFuture<Void> negotiated = mClient.negotiateSecurityAsync();
+            // Queued behind the negotiation until it times out after 300ms
+            BlufiFuture<BlufiStatusResponse> requested = mClient.requestDeviceStatusAsync().cancelAfter(100, scheduler);
+
+            awaitFailure(BlufiCallback.CODE_OPERATION_TIMEOUT, requested);
+            assertFalse(negotiated.isDone());
+            awaitFailure(BlufiCallback.CODE_OPERATION_TIMEOUT, negotiated);
+        } finally {
+            mClient.close();
+            mClient = null;
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void aTimedOutStatusRequestDiscardsItsLateResponse() throws InterruptedException {
+        connect();
+        mClient.setResponseTimeout(100);
+        mDevice.answerDelayMillis = 300;
+        awaitFailure(BlufiCallback.CODE_RESPONSE_TIMEOUT, mClient.requestDeviceStatusAsync());
+
+        // Requested before the late response arrives, the device answers it after the late one
+        mDevice.answerDelayMillis = 0;
+        mClient.setResponseTimeout(RecordingCallback.WAIT_TIMEOUT);
+        BlufiStatusResponse status = await(mClient.requestDeviceStatusAsync());
+        assertEquals(2, status.getSoftAPConnectionCount());
+        status = await(mClient.requestDeviceStatusAsync());
+        assertEquals(3, status.getSoftAPConnectionCount());
+    }
+
+    @Test
+    public void aTimedOutVersionRequestDiscardsItsLateResponse() throws InterruptedException {
+        connect();
+        mClient.setResponseTimeout(100);
+        mDevice.answerDelayMillis = 300;
+        awaitFailure(BlufiCallback.CODE_RESPONSE_TIMEOUT, mClient.requestDeviceVersionAsync());
+
+        mDevice.answerDelayMillis = 0;
+        mDevice.versionMinor = 5;
+        mClient.setResponseTimeout(RecordingCallback.WAIT_TIMEOUT);
+        BlufiVersionResponse version = await(mClient.requestDeviceVersionAsync());
+        assertArrayEquals(new int[]{1, 5}, version.getVersionValues());
+    }
+
+    @Test
+    public void aTimedOutScanRequestDiscardsItsLateResponse() throws InterruptedException {
+        connect();
+        mClient.setResponseTimeout(100);
+        mDevice.answerDelayMillis = 300;
+        awaitFailure(BlufiCallback.CODE_RESPONSE_TIMEOUT, mClient.requestDeviceWifiScanAsync());
+
+        mDevice.answerDelayMillis = 0;
+        mClient.setResponseTimeout(RecordingCallback.WAIT_TIMEOUT);
+        List<BlufiScanResult> results = await(mClient.requestDeviceWifiScanAsync());
+        assertEquals(3, results.size());
+        assertEquals("AP-2-0", results.get(0).getSsid());
+    }
+
+    @Test
+    public void aCancelledRequestDiscardsItsLateResponse() throws InterruptedException {
+        connect();
+        mDevice.answerDelayMillis = 200;
+        BlufiFuture<BlufiStatusResponse> cancelled = mClient.requestDeviceStatusAsync();
+        Thread.sleep(50);
+        assertTrue(cancelled.cancel());
+
+        mDevice.answerDelayMillis = 0;
+        assertEquals(2, await(mClient.requestDeviceStatusAsync()).getSoftAPConnectionCount());
+    }
+
+    @Test
+    public void theStatusReportAfterConnectingDoesNotAnswerARequest() throws InterruptedException {
+        connect();
+        BlufiConfigureParams params = new BlufiConfigureParams();
+        params.setOpMode(BlufiParameter.OP_MODE_STA);
+        params.setStaSSIDBytes("Station".getBytes());
+        params.setStaPassword("password");
+        BlufiFuture<Void> configured = mClient.configureAsync(params);
+        BlufiFuture<BlufiStatusResponse> requested = mClient.requestDeviceStatusAsync();
+        await(configured);
+
+        // The device reports 1 on its own after the connect request, then answers the request with 2
+        assertEquals(2, await(requested).getSoftAPConnectionCount());
+        assertEquals(Arrays.asList(1, 2), mCallback.takeStatusReports(2));
+    }
+
+    @Test
+    public void postsFragmentedDataInOrder() throws InterruptedException {
+        connect();
+        byte[] data = randomData(600);
+        await(mClient.postCustomDataAsync(data));
+
+        FakeBlufiDevice.Message message = mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA);
+        assertNotNull(message);
+        assertArrayEquals(data, message.data);
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+        // A 20 bytes package without checksum carries 14 bytes of a fragment, the first frame requested the version
+        assertEquals(1 + (600 + 13) / 14, mDevice.frameCount.get());
+    }
+
+    @Test
+    public void writesWaitForTheCompletionOfTheFrameBefore() throws InterruptedException {
+        mDevice.writeLatencyMillis = 3;
+        connect();
+        byte[] data = randomData(300);
+        await(mClient.postCustomDataAsync(data));
+
+        // The fake device rejects a write while the previous one is in flight, a rejected frame would be missing
+        assertArrayEquals(data, mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA).data);
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+    }
+
+    @Test
+    public void theWriteTimeoutRestartsWithEveryReportedWrite() throws InterruptedException {
+        mDevice.writeLatencyMillis = 30;
+        connect();
+        mClient.setGattWriteTimeout(200);
+        // 22 frames of 30ms take longer than the timeout together, but each is reported in time
+        byte[] data = randomData(300);
+        await(mClient.postCustomDataAsync(data));
+
+        assertArrayEquals(data, mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA).data);
+        assertTrue(mCallback.errors.toString(), mCallback.errors.isEmpty());
+    }
+
+    @Test
+    public void failsAPostWhoseWriteIsNeverReported() throws InterruptedException {
+        connect();
+        mClient.setGattWriteTimeout(200);
+        mDevice.writesReported = false;
+        long start = System.nanoTime();
+        awaitFailure(BlufiCallback.CODE_WRITE_DATA_FAILED, mClient.postCustomDataAsync(randomData(10)));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertEquals(BlufiCallback.CODE_GATT_WRITE_TIMEOUT, (int) RecordingCallback.take(mCallback.errors));
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis >= 200 && elapsedMillis < 2000);
+    }
+
+    @Test
+    public void writesWithoutResponseIfTheCharacteristicSupportsIt() throws InterruptedException {
+        connect();
+        mClient.setWriteNoResponseWindow(4);
+        byte[] data = randomData(300);
+        await(mClient.postCustomDataAsync(data));
+
+        assertArrayEquals(data, mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA).data);
+        // A 20 bytes package without checksum carries 14 bytes of a fragment
+        assertEquals((300 + 13) / 14, mDevice.noResponseFrameCount.get());
+    }
+
+    @Test
+    public void writesWithResponseIfTheCharacteristicHasNoWriteWithoutResponse() throws InterruptedException {
+        mDevice.writeProperties = BluetoothGattCharacteristic.PROPERTY_WRITE;
+        connect();
+        mClient.setWriteNoResponseWindow(4);
+        byte[] data = randomData(300);
+        await(mClient.postCustomDataAsync(data));
+
+        assertArrayEquals(data, mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA).data);
+        assertEquals(0, mDevice.noResponseFrameCount.get());
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+    }
+
+    @Test
+    public void postsAWindowOfFramesWaitingForAcks() throws InterruptedException {
+        mDevice.writeLatencyMillis = 1;
+        connect();
+        mClient.setRequireAck(true);
+        mClient.setAckWindow(4);
+        byte[] data = randomData(300);
+        await(mClient.postCustomDataAsync(data));
+
+        assertArrayEquals(data, mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA).data);
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+    }
+
+    private static BlufiConfigureParams newConfigureParams(int opMode) {
+        BlufiConfigureParams params = new BlufiConfigureParams();
+        params.setOpMode(opMode);
+        params.setStaSSIDBytes("Station".getBytes());
+        // A password of more than a package is posted in fragments
+        params.setStaPassword("password-of-a-station-longer-than-a-package");
+        params.setSoftAPSSID("SoftAP");
+        params.setSoftAPPAssword("softap-password");
+        params.setSoftAPChannel(6);
+        params.setSoftAPMaxConnection(4);
+        params.setSoftAPSecurity(BlufiParameter.SOFTAP_SECURITY_WPA2);
+        return params;
+    }
+
+    private void assertConfigured(int opMode) {
+        List<Integer> subTypes = new ArrayList<>();
+        for (FakeBlufiDevice.Message message : mDevice.getMessages()) {
+            subTypes.add(message.subType);
+        }
+        List<Integer> expected = new ArrayList<>(Collections.singletonList(BlufiParameter.Type.Ctrl.SUBTYPE_SET_OP_MODE));
+        if (opMode == BlufiParameter.OP_MODE_STA || opMode == BlufiParameter.OP_MODE_STASOFTAP) {
+            expected.addAll(Arrays.asList(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID,
+                    BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_PASSWORD, BlufiParameter.Type.Ctrl.SUBTYPE_CONNECT_WIFI));
+        }
+        if (opMode == BlufiParameter.OP_MODE_SOFTAP || opMode == BlufiParameter.OP_MODE_STASOFTAP) {
+            expected.addAll(Arrays.asList(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_SSID,
+                    BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD, BlufiParameter.Type.Data.SUBTYPE_SOFTAP_CHANNEL,
+                    BlufiParameter.Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT,
+                    BlufiParameter.Type.Data.SUBTYPE_SOFTAP_AUTH_MODE));
+        }
+        // The first message requested the version
+        assertEquals(expected, subTypes.subList(1, subTypes.size()));
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+    }
+
+    @Test
+    public void configuresStaInAPipelineOfAckedFrames() throws InterruptedException {
+        mDevice.writeLatencyMillis = 1;
+        connect();
+        mClient.setRequireAck(true);
+        mClient.setAckWindow(4);
+        mClient.setPipelinedConfigure(true);
+        await(mClient.configureAsync(newConfigureParams(BlufiParameter.OP_MODE_STA)));
+
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.configured));
+        assertConfigured(BlufiParameter.OP_MODE_STA);
+        assertTrue(mCallback.errors.isEmpty());
+    }
+
+    @Test
+    public void configuresStaSoftAPInAPipelineOfAckedFrames() throws InterruptedException {
+        mDevice.writeLatencyMillis = 1;
+        connect();
+        mClient.setRequireAck(true);
+        mClient.setAckWindow(4);
+        mClient.setPipelinedConfigure(true);
+        await(mClient.configureAsync(newConfigureParams(BlufiParameter.OP_MODE_STASOFTAP)));
+
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.configured));
+        assertConfigured(BlufiParameter.OP_MODE_STASOFTAP);
+        assertTrue(mCallback.errors.isEmpty());
+    }
+
+    private int configureRejected(boolean pipelined, int pkgType, int subType) throws InterruptedException {
+        mDevice.rejectFrames(pkgType, subType);
+        connect();
+        mClient.setRequireAck(true);
+        mClient.setAckWindow(4);
+        mClient.setPipelinedConfigure(pipelined);
+        BlufiFuture<Void> configured = mClient.configureAsync(newConfigureParams(BlufiParameter.OP_MODE_STASOFTAP));
+        assertTrue(configured.await(RecordingCallback.WAIT_TIMEOUT));
+        return configured.getStatus();
+    }
+
+    @Test
+    public void pipelinedConfigureFailsAtOnceWithTheStatusOfTheRejectedMessage() throws InterruptedException {
+        long start = System.nanoTime();
+        int status = configureRejected(true, FakeBlufiDevice.Type.DATA, BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertEquals(BlufiCallback.CODE_CONF_ERR_POST_STA, status);
+        // Without waiting for the ack timeout of 5 seconds
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 2000);
+        assertEquals(BlufiCallback.CODE_CONF_ERR_POST_STA, (int) RecordingCallback.take(mCallback.configured));
+    }
+
+    @Test
+    public void sequentialConfigureFailsWithTheStatusOfTheRejectedMessage() throws InterruptedException {
+        mDevice.rejectFrames(FakeBlufiDevice.Type.DATA, BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID);
+        connect();
+        mClient.setGattWriteTimeout(300);
+        mClient.setRequireAck(true);
+        BlufiFuture<Void> configured = mClient.configureAsync(newConfigureParams(BlufiParameter.OP_MODE_STASOFTAP));
+        assertTrue(configured.await(RecordingCallback.WAIT_TIMEOUT));
+
+        assertEquals(BlufiCallback.CODE_CONF_ERR_POST_STA, configured.getStatus());
+    }
+
+    @Test
+    public void pipelinedAndSequentialConfigureFailARejectedOpModeAlike() throws InterruptedException {
+        assertEquals(BlufiCallback.CODE_CONF_ERR_SET_OPMODE, configureRejected(true, FakeBlufiDevice.Type.CTRL,
+                BlufiParameter.Type.Ctrl.SUBTYPE_SET_OP_MODE));
+        mClient.close();
+        mDevice.shutdown();
+        mDevice = new FakeBlufiDevice("24:0A:C4:00:00:01");
+        mCallback = new RecordingCallback();
+        mClient = null;
+        mDevice.rejectFrames(FakeBlufiDevice.Type.CTRL, BlufiParameter.Type.Ctrl.SUBTYPE_SET_OP_MODE);
+        connect();
+        mClient.setGattWriteTimeout(300);
+        BlufiFuture<Void> configured = mClient.configureAsync(newConfigureParams(BlufiParameter.OP_MODE_STASOFTAP));
+        assertTrue(configured.await(RecordingCallback.WAIT_TIMEOUT));
+        assertEquals(BlufiCallback.CODE_CONF_ERR_SET_OPMODE, configured.getStatus());
+    }
+
+    private List<byte[]> configureFrames(boolean pipelined, int opMode) throws InterruptedException {
+        FakeBlufiDevice device = new FakeBlufiDevice("24:0A:C4:00:00:02");
+        BlufiClient client = mCallback.newClient(device);
+        try {
+            client.connect();
+            assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+            client.setRequireAck(true);
+            client.setAckWindow(4);
+            client.setPipelinedConfigure(pipelined);
+            await(client.configureAsync(newConfigureParams(opMode)));
+            return device.getFrames();
+        } finally {
+            client.close();
+            device.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelinedAndSequentialConfigureWriteTheSameFrames() throws InterruptedException {
+        for (int opMode : new int[]{BlufiParameter.OP_MODE_STA, BlufiParameter.OP_MODE_STASOFTAP}) {
+            List<byte[]> pipelined = configureFrames(true, opMode);
+            List<byte[]> sequential = configureFrames(false, opMode);
+            assertEquals(sequential.size(), pipelined.size());
+            for (int i = 0; i < sequential.size(); i++) {
+                assertArrayEquals("Frame " + i, sequential.get(i), pipelined.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void negotiatesSecurityV2AndExchangesEncryptedData() throws InterruptedException {
+        connect();
+        await(mClient.negotiateSecurityAsync());
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.negotiated));
+        assertEquals(BlufiClient.STATE_SECURED, mClient.getConnectionState());
+
+        byte[] data = randomData(100);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+        assertTrue(mCallback.errors.isEmpty());
+    }
+
+    @Test
+    public void negotiatesWithSpeculativeKeyPairs() throws InterruptedException {
+        mClient = mCallback.newClient(mDevice);
+        mClient.setSpeculativeKeyGeneration(true);
+        mClient.connect();
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        await(mClient.negotiateSecurityAsync());
+
+        byte[] data = randomData(40);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+    }
+
+    @Test
+    public void negotiatesSecurityV1AndExchangesEncryptedData() throws InterruptedException {
+        mDevice.versionMinor = 3;
+        connect();
+        await(mClient.negotiateSecurityAsync());
+
+        byte[] data = randomData(100);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        assertTrue(mDevice.getProtocolErrors().toString(), mDevice.getProtocolErrors().isEmpty());
+    }
+
+    /**
+     * Negotiate security on a new client of the device which shares the cache, then exchange data.
+     */
+    private BlufiClient negotiateWithCache(BlufiSessionCache cache) throws InterruptedException {
+        if (mClient != null) {
+            mClient.close();
+        }
+        mClient = mCallback.newClient(mDevice);
+        mClient.setSessionCache(cache);
+        mClient.connect();
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.prepared));
+        await(mClient.negotiateSecurityAsync());
+        byte[] data = randomData(40);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        return mClient;
+    }
+
+    private boolean sentResumption() {
+        for (FakeBlufiDevice.Message message : mDevice.getMessages()) {
+            if (message.subType == BlufiParameter.Type.Data.SUBTYPE_NEG && message.data[0] == 0x05) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void resumesTheSessionOfABlufi15Device() throws InterruptedException {
+        mDevice.versionMinor = 5;
+        mDevice.resumeSupported = true;
+        BlufiSessionCache cache = new BlufiSessionCache();
+        assertFalse(negotiateWithCache(cache).isSessionResumed());
+        assertEquals(1, cache.size());
+
+        assertTrue(negotiateWithCache(cache).isSessionResumed());
+        assertEquals(1, mDevice.resumeCount.get());
+        // The resumed session stores the next ticket
+        assertTrue(negotiateWithCache(cache).isSessionResumed());
+        assertEquals(2, mDevice.resumeCount.get());
+    }
+
+    @Test
+    public void fallsBackToTheKeyAgreementIfTheDeviceRejectsTheTicket() throws InterruptedException {
+        mDevice.versionMinor = 5;
+        BlufiSessionCache cache = new BlufiSessionCache();
+        negotiateWithCache(cache);
+        long start = System.nanoTime();
+        assertFalse(negotiateWithCache(cache).isSessionResumed());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue(sentResumption());
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 3000);
+        // The rejection is consumed by the fallback
+        assertTrue(mCallback.errors.toString(), mCallback.errors.isEmpty());
+    }
+
+    @Test
+    public void doesNotResumeBeforeBlufi15() throws InterruptedException {
+        mDevice.resumeSupported = true;
+        BlufiSessionCache cache = new BlufiSessionCache();
+        negotiateWithCache(cache);
+        assertFalse(negotiateWithCache(cache).isSessionResumed());
+
+        assertFalse(sentResumption());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void reassemblesFragmentedNotifications() throws InterruptedException {
+        connect();
+        byte[] data = randomData(500);
+        mDevice.notifyData(BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA, data);
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        assertTrue(mCallback.errors.isEmpty());
+    }
+
+    @Test
+    public void dropsNotificationsWhileTheConsumerBlocksAndResyncs() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        mCallback = new RecordingCallback() {
+            @Override
+            public boolean onGattNotification(BlufiClient client, int pkgType, int subType, byte[] data) {
+                if (subType == BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA && blocked.getCount() > 0) {
+                    blocked.countDown();
+                    try {
+                        unblock.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return false;
+            }
+        };
+        connect();
+        mDevice.notifyData(BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA, new byte[]{1});
+        assertTrue(blocked.await(RecordingCallback.WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // 400 frames, more than the queue holds, the binder thread does not wait for the consumer
+        long start = System.nanoTime();
+        mDevice.notifyData(BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA, randomData(400 * 14));
+        // The frames are queued on the binder thread by the task of the notification
+        CountDownLatch notified = new CountDownLatch(1);
+        mDevice.runOnBinder(() -> mDevice.runOnBinder(notified::countDown));
+        assertTrue(notified.await(RecordingCallback.WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 500);
+        assertTrue(mClient.getDroppedNotificationCount() > 0);
+        unblock.countDown();
+
+        assertArrayEquals(new byte[]{1}, RecordingCallback.take(mCallback.customData));
+        assertEquals(BlufiCallback.CODE_INVALID_NOTIFICATION, (int) RecordingCallback.take(mCallback.errors));
+        // The next message is parsed from its own sequence
+        byte[] data = randomData(100);
+        mDevice.notifyData(BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA, data);
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        assertNull(mCallback.customData.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void deliversCallbacksInOrderOnTheCallbackExecutor() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4, runnable -> new Thread(runnable, "CallbackPool"));
+        try {
+            connect();
+            List<String> threads = Collections.synchronizedList(new ArrayList<>());
+            mClient.setCallbackExecutor(runnable -> pool.execute(() -> {
+                threads.add(Thread.currentThread().getName());
+                runnable.run();
+            }));
+            int count = 20;
+            for (int i = 0; i < count; i++) {
+                await(mClient.postCustomDataAsync(new byte[]{(byte) i}));
+            }
+
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(new byte[]{(byte) i}, RecordingCallback.take(mCallback.customData));
+            }
+            // The lane may run several callbacks in one task of the executor
+            assertFalse(threads.isEmpty());
+            for (String thread : threads) {
+                assertEquals("CallbackPool", thread);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void ecdhIsNotTriedOnDevicesBeforeBlufi15() throws InterruptedException {
+        connect();
+        mClient.setECDHNegotiation(true);
+        long start = System.nanoTime();
+        await(mClient.negotiateSecurityAsync());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        FakeBlufiDevice.Message negotiation = mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_NEG);
+        // The first negotiation message is the DH length, no ECDH key was sent
+        assertEquals(0x00, negotiation.data[0]);
+        for (FakeBlufiDevice.Message message : mDevice.getMessages()) {
+            assertTrue(message.subType != BlufiParameter.Type.Data.SUBTYPE_NEG || message.data[0] != 0x06);
+        }
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 3000);
+    }
+
+    @Test
+    public void ecdhIsUsedWithBlufi15Devices() throws InterruptedException {
+        mDevice.versionMinor = 5;
+        connect();
+        mClient.setECDHNegotiation(true);
+        await(mClient.negotiateSecurityAsync());
+
+        FakeBlufiDevice.Message negotiation = mDevice.findMessage(FakeBlufiDevice.Type.DATA,
+                BlufiParameter.Type.Data.SUBTYPE_NEG);
+        assertEquals(0x06, negotiation.data[0]);
+        assertEquals(66, negotiation.data.length);
+
+        byte[] data = randomData(40);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+    }
+
+    @Test
+    public void fallsBackToDHIfTheDeviceRejectsTheECDHKey() throws InterruptedException {
+        mDevice.versionMinor = 5;
+        mDevice.ecdhSupported = false;
+        connect();
+        mClient.setECDHNegotiation(true);
+        await(mClient.negotiateSecurityAsync());
+        assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(mCallback.negotiated));
+
+        List<Integer> negotiations = new ArrayList<>();
+        for (FakeBlufiDevice.Message message : mDevice.getMessages()) {
+            if (message.subType == BlufiParameter.Type.Data.SUBTYPE_NEG) {
+                negotiations.add((int) message.data[0]);
+            }
+        }
+        // The ECDH key, then the DH length and params
+        assertEquals(Arrays.asList(0x06, 0x00, 0x01), negotiations);
+        byte[] data = randomData(40);
+        await(mClient.postCustomDataAsync(data));
+        assertArrayEquals(data, RecordingCallback.take(mCallback.customData));
+        // The rejection is consumed by the fallback
+        assertTrue(mCallback.errors.toString(), mCallback.errors.isEmpty());
+    }
+}
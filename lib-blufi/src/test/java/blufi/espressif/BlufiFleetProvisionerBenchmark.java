@@ -0,0 +1,81 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import blufi.espressif.params.BlufiConfigureParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time a batch of simulated devices whose steps take 5ms, by concurrency, and with the first connect of
+ * some devices never completing. A stalled connect holds its slot until the step deadline cancels it.
+ * <p>
+ * Run with the Gradle project property, which build.gradle passes to the test JVM; a {@code -D} system
+ * property of Gradle itself does not reach the tests:
+ * <pre>
+ * ./gradlew :lib-blufi:testDebugUnitTest -Pblufi.benchmark=true --tests blufi.espressif.BlufiFleetProvisionerBenchmark
+ * </pre>
+ */
+public class BlufiFleetProvisionerBenchmark {
+    private static final int DEVICES = 28;
+    private static final long STEP_MILLIS = 5;
+    private static final long STEP_TIMEOUT = 100;
+
+    private BlufiScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        mScheduler = new BlufiScheduler(2);
+    }
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void batchTime() {
+        for (int concurrency : new int[]{1, 4, 7}) {
+            Benchmarks.report("concurrency " + concurrency + ", per device", measure(concurrency, 0));
+        }
+        for (int concurrency : new int[]{4, 7}) {
+            Benchmarks.report("concurrency " + concurrency + ", 2 stalled connects, per device",
+                    measure(concurrency, 2));
+        }
+    }
+
+    private double measure(int concurrency, int stalls) {
+        return Benchmarks.measure(DEVICES, () -> {
+            FakeSessionFactory factory = new FakeSessionFactory();
+            factory.stepMillis = STEP_MILLIS;
+            try {
+                BlufiFleetProvisioner provisioner = new BlufiFleetProvisioner(factory, mScheduler);
+                provisioner.setConcurrency(concurrency);
+                provisioner.setStepTimeout(STEP_TIMEOUT);
+                provisioner.setRetryBackoff(0, 0);
+                List<BluetoothDevice> devices = FakeSessionFactory.newDevices(DEVICES);
+                for (int i = 0; i < stalls; i++) {
+                    factory.stallStep(devices.get(i * DEVICES / stalls), BlufiFleetProvisioner.STEP_CONNECT, 1);
+                }
+                BlufiFuture<BlufiFleetProvisioner.Report> future =
+                        provisioner.provision(devices, new BlufiConfigureParams());
+                assertTrue(future.await(60000));
+                assertEquals(DEVICES, future.getResult().getSucceededCount());
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                factory.shutdown();
+            }
+        });
+    }
+}
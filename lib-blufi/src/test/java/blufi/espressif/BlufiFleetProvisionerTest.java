@@ -0,0 +1,176 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import blufi.espressif.params.BlufiConfigureParams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drive the provisioner against {@link FakeSessionFactory}.
+ */
+public class BlufiFleetProvisionerTest {
+    private BlufiScheduler mScheduler;
+    private FakeSessionFactory mFactory;
+    private BlufiFleetProvisioner mProvisioner;
+
+    @Before
+    public void setUp() {
+        mScheduler = new BlufiScheduler(2);
+        mFactory = new FakeSessionFactory();
+        mProvisioner = new BlufiFleetProvisioner(mFactory, mScheduler);
+        mProvisioner.setRetryBackoff(10, 20);
+        mProvisioner.setStaConnectTimeout(1000);
+    }
+
+    @After
+    public void tearDown() {
+        mFactory.shutdown();
+        mScheduler.shutdown();
+    }
+
+    private static BlufiFleetProvisioner.Report await(BlufiFuture<BlufiFleetProvisioner.Report> future)
+            throws InterruptedException {
+        assertTrue("Batch not done", future.await(RecordingCallback.WAIT_TIMEOUT));
+        assertEquals(BlufiCallback.STATUS_SUCCESS, future.getStatus());
+        return future.getResult();
+    }
+
+    private static Map<String, BlufiFleetProvisioner.DeviceResult> byAddress(BlufiFleetProvisioner.Report report) {
+        Map<String, BlufiFleetProvisioner.DeviceResult> results = new HashMap<>();
+        for (BlufiFleetProvisioner.DeviceResult result : report.getResults()) {
+            results.put(result.getDevice().getAddress(), result);
+        }
+        return results;
+    }
+
+    @Test
+    public void provisionsEveryDeviceWithinTheConcurrency() throws InterruptedException {
+        mProvisioner.setConcurrency(3);
+        List<BluetoothDevice> devices = FakeSessionFactory.newDevices(12);
+        BlufiFleetProvisioner.Report report = await(mProvisioner.provision(devices, new BlufiConfigureParams()));
+
+        assertEquals(12, report.getSucceededCount());
+        assertEquals(3, mFactory.maxOpenCount.get());
+        assertEquals(12, mFactory.closedCount.get());
+        assertEquals(0, mFactory.getOpenCount());
+    }
+
+    @Test
+    public void retriesAFailedDevice() throws InterruptedException {
+        mProvisioner.setMaxAttempts(3);
+        List<BluetoothDevice> devices = FakeSessionFactory.newDevices(3);
+        mFactory.failStep(devices.get(0), BlufiFleetProvisioner.STEP_CONFIGURE, 2,
+                BlufiCallback.CODE_CONF_ERR_POST_STA);
+        mFactory.failStep(devices.get(1), BlufiFleetProvisioner.STEP_NEGOTIATE, 3,
+                BlufiCallback.CODE_NEG_ERR_SECURITY);
+        Map<String, BlufiFleetProvisioner.DeviceResult> results =
+                byAddress(await(mProvisioner.provision(devices, new BlufiConfigureParams())));
+
+        BlufiFleetProvisioner.DeviceResult retried = results.get(devices.get(0).getAddress());
+        assertTrue(retried.isSuccess());
+        assertEquals(3, retried.getAttempts());
+        BlufiFleetProvisioner.DeviceResult failed = results.get(devices.get(1).getAddress());
+        assertEquals(BlufiCallback.CODE_NEG_ERR_SECURITY, failed.getStatus());
+        assertEquals(BlufiFleetProvisioner.STEP_NEGOTIATE, failed.getFailedStep());
+        assertEquals(3, failed.getAttempts());
+        assertEquals(1, results.get(devices.get(2).getAddress()).getAttempts());
+        assertEquals(0, mFactory.getOpenCount());
+    }
+
+    @Test
+    public void aStalledStepIsCancelledAndFreesItsSlot() throws InterruptedException {
+        mProvisioner.setConcurrency(1);
+        mProvisioner.setMaxAttempts(2);
+        mProvisioner.setStepTimeout(100);
+        List<BluetoothDevice> devices = FakeSessionFactory.newDevices(3);
+        // The connect future of the first attempt never completes, even when the session is closed
+        mFactory.stallStep(devices.get(0), BlufiFleetProvisioner.STEP_CONNECT, 1);
+        mFactory.stallStep(devices.get(1), BlufiFleetProvisioner.STEP_CONFIGURE, 2);
+        long start = System.nanoTime();
+        Map<String, BlufiFleetProvisioner.DeviceResult> results =
+                byAddress(await(mProvisioner.provision(devices, new BlufiConfigureParams())));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        BlufiFleetProvisioner.DeviceResult stalledOnce = results.get(devices.get(0).getAddress());
+        assertTrue(stalledOnce.isSuccess());
+        assertEquals(2, stalledOnce.getAttempts());
+        BlufiFleetProvisioner.DeviceResult stalled = results.get(devices.get(1).getAddress());
+        assertEquals(BlufiCallback.CODE_OPERATION_TIMEOUT, stalled.getStatus());
+        assertEquals(BlufiFleetProvisioner.STEP_CONFIGURE, stalled.getFailedStep());
+        assertTrue(results.get(devices.get(2).getAddress()).isSuccess());
+        // Three stalls of 100ms and a second of grace each
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis >= 3 * 1100 && elapsedMillis < 6000);
+        assertEquals(0, mFactory.getOpenCount());
+    }
+
+    @Test
+    public void cancellingTheBatchFailsTheDevicesWhichHaveNotFinished() throws InterruptedException {
+        mProvisioner.setConcurrency(2);
+        List<BluetoothDevice> devices = FakeSessionFactory.newDevices(5);
+        for (BluetoothDevice device : devices) {
+            mFactory.stallStep(device, BlufiFleetProvisioner.STEP_NEGOTIATE, 1);
+        }
+        BlufiFuture<BlufiFleetProvisioner.Report> future = mProvisioner.provision(devices, new BlufiConfigureParams());
+        Thread.sleep(100);
+        assertTrue(future.cancel());
+
+        assertTrue(future.await(RecordingCallback.WAIT_TIMEOUT));
+        assertEquals(BlufiCallback.CODE_CANCELLED, future.getStatus());
+        // The running attempts are aborted and their sessions closed
+        long deadline = System.currentTimeMillis() + RecordingCallback.WAIT_TIMEOUT;
+        while (mFactory.getOpenCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mFactory.getOpenCount());
+        assertEquals(2, mFactory.createdCount.get());
+    }
+
+    @Test
+    public void pipelineTakesADeviceOnce() throws InterruptedException {
+        BlufiFleetProvisioner.Pipeline pipeline = mProvisioner.startPipeline(new BlufiConfigureParams(), 4);
+        BluetoothDevice device = FakeSessionFactory.newDevice(1);
+        assertTrue(pipeline.offer(device));
+        assertFalse(pipeline.offer(FakeSessionFactory.newDevice(1)));
+        assertTrue(pipeline.offer(FakeSessionFactory.newDevice(2)));
+        pipeline.finish();
+        assertFalse(pipeline.offer(FakeSessionFactory.newDevice(3)));
+
+        BlufiFleetProvisioner.Report report = await(pipeline.getFuture());
+        assertEquals(2, report.getSucceededCount());
+        assertEquals(2, pipeline.getTakenCount());
+        assertEquals(1, mFactory.getAttempts(device));
+    }
+
+    @Test
+    public void pipelineRejectsDevicesWhileTheQueueIsFull() throws InterruptedException {
+        mProvisioner.setConcurrency(1);
+        mFactory.stepMillis = 20;
+        BlufiFleetProvisioner.Pipeline pipeline = mProvisioner.startPipeline(new BlufiConfigureParams(), 1);
+        List<BluetoothDevice> devices = FakeSessionFactory.newDevices(3);
+        assertTrue(pipeline.offer(devices.get(0)));
+        // The first device takes the slot, the second one waits in the queue
+        long deadline = System.currentTimeMillis() + RecordingCallback.WAIT_TIMEOUT;
+        while (pipeline.getQueuedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(pipeline.offer(devices.get(1)));
+        assertFalse(pipeline.offer(devices.get(2)));
+        pipeline.finish();
+
+        assertEquals(2, await(pipeline.getFuture()).getSucceededCount());
+        assertEquals(Arrays.asList(1, 1, 0), Arrays.asList(mFactory.getAttempts(devices.get(0)),
+                mFactory.getAttempts(devices.get(1)), mFactory.getAttempts(devices.get(2))));
+    }
+}
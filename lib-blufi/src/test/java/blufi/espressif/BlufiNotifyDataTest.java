@@ -0,0 +1,105 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlufiNotifyDataTest {
+    private static final int LIMIT = 4096;
+
+    @Test
+    public void reassemblesFragmentsIntoTheDeclaredLength() {
+        byte[] message = new byte[1000];
+        new Random(1).nextBytes(message);
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+
+        int offset = 0;
+        while (message.length - offset > 180) {
+            assertTrue(data.addFragment(message, offset, 180, message.length - offset));
+            assertTrue(data.isReassembling());
+            offset += 180;
+        }
+        assertTrue(data.addLastFragment(message, offset, message.length - offset));
+        assertFalse(data.isReassembling());
+        assertArrayEquals(message, data.getDataArray());
+    }
+
+    @Test
+    public void keepsTheUnfragmentedMessage() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        byte[] frame = {9, 9, 1, 2, 3, 9};
+        assertTrue(data.addLastFragment(frame, 2, 3));
+        assertArrayEquals(new byte[]{1, 2, 3}, data.getDataArray());
+    }
+
+    @Test
+    public void emptyMessageSharesTheEmptyArray() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        byte[] empty = data.getDataArray();
+        assertEquals(0, empty.length);
+        assertTrue(data.addLastFragment(new byte[4], 0, 0));
+        assertSame(empty, data.getDataArray());
+    }
+
+    @Test
+    public void rejectsFragmentsWhichDoNotContinueTheDeclaredLength() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        byte[] bytes = new byte[100];
+        assertTrue(data.addFragment(bytes, 0, 40, 100));
+        // 60 bytes remain, not 50
+        assertFalse(data.addFragment(bytes, 0, 20, 50));
+        // The last fragment must fill the rest exactly
+        assertFalse(data.addLastFragment(bytes, 0, 59));
+        assertFalse(data.addLastFragment(bytes, 0, 61));
+        assertTrue(data.addLastFragment(bytes, 0, 60));
+    }
+
+    @Test
+    public void rejectsFragmentLongerThanItsRemainLength() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        assertFalse(data.addFragment(new byte[100], 0, 80, 60));
+    }
+
+    @Test
+    public void rejectsMessagesOverTheLimit() {
+        BlufiNotifyData data = new BlufiNotifyData(100);
+        assertFalse(data.addFragment(new byte[200], 0, 50, 101));
+        assertFalse(data.addLastFragment(new byte[200], 0, 101));
+
+        data.setDataLengthLimit(200);
+        assertTrue(data.addLastFragment(new byte[200], 0, 101));
+    }
+
+    @Test
+    public void resetStartsANewMessageWithoutReusingTheArray() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        byte[] first = {1, 2, 3, 4};
+        assertTrue(data.addFragment(first, 0, 2, 4));
+        assertTrue(data.addLastFragment(first, 2, 2));
+        byte[] delivered = data.getDataArray();
+
+        data.reset();
+        assertFalse(data.isReassembling());
+        assertTrue(data.addLastFragment(new byte[]{5, 6, 7, 8}, 0, 4));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, delivered);
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, data.getDataArray());
+    }
+
+    @Test
+    public void resetDropsAPartialMessage() {
+        BlufiNotifyData data = new BlufiNotifyData(LIMIT);
+        byte[] bytes = new byte[10];
+        Arrays.fill(bytes, (byte) 1);
+        assertTrue(data.addFragment(bytes, 0, 5, 10));
+        data.reset();
+        assertTrue(data.addLastFragment(new byte[]{2}, 0, 1));
+        assertArrayEquals(new byte[]{2}, data.getDataArray());
+    }
+}
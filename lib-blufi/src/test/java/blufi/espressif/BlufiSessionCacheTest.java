@@ -0,0 +1,93 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import blufi.espressif.security.BlufiSessionTicket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BlufiSessionCacheTest {
+    private static class TestCache extends BlufiSessionCache {
+        long now = 1000;
+
+        TestCache(int capacity, long lifetime) {
+            super(capacity, lifetime);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+    }
+
+    private static BlufiSessionTicket newTicket(int seed) {
+        byte[] secretKey = new byte[32];
+        Arrays.fill(secretKey, (byte) seed);
+        return BlufiSessionTicket.fromSecretKey(secretKey);
+    }
+
+    @Test
+    public void aTicketIsTakenOnce() {
+        TestCache cache = new TestCache(4, 1000);
+        BlufiSessionTicket ticket = newTicket(1);
+        cache.put("A", ticket);
+
+        assertEquals(1, cache.size());
+        assertSame(ticket, cache.take("A"));
+        assertNull(cache.take("A"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void anExpiredTicketIsNotTaken() {
+        TestCache cache = new TestCache(4, 1000);
+        cache.put("A", newTicket(1));
+        cache.put("B", newTicket(2));
+        cache.now += 999;
+        assertEquals(2, cache.size());
+        assertNotNull(cache.take("A"));
+
+        cache.now += 1;
+        assertNull(cache.take("B"));
+        cache.put("C", newTicket(3));
+        cache.now += 1000;
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedTicketOverTheCapacity() {
+        TestCache cache = new TestCache(2, 1000);
+        BlufiSessionTicket a = newTicket(1);
+        cache.put("A", a);
+        cache.put("B", newTicket(2));
+        // A new ticket of A makes B the least recently used one
+        BlufiSessionTicket newA = newTicket(3);
+        cache.put("A", newA);
+        cache.put("C", newTicket(4));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.take("B"));
+        assertSame(newA, cache.take("A"));
+    }
+
+    @Test
+    public void removesTickets() {
+        TestCache cache = new TestCache(4, 1000);
+        cache.put("A", newTicket(1));
+        cache.put("B", newTicket(2));
+        cache.remove("A");
+        assertNull(cache.take("A"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidCapacity() {
+        new BlufiSessionCache(0, 1000);
+    }
+}
@@ -0,0 +1,98 @@
+package blufi.espressif;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time the hop of a callback from the thread which reports a result to the callback, through the
+ * {@link SerialLane} of the callback executor. A single thread stands in for the main looper, once idle
+ * and once busy with a queue of 4 ms tasks like a janky UI.
+ */
+public class CallbackExecutorBenchmark {
+    private static final int CALLBACKS = 500;
+    // Results are reported about once a connection interval, a lane would drain back to back callbacks at once
+    private static final long CALLBACK_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BUSY_TASK_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    private ScheduledExecutorService mTimer;
+    private ExecutorService mLooper;
+    private ExecutorService mPool;
+    private volatile boolean mBusy;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mLooper = Executors.newSingleThreadExecutor();
+        mPool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        mBusy = false;
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+            mLooper.shutdownNow();
+            mPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callbackLatency() throws InterruptedException {
+        hop("direct", Runnable::run);
+        hop("2-thread pool", mPool);
+        hop("looper, idle", mLooper);
+        mBusy = true;
+        mLooper.execute(this::busyTask);
+        hop("looper, 4 ms tasks", mLooper);
+    }
+
+    /**
+     * Keep one task of a busy UI queued on the looper, the callbacks are queued behind it as on a message queue.
+     */
+    private void busyTask() {
+        long end = System.nanoTime() + BUSY_TASK_NANOS;
+        while (System.nanoTime() < end) {
+            Benchmarks.sink++;
+        }
+        if (mBusy) {
+            mLooper.execute(this::busyTask);
+        }
+    }
+
+    private void hop(String name, Executor executor) throws InterruptedException {
+        SerialLane lane = new SerialLane(executor, mTimer);
+        long[] latencies = new long[CALLBACKS];
+        // The first round warms up
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < CALLBACKS; i++) {
+                LockSupport.parkNanos(CALLBACK_GAP_NANOS);
+                CountDownLatch done = new CountDownLatch(1);
+                long[] runTime = new long[1];
+                long submitTime = System.nanoTime();
+                lane.execute(() -> {
+                    runTime[0] = System.nanoTime();
+                    done.countDown();
+                });
+                assertTrue(done.await(10, TimeUnit.SECONDS));
+                latencies[i] = runTime[0] - submitTime;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ENGLISH, "%-20s p50 %7.1f us, p99 %7.1f us",
+                name, latencies[CALLBACKS / 2] / 1000.0, latencies[CALLBACKS * 99 / 100] / 1000.0));
+    }
+}
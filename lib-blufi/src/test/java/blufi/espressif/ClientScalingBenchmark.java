@@ -0,0 +1,139 @@
+package blufi.espressif;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run many clients of {@link FakeBlufiDevice}s on one {@link BlufiScheduler}: the heap of each client idle and
+ * connected, the threads, and the latency of an echo of custom data while all the clients echo at once.
+ * Every fake device has two threads of its own, they are not counted as threads of the clients. The connected heap
+ * includes the connection state the fake device keeps.
+ */
+public class ClientScalingBenchmark {
+    private static final int SCHEDULER_THREADS = 4;
+    private static final int ECHO_LENGTH = 10;
+
+    private static class EchoCallback extends RecordingCallback {
+        volatile long echoNanos;
+
+        @Override
+        public void onReceiveCustomData(BlufiClient client, int status, byte[] data) {
+            echoNanos = System.nanoTime();
+            super.onReceiveCustomData(client, status, data);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void scaleClients() throws InterruptedException {
+        // Load and compile the classes of a session before measuring
+        run(1, false);
+        for (int count : new int[]{1, 10, 100, 500}) {
+            run(count, true);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static int countThreads(String namePrefix) {
+        Thread[] live = new Thread[Thread.activeCount() * 2 + 16];
+        int count = Thread.enumerate(live);
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (live[i].getName().startsWith(namePrefix)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private void run(int count, boolean report) throws InterruptedException {
+        BlufiScheduler scheduler = new BlufiScheduler(SCHEDULER_THREADS);
+        List<FakeBlufiDevice> devices = new ArrayList<>();
+        List<EchoCallback> callbacks = new ArrayList<>();
+        List<BlufiClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                devices.add(new FakeBlufiDevice(String.format("24:0A:C4:00:%02X:%02X", i >> 8, i & 0xff)));
+                callbacks.add(new EchoCallback());
+            }
+            long devicesHeap = usedHeap();
+            for (int i = 0; i < count; i++) {
+                BlufiClient client = new BlufiClient(null, devices.get(i).device, scheduler);
+                client.setCallbackExecutor(Runnable::run);
+                client.setBlufiCallback(callbacks.get(i));
+                clients.add(client);
+            }
+            long idleHeap = usedHeap();
+
+            for (BlufiClient client : clients) {
+                client.connect();
+            }
+            for (EchoCallback callback : callbacks) {
+                assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(callback.prepared));
+            }
+            List<BlufiFuture<Void>> negotiations = new ArrayList<>();
+            for (BlufiClient client : clients) {
+                negotiations.add(client.negotiateSecurityAsync());
+            }
+            for (BlufiFuture<Void> negotiation : negotiations) {
+                assertTrue(negotiation.await(120000L) && negotiation.isSuccess());
+            }
+            long connectedHeap = usedHeap();
+            int clientThreads = countThreads("Blufi-");
+            int threads = Thread.activeCount();
+
+            byte[] data = new byte[ECHO_LENGTH];
+            long[] starts = new long[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = System.nanoTime();
+                clients.get(i).postCustomDataAsync(data);
+            }
+            double[] latencies = new double[count];
+            for (int i = 0; i < count; i++) {
+                assertTrue(callbacks.get(i).customData.poll(60, TimeUnit.SECONDS) != null);
+                latencies[i] = (callbacks.get(i).echoNanos - starts[i]) / 1000000.0;
+            }
+            Arrays.sort(latencies);
+
+            if (!report) {
+                return;
+            }
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%3d clients: heap %.1f KB idle, %.1f KB connected per client, %d scheduler threads of %d, " +
+                            "echo latency median %.1f ms, max %.1f ms",
+                    count, (idleHeap - devicesHeap) / 1024.0 / count, (connectedHeap - devicesHeap) / 1024.0 / count,
+                    clientThreads, threads, latencies[count / 2], latencies[count - 1]));
+        } finally {
+            for (BlufiClient client : clients) {
+                client.close();
+            }
+            for (FakeBlufiDevice device : devices) {
+                device.shutdown();
+            }
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateTest {
+    private static ConnectionState connected() {
+        ConnectionState state = new ConnectionState();
+        assertTrue(state.startConnecting());
+        assertTrue(state.transition(BlufiClient.STATE_CONNECTING, BlufiClient.STATE_CONNECTED));
+        return state;
+    }
+
+    @Test
+    public void aFailedTransitionLeavesTheStateAndTimes() {
+        ConnectionState state = connected();
+        long connectedTime = state.getTime(BlufiClient.STATE_CONNECTED);
+
+        assertFalse(state.transition(BlufiClient.STATE_DISCOVERED, BlufiClient.STATE_NOTIFY_ENABLED));
+        assertFalse(state.transition(BlufiClient.STATE_CONNECTING, BlufiClient.STATE_CONNECTED));
+
+        assertEquals(BlufiClient.STATE_CONNECTED, state.get());
+        assertEquals(connectedTime, state.getTime(BlufiClient.STATE_CONNECTED));
+        assertEquals(-1, state.getTime(BlufiClient.STATE_NOTIFY_ENABLED));
+    }
+
+    @Test
+    public void advanceNeverMovesBack() {
+        ConnectionState state = connected();
+        assertTrue(state.advance(BlufiClient.STATE_SECURED));
+
+        assertFalse(state.advance(BlufiClient.STATE_VERSION_KNOWN));
+        assertFalse(state.advance(BlufiClient.STATE_SECURED));
+        assertEquals(BlufiClient.STATE_SECURED, state.get());
+        assertEquals(-1, state.getTime(BlufiClient.STATE_VERSION_KNOWN));
+    }
+
+    @Test
+    public void closeIsTerminal() {
+        ConnectionState state = connected();
+        assertTrue(state.close());
+
+        assertFalse(state.close());
+        assertFalse(state.startConnecting());
+        assertFalse(state.startReconnecting());
+        assertFalse(state.disconnect());
+        assertFalse(state.advance(BlufiClient.STATE_SECURED));
+        assertFalse(state.transition(BlufiClient.STATE_CONNECTED, BlufiClient.STATE_DISCOVERED));
+        assertTrue(state.isClosed());
+        assertFalse(state.isConnected());
+        assertEquals(BlufiClient.STATE_CLOSED, state.get());
+    }
+
+    @Test
+    public void timesAreOfThisSessionOnly() {
+        ConnectionState state = connected();
+        assertTrue(state.transition(BlufiClient.STATE_CONNECTED, BlufiClient.STATE_DISCOVERED));
+        assertTrue(state.disconnect());
+        assertTrue(state.getTime(BlufiClient.STATE_DISCOVERED) >= 0);
+        assertTrue(state.getTime(BlufiClient.STATE_DISCONNECTED) >= 0);
+
+        assertTrue(state.startReconnecting());
+        assertTrue(state.getTime(BlufiClient.STATE_CONNECTING) >= 0);
+        assertEquals(-1, state.getTime(BlufiClient.STATE_CONNECTED));
+        assertEquals(-1, state.getTime(BlufiClient.STATE_DISCOVERED));
+        assertEquals(-1, state.getTime(BlufiClient.STATE_DISCONNECTED));
+        assertEquals(-1, state.getTime(BlufiClient.STATE_SECURED));
+        assertEquals(-1, state.getTime(-1));
+        assertEquals(-1, state.getTime(BlufiClient.STATE_CLOSED + 1));
+    }
+}
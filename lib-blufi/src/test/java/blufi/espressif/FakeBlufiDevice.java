@@ -0,0 +1,750 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import blufi.espressif.params.BlufiParameter;
+import blufi.espressif.security.BlufiCRC;
+import blufi.espressif.security.BlufiDH;
+import blufi.espressif.security.BlufiHash;
+import blufi.espressif.security.BlufiSessionTicket;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A BluFi device behind mocked Bluetooth classes, for tests which drive a {@link BlufiClient} on the JVM.
+ * <p>
+ * Every gatt callback is invoked on one thread, like the Bluetooth binder thread of a phone. The device answers
+ * the frames the client writes like ESP-IDF firmware: it acknowledges, negotiates DH, reports its version and
+ * status, connects to the configured station and echoes custom data. Like ESP-IDF, it reports its status on its
+ * own after a connect request. Negotiation subtypes it does not know are ignored without an answer, as stock
+ * firmware does. The status reports count the reports in the soft AP connection count, and the scanned SSIDs
+ * count the scans, so tests can tell the answers apart.
+ */
+class FakeBlufiDevice {
+    static final int GATT_ERROR = 133;
+    static final int GATT_CONN_TIMEOUT = 8;
+
+    private static final int NOTIFY_FRAME_LENGTH = 20;
+    // A link is never up before connectGatt returns, the client keeps the gatt it returns
+    private static final long LINK_SETUP_MILLIS = 10L;
+
+    final BluetoothDevice device;
+
+    // Device configuration, set before the client connects
+    volatile int versionMajor = 1;
+    volatile int versionMinor = 4;
+    volatile boolean resumeSupported = false;
+    // Firmware of BluFi 1.5 built without ECDH rejects the key with an error
+    volatile boolean ecdhSupported = true;
+    volatile int writeProperties = BluetoothGattCharacteristic.PROPERTY_WRITE |
+            BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+    volatile long writeLatencyMillis = 0;
+    // The stack of some phones loses the results of writes, the device still receives the frames
+    volatile boolean writesReported = true;
+    volatile boolean bonded = false;
+    volatile int connectStatus = BluetoothGatt.GATT_SUCCESS;
+    volatile boolean disconnectOnDiscover = false;
+    volatile boolean silent = false;
+    volatile int staConnectedAfterStatusRequests = 0;
+    // Delays the answers to requests, the answers still leave in the order of the requests
+    volatile long answerDelayMillis = 0;
+    // The frame type which is rejected with an error instead of an ack, -1 rejects none
+    volatile int rejectedType = -1;
+
+    final AtomicInteger connectGattCount = new AtomicInteger();
+    final AtomicInteger gattConnectCount = new AtomicInteger();
+    final AtomicInteger closeCount = new AtomicInteger();
+    final AtomicInteger discoverCount = new AtomicInteger();
+    final AtomicInteger descriptorWriteCount = new AtomicInteger();
+    final AtomicInteger frameCount = new AtomicInteger();
+    final AtomicInteger noResponseFrameCount = new AtomicInteger();
+    final AtomicInteger resumeCount = new AtomicInteger();
+
+    private final ExecutorService mBinder;
+    private final ScheduledExecutorService mAir;
+    private final List<Message> mMessages = new ArrayList<>();
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final List<String> mProtocolErrors = new ArrayList<>();
+    private final Map<String, byte[]> mTickets = new HashMap<>();
+
+    private Connection mConnection;
+    // The delayed answers in the order of their requests, only accessed on the binder thread
+    private final ArrayDeque<byte[][]> mAnswers = new ArrayDeque<>();
+    private long mLastAnswerNanos = 0;
+
+    FakeBlufiDevice(String address) {
+        mBinder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FakeBinder-" + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+        mAir = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FakeAir-" + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        device = mock(BluetoothDevice.class, withSettings().stubOnly());
+        when(device.getAddress()).thenReturn(address);
+        when(device.getBondState()).thenAnswer(invocation ->
+                bonded ? BluetoothDevice.BOND_BONDED : BluetoothDevice.BOND_NONE);
+        when(device.connectGatt(any(), anyBoolean(), any())).thenAnswer(invocation ->
+                connectGatt(invocation.getArgument(2)));
+        when(device.connectGatt(any(), anyBoolean(), any(), anyInt())).thenAnswer(invocation ->
+                connectGatt(invocation.getArgument(2)));
+    }
+
+    void shutdown() {
+        mAir.shutdownNow();
+        mBinder.shutdownNow();
+    }
+
+    /**
+     * Run a task on the binder thread after the callbacks queued before it.
+     */
+    void runOnBinder(Runnable task) {
+        mBinder.execute(task);
+    }
+
+    /**
+     * Drop the link, the client is told the gatt disconnected.
+     */
+    void dropConnection(int status) {
+        mBinder.execute(() -> {
+            Connection connection = mConnection;
+            if (connection != null && connection.connected) {
+                connection.connected = false;
+                connection.callback(cb -> cb.onConnectionStateChange(connection.gatt, status,
+                        BluetoothProfile.STATE_DISCONNECTED));
+            }
+        });
+    }
+
+    /**
+     * Send a notification the client did not ask for, such as custom data.
+     */
+    void notifyData(int subType, byte[] data) {
+        mBinder.execute(() -> {
+            Connection connection = mConnection;
+            if (connection != null && connection.connected) {
+                try {
+                    connection.sendData(Type.DATA, subType, data);
+                } catch (Exception e) {
+                    addProtocolError("Notify failed: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reject the frames of the type like ESP-IDF rejects a frame it fails to handle: with an error and no ack.
+     */
+    void rejectFrames(int pkgType, int subType) {
+        rejectedType = subType << 2 | pkgType;
+    }
+
+    /**
+     * @return the frames the device received, as written by the client
+     */
+    synchronized List<byte[]> getFrames() {
+        return new ArrayList<>(mFrames);
+    }
+
+    synchronized List<Message> getMessages() {
+        return new ArrayList<>(mMessages);
+    }
+
+    synchronized Message findMessage(int pkgType, int subType) {
+        for (Message message : mMessages) {
+            if (message.pkgType == pkgType && message.subType == subType) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    synchronized List<String> getProtocolErrors() {
+        return new ArrayList<>(mProtocolErrors);
+    }
+
+    private synchronized void addFrame(byte[] frame) {
+        mFrames.add(frame);
+    }
+
+    private synchronized void addMessage(Message message) {
+        mMessages.add(message);
+    }
+
+    private synchronized void addProtocolError(String error) {
+        mProtocolErrors.add(error);
+    }
+
+    private BluetoothGatt connectGatt(BluetoothGattCallback callback) {
+        connectGattCount.incrementAndGet();
+        Connection connection = new Connection(callback);
+        mAir.schedule(() -> mBinder.execute(() -> {
+            mConnection = connection;
+            connection.connect();
+        }), LINK_SETUP_MILLIS, TimeUnit.MILLISECONDS);
+        return connection.gatt;
+    }
+
+    static class Type {
+        static final int CTRL = BlufiParameter.Type.Ctrl.PACKAGE_VALUE;
+        static final int DATA = BlufiParameter.Type.Data.PACKAGE_VALUE;
+    }
+
+    static class Message {
+        final int pkgType;
+        final int subType;
+        final byte[] data;
+
+        Message(int pkgType, int subType, byte[] data) {
+            this.pkgType = pkgType;
+            this.subType = subType;
+            this.data = data;
+        }
+    }
+
+    private interface CallbackAction {
+        void run(BluetoothGattCallback callback);
+    }
+
+    /**
+     * The gatt of one connectGatt call, with the state the firmware keeps for a connection.
+     */
+    private class Connection {
+        final BluetoothGattCallback callback;
+        final BluetoothGatt gatt;
+        final BluetoothGattService service;
+        final BluetoothGattCharacteristic writeChar;
+        final BluetoothGattCharacteristic notifyChar;
+        final BluetoothGattDescriptor notifyDesc;
+
+        volatile boolean connected;
+        volatile boolean closed;
+        boolean writing;
+
+        int readSequence = -1;
+        int sendSequence = -1;
+        final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        boolean secured;
+        byte[] aesKey;
+        Cipher encryptorV2;
+        Cipher decryptorV2;
+        int statusRequests;
+        int scanRequests;
+
+        Connection(BluetoothGattCallback callback) {
+            this.callback = callback;
+            gatt = mock(BluetoothGatt.class, withSettings().stubOnly());
+            service = mock(BluetoothGattService.class, withSettings().stubOnly());
+            writeChar = mockCharacteristic(BlufiParameter.UUID_WRITE_CHARACTERISTIC);
+            notifyChar = mockCharacteristic(BlufiParameter.UUID_NOTIFICATION_CHARACTERISTIC);
+            notifyDesc = mock(BluetoothGattDescriptor.class, withSettings().stubOnly());
+
+            when(writeChar.getProperties()).thenAnswer(invocation -> writeProperties);
+            when(notifyDesc.getUuid()).thenReturn(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR);
+            when(notifyDesc.getCharacteristic()).thenReturn(notifyChar);
+            when(notifyChar.getDescriptor(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR)).thenReturn(notifyDesc);
+            when(service.getUuid()).thenReturn(BlufiParameter.UUID_SERVICE);
+            when(service.getCharacteristic(BlufiParameter.UUID_WRITE_CHARACTERISTIC)).thenReturn(writeChar);
+            when(service.getCharacteristic(BlufiParameter.UUID_NOTIFICATION_CHARACTERISTIC)).thenReturn(notifyChar);
+
+            when(gatt.getDevice()).thenReturn(device);
+            when(gatt.getService(BlufiParameter.UUID_SERVICE)).thenReturn(service);
+            when(gatt.setCharacteristicNotification(any(), anyBoolean())).thenReturn(true);
+            when(gatt.requestConnectionPriority(anyInt())).thenReturn(true);
+            when(gatt.connect()).thenAnswer(invocation -> {
+                gattConnectCount.incrementAndGet();
+                mAir.schedule(() -> mBinder.execute(() -> {
+                    mConnection = this;
+                    connect();
+                }), LINK_SETUP_MILLIS, TimeUnit.MILLISECONDS);
+                return true;
+            });
+            doAnswer(invocation -> {
+                mBinder.execute(() -> {
+                    if (connected) {
+                        connected = false;
+                        callback(cb -> cb.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                BluetoothProfile.STATE_DISCONNECTED));
+                    }
+                });
+                return null;
+            }).when(gatt).disconnect();
+            doAnswer(invocation -> {
+                closeCount.incrementAndGet();
+                closed = true;
+                connected = false;
+                return null;
+            }).when(gatt).close();
+            when(gatt.discoverServices()).thenAnswer(invocation -> {
+                discoverCount.incrementAndGet();
+                mBinder.execute(() -> {
+                    if (disconnectOnDiscover) {
+                        connected = false;
+                        callback(cb -> cb.onConnectionStateChange(gatt, GATT_CONN_TIMEOUT,
+                                BluetoothProfile.STATE_DISCONNECTED));
+                    } else {
+                        callback(cb -> cb.onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS));
+                    }
+                });
+                return true;
+            });
+            when(gatt.writeDescriptor(notifyDesc)).thenAnswer(invocation -> {
+                descriptorWriteCount.incrementAndGet();
+                mBinder.execute(() -> callback(cb -> cb.onDescriptorWrite(gatt, notifyDesc,
+                        BluetoothGatt.GATT_SUCCESS)));
+                return true;
+            });
+            when(gatt.writeCharacteristic(writeChar)).thenAnswer(invocation -> writeCharacteristic());
+        }
+
+        private BluetoothGattCharacteristic mockCharacteristic(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class, withSettings().stubOnly());
+            AtomicReference<byte[]> value = new AtomicReference<>();
+            AtomicInteger writeType = new AtomicInteger(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            when(characteristic.getUuid()).thenReturn(uuid);
+            when(characteristic.getService()).thenAnswer(invocation -> service);
+            when(characteristic.setValue(any(byte[].class))).thenAnswer(invocation -> {
+                value.set(invocation.getArgument(0));
+                return true;
+            });
+            when(characteristic.getValue()).thenAnswer(invocation -> value.get());
+            when(characteristic.getWriteType()).thenAnswer(invocation -> writeType.get());
+            doAnswer(invocation -> {
+                writeType.set(invocation.getArgument(0));
+                return null;
+            }).when(characteristic).setWriteType(anyInt());
+            return characteristic;
+        }
+
+        void callback(CallbackAction action) {
+            if (!closed) {
+                action.run(callback);
+            }
+        }
+
+        void connect() {
+            readSequence = -1;
+            sendSequence = -1;
+            fragments.reset();
+            secured = false;
+            aesKey = null;
+            if (connectStatus != BluetoothGatt.GATT_SUCCESS) {
+                callback(cb -> cb.onConnectionStateChange(gatt, connectStatus, BluetoothProfile.STATE_DISCONNECTED));
+                return;
+            }
+            connected = true;
+            callback(cb -> cb.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_CONNECTED));
+        }
+
+        boolean writeCharacteristic() {
+            synchronized (this) {
+                if (writing || !connected) {
+                    return false;
+                }
+                writing = true;
+            }
+            byte[] frame = writeChar.getValue().clone();
+            boolean noResponse = writeChar.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            Runnable receive = () -> mBinder.execute(() -> {
+                synchronized (this) {
+                    writing = false;
+                }
+                if (!connected) {
+                    return;
+                }
+                frameCount.incrementAndGet();
+                if (noResponse) {
+                    noResponseFrameCount.incrementAndGet();
+                }
+                try {
+                    onFrame(frame);
+                } catch (Exception e) {
+                    addProtocolError("Frame failed: " + e);
+                }
+                if (writesReported) {
+                    callback(cb -> cb.onCharacteristicWrite(gatt, writeChar, BluetoothGatt.GATT_SUCCESS));
+                }
+            });
+            long latency = writeLatencyMillis;
+            if (latency > 0) {
+                mAir.schedule(receive, latency, TimeUnit.MILLISECONDS);
+            } else {
+                receive.run();
+            }
+            return true;
+        }
+
+        void onFrame(byte[] frame) throws Exception {
+            if (silent) {
+                return;
+            }
+            addFrame(frame);
+            int type = frame[0] & 0xff;
+            int frameCtrl = frame[1] & 0xff;
+            int sequence = frame[2] & 0xff;
+            int length = frame[3] & 0xff;
+            if (sequence != ((readSequence + 1) & 0xff)) {
+                addProtocolError("Sequence " + sequence + " after " + readSequence);
+            }
+            readSequence = sequence;
+            boolean checksum = (frameCtrl & 0b10) != 0;
+            if (frame.length != 4 + length + (checksum ? 2 : 0)) {
+                addProtocolError("Frame length " + frame.length + " for data length " + length);
+                return;
+            }
+            byte[] data = Arrays.copyOfRange(frame, 4, 4 + length);
+            if ((frameCtrl & 0b1) != 0 && length > 0) {
+                data = decrypt(sequence, data);
+            }
+            if (checksum) {
+                int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) length});
+                crc = BlufiCRC.calcCRC(crc, data);
+                int expect = (frame[4 + length] & 0xff) | (frame[5 + length] & 0xff) << 8;
+                if (crc != expect) {
+                    addProtocolError("Checksum of sequence " + sequence);
+                    return;
+                }
+            }
+            if (type == rejectedType) {
+                sendFrame(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_ERROR, new byte[]{9}, false);
+                return;
+            }
+            if ((frameCtrl & 0b1000) != 0) {
+                sendFrame(Type.CTRL, BlufiParameter.Type.Ctrl.SUBTYPE_ACK, new byte[]{(byte) sequence}, false);
+            }
+            if ((frameCtrl & 0b10000) != 0) {
+                fragments.write(data, 2, data.length - 2);
+                return;
+            }
+            fragments.write(data, 0, data.length);
+            byte[] message = fragments.toByteArray();
+            fragments.reset();
+            onMessage(type & 0b11, type >> 2, message);
+        }
+
+        void onMessage(int pkgType, int subType, byte[] data) throws Exception {
+            addMessage(new Message(pkgType, subType, data));
+            if (pkgType == Type.CTRL) {
+                switch (subType) {
+                    case BlufiParameter.Type.Ctrl.SUBTYPE_SET_SEC_MODE:
+                        secured = aesKey != null;
+                        break;
+                    case BlufiParameter.Type.Ctrl.SUBTYPE_CONNECT_WIFI:
+                        sendStatus();
+                        break;
+                    case BlufiParameter.Type.Ctrl.SUBTYPE_GET_WIFI_STATUS:
+                        answer(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, nextStatus());
+                        break;
+                    case BlufiParameter.Type.Ctrl.SUBTYPE_GET_VERSION:
+                        answer(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_VERSION,
+                                new byte[]{(byte) versionMajor, (byte) versionMinor});
+                        break;
+                    case BlufiParameter.Type.Ctrl.SUBTYPE_GET_WIFI_LIST:
+                        answer(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_WIFI_LIST, nextWifiList());
+                        break;
+                }
+            } else {
+                switch (subType) {
+                    case BlufiParameter.Type.Data.SUBTYPE_NEG:
+                        onNegotiation(data);
+                        break;
+                    case BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA:
+                        sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_CUSTOM_DATA, data);
+                        break;
+                }
+            }
+        }
+
+        void sendStatus() throws Exception {
+            sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, nextStatus());
+        }
+
+        byte[] nextStatus() {
+            statusRequests++;
+            int staConn = statusRequests > staConnectedAfterStatusRequests ? 0 : 2;
+            return new byte[]{BlufiParameter.OP_MODE_STA, (byte) staConn, (byte) statusRequests};
+        }
+
+        byte[] nextWifiList() {
+            scanRequests++;
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            for (int i = 0; i < 3; i++) {
+                byte[] ssid = ("AP-" + scanRequests + "-" + i).getBytes();
+                list.write(ssid.length + 1);
+                list.write(-40 - i);
+                list.write(ssid, 0, ssid.length);
+            }
+            return list.toByteArray();
+        }
+
+        /**
+         * Send the answer to a request after {@link #answerDelayMillis}, and after the answers before it.
+         */
+        void answer(int pkgType, int subType, byte[] data) throws Exception {
+            long now = System.nanoTime();
+            long delay = mAnswers.isEmpty() ? answerDelayMillis :
+                    Math.max(answerDelayMillis, TimeUnit.NANOSECONDS.toMillis(mLastAnswerNanos - now));
+            if (delay <= 0 && mAnswers.isEmpty()) {
+                sendData(pkgType, subType, data);
+                return;
+            }
+            mLastAnswerNanos = now + TimeUnit.MILLISECONDS.toNanos(delay);
+            mAnswers.add(new byte[][]{{(byte) pkgType, (byte) subType}, data});
+            // Each timer sends the oldest answer, so a shorter delay does not overtake an answer before it
+            mAir.schedule(() -> mBinder.execute(() -> {
+                byte[][] answer = mAnswers.poll();
+                try {
+                    sendData(answer[0][0], answer[0][1], answer[1]);
+                } catch (Exception e) {
+                    addProtocolError("Answer failed: " + e);
+                }
+            }), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+
+        boolean isVersionAtLeast(int version) {
+            return (versionMajor << 8 | versionMinor) >= version;
+        }
+
+        void onNegotiation(byte[] data) throws Exception {
+            switch (data[0]) {
+                case 0x01:
+                    onDHParams(data);
+                    break;
+                case 0x05:
+                    if (resumeSupported && isVersionAtLeast(0x0105)) {
+                        onResume(data);
+                    } else if (isVersionAtLeast(0x0105)) {
+                        // Firmware of BluFi 1.5 without a ticket store rejects every ticket
+                        sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_ERROR, new byte[]{3});
+                    }
+                    break;
+                case 0x06:
+                    if (ecdhSupported && isVersionAtLeast(0x0105)) {
+                        onECDHKey(Arrays.copyOfRange(data, 1, data.length));
+                    } else if (isVersionAtLeast(0x0105)) {
+                        sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_ERROR, new byte[]{3});
+                    }
+                    break;
+                default:
+                    // Stock firmware ignores the types it does not know
+                    break;
+            }
+        }
+
+        void onDHParams(byte[] data) throws Exception {
+            int position = 1;
+            int pLength = (data[position] & 0xff) << 8 | (data[position + 1] & 0xff);
+            position += 2;
+            BigInteger p = new BigInteger(1, Arrays.copyOfRange(data, position, position + pLength));
+            position += pLength;
+            int gLength = (data[position] & 0xff) << 8 | (data[position + 1] & 0xff);
+            position += 2;
+            BigInteger g = new BigInteger(1, Arrays.copyOfRange(data, position, position + gLength));
+            position += gLength;
+            int kLength = (data[position] & 0xff) << 8 | (data[position + 1] & 0xff);
+            position += 2;
+            BigInteger clientKey = new BigInteger(1, Arrays.copyOfRange(data, position, position + kLength));
+
+            BigInteger x = new BigInteger(256, new SecureRandom());
+            byte[] secret = clientKey.modPow(x, p).toByteArray();
+            int zeros = 0;
+            while (zeros < secret.length - 1 && secret[zeros] == 0) {
+                zeros++;
+            }
+            setupKeys(Arrays.copyOfRange(secret, zeros, secret.length));
+            sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_NEG, BlufiDH.toUnsignedBytes(g.modPow(x, p), pLength));
+        }
+
+        void onECDHKey(byte[] clientKey) throws Exception {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair keyPair = generator.generateKeyPair();
+            ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+            ECPoint point = new ECPoint(new BigInteger(1, Arrays.copyOfRange(clientKey, 1, 33)),
+                    new BigInteger(1, Arrays.copyOfRange(clientKey, 33, 65)));
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(
+                    new ECPublicKeySpec(point, publicKey.getParams()));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(peer, true);
+            setupKeys(agreement.generateSecret());
+
+            byte[] keyBytes = new byte[65];
+            keyBytes[0] = 0x04;
+            System.arraycopy(BlufiDH.toUnsignedBytes(publicKey.getW().getAffineX(), 32), 0, keyBytes, 1, 32);
+            System.arraycopy(BlufiDH.toUnsignedBytes(publicKey.getW().getAffineY(), 32), 0, keyBytes, 33, 32);
+            sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_NEG, keyBytes);
+        }
+
+        void onResume(byte[] data) throws Exception {
+            byte[] id = Arrays.copyOfRange(data, 1, 17);
+            byte[] clientNonce = Arrays.copyOfRange(data, 17, 33);
+            byte[] clientProof = Arrays.copyOfRange(data, 33, 65);
+            byte[] secret;
+            synchronized (FakeBlufiDevice.this) {
+                secret = mTickets.remove(Arrays.toString(id));
+            }
+            if (secret == null || !Arrays.equals(clientProof,
+                    BlufiHash.getHmacSHA256Bytes(secret, "blufi_resume_client".getBytes(), id, clientNonce))) {
+                sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_ERROR, new byte[]{3});
+                return;
+            }
+            byte[] deviceNonce = BlufiSessionTicket.generateNonce();
+            byte[] deviceProof = BlufiHash.getHmacSHA256Bytes(secret, "blufi_resume_device".getBytes(), clientNonce,
+                    deviceNonce);
+            setupKeys(BlufiHash.getHmacSHA256Bytes(secret, "blufi_resume_key".getBytes(), clientNonce, deviceNonce));
+            resumeCount.incrementAndGet();
+            byte[] answer = new byte[deviceNonce.length + deviceProof.length];
+            System.arraycopy(deviceNonce, 0, answer, 0, deviceNonce.length);
+            System.arraycopy(deviceProof, 0, answer, deviceNonce.length, deviceProof.length);
+            sendData(Type.DATA, BlufiParameter.Type.Data.SUBTYPE_NEG, answer);
+        }
+
+        void setupKeys(byte[] secret) throws Exception {
+            if (resumeSupported) {
+                BlufiSessionTicket ticket = BlufiSessionTicket.fromSecretKey(secret);
+                synchronized (FakeBlufiDevice.this) {
+                    mTickets.put(Arrays.toString(ticket.getId()), ticket.getSecret());
+                }
+            }
+            if (isVersionAtLeast(0x0104)) {
+                aesKey = MessageDigest.getInstance("SHA-256").digest(secret);
+                encryptorV2 = Cipher.getInstance("AES/CTR/NoPadding");
+                encryptorV2.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+                        new IvParameterSpec(iv2("blufi_enc", secret)));
+                decryptorV2 = Cipher.getInstance("AES/CTR/NoPadding");
+                decryptorV2.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+                        new IvParameterSpec(iv2("blufi_dec", secret)));
+            } else {
+                aesKey = MessageDigest.getInstance("MD5").digest(secret);
+            }
+        }
+
+        byte[] iv2(String domain, byte[] secret) throws Exception {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(domain.getBytes());
+            digest.update(secret);
+            return Arrays.copyOf(digest.digest(), 16);
+        }
+
+        byte[] decrypt(int sequence, byte[] data) throws Exception {
+            if (isVersionAtLeast(0x0104)) {
+                return decryptorV2.update(data);
+            }
+            return cfb(Cipher.DECRYPT_MODE, sequence, data);
+        }
+
+        byte[] encrypt(int sequence, byte[] data) throws Exception {
+            if (isVersionAtLeast(0x0104)) {
+                return encryptorV2.update(data);
+            }
+            return cfb(Cipher.ENCRYPT_MODE, sequence, data);
+        }
+
+        byte[] cfb(int mode, int sequence, byte[] data) throws Exception {
+            byte[] iv = new byte[16];
+            iv[0] = (byte) sequence;
+            Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
+            cipher.init(mode, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(iv));
+            return cipher.doFinal(data);
+        }
+
+        void sendData(int pkgType, int subType, byte[] data) throws Exception {
+            int checksumLength = secured ? 2 : 0;
+            if (4 + data.length + checksumLength <= NOTIFY_FRAME_LENGTH) {
+                sendFrame(pkgType, subType, data, false);
+                return;
+            }
+            int fragmentLength = NOTIFY_FRAME_LENGTH - 4 - 2 - checksumLength;
+            for (int offset = 0; offset < data.length; ) {
+                int remain = data.length - offset;
+                boolean more = remain > fragmentLength;
+                byte[] body;
+                if (more) {
+                    body = new byte[fragmentLength + 2];
+                    body[0] = (byte) remain;
+                    body[1] = (byte) (remain >> 8);
+                    System.arraycopy(data, offset, body, 2, fragmentLength);
+                    offset += fragmentLength;
+                } else {
+                    body = Arrays.copyOfRange(data, offset, data.length);
+                    offset = data.length;
+                }
+                sendFrame(pkgType, subType, body, more);
+            }
+        }
+
+        void sendFrame(int pkgType, int subType, byte[] data, boolean frag) throws Exception {
+            boolean encrypt = secured && data.length > 0;
+            boolean checksum = secured;
+            int sequence = ++sendSequence & 0xff;
+            byte[] frame = new byte[4 + data.length + (checksum ? 2 : 0)];
+            frame[0] = (byte) (subType << 2 | pkgType);
+            frame[1] = (byte) ((encrypt ? 0b1 : 0) | (checksum ? 0b10 : 0) | 0b100 | (frag ? 0b10000 : 0));
+            frame[2] = (byte) sequence;
+            frame[3] = (byte) data.length;
+            System.arraycopy(encrypt ? encrypt(sequence, data) : data, 0, frame, 4, data.length);
+            if (checksum) {
+                int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) data.length});
+                crc = BlufiCRC.calcCRC(crc, data);
+                frame[4 + data.length] = (byte) crc;
+                frame[5 + data.length] = (byte) (crc >> 8);
+            }
+            mBinder.execute(() -> {
+                if (!connected) {
+                    return;
+                }
+                notifyChar.setValue(frame);
+                callback(cb -> cb.onCharacteristicChanged(gatt, notifyChar));
+            });
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import blufi.espressif.params.BlufiConfigureParams;
+import blufi.espressif.response.BlufiStatusResponse;
+import blufi.espressif.response.BlufiVersionResponse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Sessions of simulated devices for {@link BlufiFleetProvisioner}, each step completes after
+ * {@link #stepMillis}.
+ * <p>
+ * A device can be set to fail a step in its first attempts, or to stall a step in its first attempts:
+ * the future of a stalled step is never completed, not even by {@link BlufiFleetProvisioner.Session#close()}.
+ */
+class FakeSessionFactory implements BlufiFleetProvisioner.SessionFactory {
+    volatile long stepMillis = 1;
+
+    final AtomicInteger createdCount = new AtomicInteger();
+    final AtomicInteger closedCount = new AtomicInteger();
+    final AtomicInteger maxOpenCount = new AtomicInteger();
+
+    private final AtomicInteger mOpenCount = new AtomicInteger();
+    private final Map<String, Script> mScripts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> mAttempts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mAir = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FakeSessionAir");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Script {
+        final int step;
+        final int attempts;
+        final int status;
+
+        Script(int step, int attempts, int status) {
+            this.step = step;
+            this.attempts = attempts;
+            this.status = status;
+        }
+    }
+
+    static BluetoothDevice newDevice(int index) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(String.format("24:0A:C4:00:%02X:%02X", index >> 8, index & 0xff));
+        return device;
+    }
+
+    static List<BluetoothDevice> newDevices(int count) {
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            devices.add(newDevice(i));
+        }
+        return devices;
+    }
+
+    /**
+     * Fail the step of the first attempts of the device with the status.
+     */
+    void failStep(BluetoothDevice device, int step, int attempts, int status) {
+        mScripts.put(device.getAddress(), new Script(step, attempts, status));
+    }
+
+    /**
+     * Never complete the step of the first attempts of the device.
+     */
+    void stallStep(BluetoothDevice device, int step, int attempts) {
+        mScripts.put(device.getAddress(), new Script(step, attempts, BlufiCallback.STATUS_SUCCESS));
+    }
+
+    int getAttempts(BluetoothDevice device) {
+        AtomicInteger attempts = mAttempts.get(device.getAddress());
+        return attempts == null ? 0 : attempts.get();
+    }
+
+    int getOpenCount() {
+        return mOpenCount.get();
+    }
+
+    void shutdown() {
+        mAir.shutdownNow();
+    }
+
+    @Override
+    public BlufiFleetProvisioner.Session create(BluetoothDevice device, long stepTimeout) {
+        createdCount.incrementAndGet();
+        int open = mOpenCount.incrementAndGet();
+        int max;
+        while (open > (max = maxOpenCount.get()) && !maxOpenCount.compareAndSet(max, open)) {
+            Thread.yield();
+        }
+        int attempt = mAttempts.computeIfAbsent(device.getAddress(), address -> new AtomicInteger())
+                .incrementAndGet();
+        return new FakeSession(mScripts.get(device.getAddress()), attempt);
+    }
+
+    private class FakeSession implements BlufiFleetProvisioner.Session {
+        private final Script mScript;
+        private final int mAttempt;
+        private final List<BlufiFuture<?>> mPending = new ArrayList<>();
+        private boolean mClosed = false;
+
+        FakeSession(Script script, int attempt) {
+            mScript = script;
+            mAttempt = attempt;
+        }
+
+        private synchronized <T> BlufiFuture<T> step(int step, T result) {
+            BlufiFuture<T> future = new BlufiFuture<>();
+            if (mClosed) {
+                future.fail(BlufiCallback.CODE_CANCELLED);
+                return future;
+            }
+            if (mScript != null && mScript.step == step && mAttempt <= mScript.attempts) {
+                if (mScript.status == BlufiCallback.STATUS_SUCCESS) {
+                    return future;
+                }
+                mAir.schedule(() -> future.fail(mScript.status), stepMillis, TimeUnit.MILLISECONDS);
+                return future;
+            }
+            mPending.add(future);
+            mAir.schedule(() -> future.complete(result), stepMillis, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        @Override
+        public BlufiFuture<Void> connect() {
+            return step(BlufiFleetProvisioner.STEP_CONNECT, null);
+        }
+
+        @Override
+        public BlufiFuture<BlufiVersionResponse> requestDeviceVersion() {
+            BlufiVersionResponse version = new BlufiVersionResponse();
+            version.setVersionValues(1, 4);
+            return step(BlufiFleetProvisioner.STEP_VERSION, version);
+        }
+
+        @Override
+        public BlufiFuture<Void> negotiateSecurity() {
+            return step(BlufiFleetProvisioner.STEP_NEGOTIATE, null);
+        }
+
+        @Override
+        public BlufiFuture<Void> configure(BlufiConfigureParams params) {
+            return step(BlufiFleetProvisioner.STEP_CONFIGURE, null);
+        }
+
+        @Override
+        public BlufiFuture<BlufiStatusResponse> requestDeviceStatus() {
+            BlufiStatusResponse status = new BlufiStatusResponse();
+            status.setStaConnectionStatus(0);
+            return step(BlufiFleetProvisioner.STEP_WAIT_STA, status);
+        }
+
+        @Override
+        public void close() {
+            List<BlufiFuture<?>> pending;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                pending = new ArrayList<>(mPending);
+            }
+            for (BlufiFuture<?> future : pending) {
+                future.fail(BlufiCallback.CODE_CANCELLED);
+            }
+            mOpenCount.decrementAndGet();
+            closedCount.incrementAndGet();
+        }
+    }
+}
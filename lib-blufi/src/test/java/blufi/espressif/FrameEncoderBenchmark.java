@@ -0,0 +1,143 @@
+package blufi.espressif;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameEncoderBenchmark {
+    private static final int FRAMES = 20000;
+    private static final int DATA_LENGTH = 200;
+    private static final int POST_LENGTH = 14000;
+
+    private final byte[] mData = new byte[DATA_LENGTH];
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        new Random(1).nextBytes(mData);
+    }
+
+    @Test
+    public void encodeChecksumFrames() {
+        Runnable reference = () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sum += FrameEncoderTest.referenceFrame(0x4d, 0x02, i & 0xff, mData, true).length;
+            }
+            Benchmarks.sink = sum;
+        };
+        FrameEncoder encoder = new FrameEncoder();
+        Runnable pooled = () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sum += encoder.encode(0x4d, 0x02, i & 0xff, mData, 0, DATA_LENGTH, -1, true).length;
+            }
+            Benchmarks.sink = sum;
+        };
+        Benchmarks.report("ByteArrayOutputStream frame, " + DATA_LENGTH + " bytes",
+                Benchmarks.measure(FRAMES, reference));
+        Benchmarks.report("FrameEncoder frame, " + DATA_LENGTH + " bytes", Benchmarks.measure(FRAMES, pooled));
+        Benchmarks.report("ByteArrayOutputStream frame, " + DATA_LENGTH + " bytes",
+                Benchmarks.measureAllocation(FRAMES, reference), "bytes/op");
+        double pooledBytes = Benchmarks.measureAllocation(FRAMES, pooled);
+        Benchmarks.report("FrameEncoder frame, " + DATA_LENGTH + " bytes", pooledBytes, "bytes/op");
+        assertEquals(0, pooledBytes, 0);
+    }
+
+    @Test
+    public void encodeNonDataFrames() {
+        Runnable reference = () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sum += FrameEncoderTest.referenceFrame(0x12, 0x02, i & 0xff, null, true).length;
+            }
+            Benchmarks.sink = sum;
+        };
+        FrameEncoder encoder = new FrameEncoder();
+        Runnable pooled = () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sum += encoder.encodeNonData(0x12, 0x02, i & 0xff, true).length;
+            }
+            Benchmarks.sink = sum;
+        };
+        Benchmarks.report("ByteArrayOutputStream ack frame", Benchmarks.measure(FRAMES, reference));
+        Benchmarks.report("FrameEncoder ack frame", Benchmarks.measure(FRAMES, pooled));
+        Benchmarks.report("ByteArrayOutputStream ack frame", Benchmarks.measureAllocation(FRAMES, reference),
+                "bytes/op");
+        double pooledBytes = Benchmarks.measureAllocation(FRAMES, pooled);
+        Benchmarks.report("FrameEncoder ack frame", pooledBytes, "bytes/op");
+        assertEquals(0, pooledBytes, 0);
+    }
+
+    /**
+     * A write result hops to the lane once per frame, the client passes a preallocated runnable for it.
+     */
+    @Test
+    public void laneDispatchOfWriteResults() {
+        SerialLane lane = new SerialLane(Runnable::run, null);
+        Runnable preallocated = () -> Benchmarks.sink++;
+        double capturingBytes = Benchmarks.measureAllocation(FRAMES, () -> {
+            for (int i = 0; i < FRAMES; i++) {
+                final boolean success = (i & 1) == 0;
+                lane.executeInline(() -> Benchmarks.sink += success ? 1 : 0);
+            }
+        });
+        double preallocatedBytes = Benchmarks.measureAllocation(FRAMES, () -> {
+            for (int i = 0; i < FRAMES; i++) {
+                lane.executeInline(preallocated);
+            }
+        });
+        Benchmarks.report("Lane dispatch, capturing lambda", capturingBytes, "bytes/op");
+        Benchmarks.report("Lane dispatch, preallocated runnable", preallocatedBytes, "bytes/op");
+        assertEquals(0, preallocatedBytes, 0);
+    }
+
+    /**
+     * The bytes allocated per frame of a post to {@link FakeBlufiDevice}. The scheduler threads only run the client,
+     * they also parse the echo of the data. The binder thread also runs the mocked gatt of the fake, whose
+     * invocations take most of its bytes.
+     */
+    @Test
+    public void sendPathAllocation() throws InterruptedException {
+        FakeBlufiDevice device = new FakeBlufiDevice("24:0A:C4:00:00:04");
+        RecordingCallback callback = new RecordingCallback();
+        BlufiClient client = callback.newClient(device);
+        try {
+            client.connect();
+            RecordingCallback.take(callback.prepared);
+            client.setPostPackageLengthLimit(128);
+            byte[] data = new byte[POST_LENGTH];
+            double[] schedulerBytes = new double[3];
+            double[] binderBytes = new double[3];
+            for (int i = 0; i < 2 * schedulerBytes.length; i++) {
+                int framesBefore = device.frameCount.get();
+                long schedulerBefore = Benchmarks.allocatedBytesOfThreads("Blufi-");
+                long binderBefore = Benchmarks.allocatedBytesOfThreads("FakeBinder-");
+                BlufiFuture<Void> future = client.postCustomDataAsync(data);
+                assertTrue(future.await(60000L) && future.isSuccess());
+                int frames = device.frameCount.get() - framesBefore;
+                if (i >= schedulerBytes.length) {
+                    // After the warm up posts
+                    int round = i - schedulerBytes.length;
+                    schedulerBytes[round] =
+                            (double) (Benchmarks.allocatedBytesOfThreads("Blufi-") - schedulerBefore) / frames;
+                    binderBytes[round] =
+                            (double) (Benchmarks.allocatedBytesOfThreads("FakeBinder-") - binderBefore) / frames;
+                }
+            }
+            Arrays.sort(schedulerBytes);
+            Arrays.sort(binderBytes);
+            Benchmarks.report("Post, 128 bytes packages, scheduler threads", schedulerBytes[1], "bytes/frame");
+            Benchmarks.report("Post, 128 bytes packages, binder and mocked gatt", binderBytes[1], "bytes/frame");
+        } finally {
+            client.close();
+            device.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import blufi.espressif.params.BlufiParameter;
+import blufi.espressif.security.BlufiCRC;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FrameEncoderTest {
+    /**
+     * The frame layout the client wrote before frames were encoded into reusable buffers.
+     */
+    static byte[] referenceFrame(int type, int frameCtrl, int sequence, byte[] data, boolean checksum) {
+        ByteArrayOutputStream byteOS = new ByteArrayOutputStream();
+        int dataLength = data == null ? 0 : data.length;
+        byteOS.write(type);
+        byteOS.write(frameCtrl);
+        byteOS.write(sequence);
+        byteOS.write(dataLength);
+        if (data != null) {
+            byteOS.write(data, 0, data.length);
+        }
+        if (checksum) {
+            int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) dataLength});
+            if (dataLength > 0) {
+                crc = BlufiCRC.calcCRC(crc, data);
+            }
+            byteOS.write(crc & 0xff);
+            byteOS.write(crc >> 8 & 0xff);
+        }
+        return byteOS.toByteArray();
+    }
+
+    static byte[] fragmentData(int totalLength, byte[] data, int offset, int length) {
+        byte[] result = new byte[length + 2];
+        result[0] = (byte) totalLength;
+        result[1] = (byte) (totalLength >> 8);
+        System.arraycopy(data, offset, result, 2, length);
+        return result;
+    }
+
+    @Test
+    public void encodeNonDataMatchesReferenceForEverySequence() {
+        FrameEncoder encoder = new FrameEncoder();
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(false, true, BlufiParameter.DIRECTION_OUTPUT, true, false);
+        for (int sequence = 0; sequence < 256; sequence++) {
+            assertArrayEquals(referenceFrame(0x12, frameCtrl, sequence, null, true),
+                    encoder.encodeNonData(0x12, frameCtrl, sequence, true));
+            assertArrayEquals(referenceFrame(0x12, 0, sequence, null, false),
+                    encoder.encodeNonData(0x12, 0, sequence, false));
+        }
+    }
+
+    @Test
+    public void encodeMatchesReferenceForEveryLength() {
+        FrameEncoder encoder = new FrameEncoder();
+        Random random = new Random(1);
+        byte[] data = new byte[FrameEncoder.DATA_LENGTH_MAX + 16];
+        random.nextBytes(data);
+        for (int length = 0; length <= FrameEncoder.DATA_LENGTH_MAX; length++) {
+            int offset = random.nextInt(16);
+            int sequence = random.nextInt(256);
+            byte[] expected = referenceFrame(0x4d, 0x02, sequence, Arrays.copyOfRange(data, offset, offset + length),
+                    true);
+            assertArrayEquals("length " + length, expected,
+                    encoder.encode(0x4d, 0x02, sequence, data, offset, length, -1, true));
+        }
+    }
+
+    @Test
+    public void encodeFragmentWritesTotalLengthBeforeData() {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] data = new byte[600];
+        new Random(2).nextBytes(data);
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(false, true, BlufiParameter.DIRECTION_OUTPUT, false, true);
+        byte[] frame = encoder.encode(0x4d, frameCtrl, 7, data, 100, 200, 500, true);
+        assertArrayEquals(referenceFrame(0x4d, frameCtrl, 7, fragmentData(500, data, 100, 200), true), frame);
+        assertEquals(500, (frame[4] & 0xff) | (frame[5] & 0xff) << 8);
+    }
+
+    @Test
+    public void framesOfOneLengthShareTheirBuffer() {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] data = new byte[20];
+        byte[] first = encoder.encode(1, 0, 0, data, 0, 10, -1, false);
+        byte[] second = encoder.encode(1, 0, 1, data, 0, 10, -1, false);
+        byte[] longer = encoder.encode(1, 0, 2, data, 0, 11, -1, false);
+        assertSame(first, second);
+        assertNotSame(first, longer);
+        assertEquals(1, second[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeRejectsDataLongerThanTheLengthByte() {
+        new FrameEncoder().encode(1, 0, 0, new byte[300], 0, FrameEncoder.DATA_LENGTH_MAX - 1, 0, false);
+    }
+}
@@ -0,0 +1,127 @@
+package blufi.espressif;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import blufi.espressif.params.BlufiParameter;
+import blufi.espressif.security.BlufiCRC;
+
+/**
+ * Compare the parse path before the frame view, which allocated the frame control, the data and a stream for
+ * every frame, with FrameView and the preallocating BlufiNotifyData. The message is fragmented as the device
+ * fragments it for a package length of 20 bytes, the default, 128 bytes and 255 bytes, the most.
+ */
+public class FrameViewBenchmark {
+    private static final int MESSAGES = 2000;
+    private static final int MESSAGE_LENGTH = 1000;
+    private static final int[] PACKAGE_LENGTHS = {20, 128, 255};
+
+    private byte[] mMessage;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        mMessage = new byte[MESSAGE_LENGTH];
+        new Random(1).nextBytes(mMessage);
+    }
+
+    /**
+     * @return the frames of the message in packages of the length, with the data limit of BlufiClientImpl
+     */
+    private List<byte[]> fragment(int packageLength) {
+        int fragmentLength = packageLength - FrameEncoder.HEADER_LENGTH - FrameEncoder.TOTAL_LENGTH_LENGTH
+                - FrameEncoder.CHECKSUM_LENGTH;
+        List<byte[]> frames = new ArrayList<>();
+        FrameEncoder encoder = new FrameEncoder();
+        int sequence = 0;
+        for (int offset = 0; offset < MESSAGE_LENGTH; offset += fragmentLength) {
+            int length = Math.min(fragmentLength, MESSAGE_LENGTH - offset);
+            boolean frag = offset + length < MESSAGE_LENGTH;
+            int frameCtrl = FrameCtrlData.getFrameCTRLValue(false, true, BlufiParameter.DIRECTION_INPUT, false,
+                    frag);
+            byte[] frame = encoder.encode((0x13 << 2) | 1, frameCtrl, sequence++, mMessage, offset, length,
+                    frag ? MESSAGE_LENGTH - offset : -1, true);
+            frames.add(frame.clone());
+        }
+        return frames;
+    }
+
+    private int parseWithAllocations(byte[] response, ByteArrayOutputStream dataOS) {
+        int sequence = response[2] & 0xff;
+        FrameCtrlData frameCtrlData = new FrameCtrlData(response[1] & 0xff);
+        int dataLen = response[3] & 0xff;
+        byte[] dataBytes = new byte[dataLen];
+        System.arraycopy(response, 4, dataBytes, 0, dataLen);
+        if (frameCtrlData.isChecksum()) {
+            int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) dataLen});
+            crc = BlufiCRC.calcCRC(crc, dataBytes);
+            int expect = (response[response.length - 2] & 0xff) | (response[response.length - 1] & 0xff) << 8;
+            if (crc != expect) {
+                return -4;
+            }
+        }
+        int dataOffset = frameCtrlData.hasFrag() ? 2 : 0;
+        dataOS.write(dataBytes, dataOffset, dataBytes.length - dataOffset);
+        return frameCtrlData.hasFrag() ? 1 : 0;
+    }
+
+    private int parseWithView(FrameView frame, byte[] buffer, BlufiNotifyData notification) {
+        int dataLen = frame.getDataLength();
+        System.arraycopy(frame.array(), frame.getDataOffset(), buffer, 0, dataLen);
+        if (frame.isChecksum()) {
+            int crc = BlufiCRC.calcCRC(0, frame.array(), frame.getSequenceOffset(), 2);
+            crc = BlufiCRC.calcCRC(crc, buffer, 0, dataLen);
+            if (crc != frame.getChecksum()) {
+                return -4;
+            }
+        }
+        if (frame.hasFrag()) {
+            int totalLen = (buffer[0] & 0xff) | (buffer[1] & 0xff) << 8;
+            return notification.addFragment(buffer, 2, dataLen - 2, totalLen) ? 1 : -5;
+        }
+        return notification.addLastFragment(buffer, 0, dataLen) ? 0 : -5;
+    }
+
+    @Test
+    public void parseFragmentedMessages() {
+        for (int packageLength : PACKAGE_LENGTHS) {
+            List<byte[]> frames = fragment(packageLength);
+            double allocating = Benchmarks.measure(MESSAGES, () -> {
+                long sum = 0;
+                for (int i = 0; i < MESSAGES; i++) {
+                    ByteArrayOutputStream dataOS = new ByteArrayOutputStream();
+                    for (byte[] frame : frames) {
+                        parseWithAllocations(frame, dataOS);
+                    }
+                    sum += dataOS.toByteArray().length;
+                }
+                Benchmarks.sink = sum;
+            });
+            FrameView view = new FrameView();
+            byte[] buffer = new byte[FrameEncoder.DATA_LENGTH_MAX];
+            BlufiNotifyData notification = new BlufiNotifyData(4096);
+            double viewed = Benchmarks.measure(MESSAGES, () -> {
+                long sum = 0;
+                for (int i = 0; i < MESSAGES; i++) {
+                    for (byte[] frame : frames) {
+                        parseWithView(view.wrap(frame), buffer, notification);
+                    }
+                    sum += notification.getDataArray().length;
+                    notification.reset();
+                }
+                Benchmarks.sink = sum;
+            });
+            String name = "package " + packageLength + ", " + frames.size() + " frames per "
+                    + MESSAGE_LENGTH + "-byte message";
+            Benchmarks.report("allocating parse, " + name, allocating);
+            Benchmarks.report("allocating parse, " + name, frames.size() * 1e9 / allocating, "notifications/s");
+            Benchmarks.report("FrameView parse, " + name, viewed);
+            Benchmarks.report("FrameView parse, " + name, frames.size() * 1e9 / viewed, "notifications/s");
+        }
+    }
+}
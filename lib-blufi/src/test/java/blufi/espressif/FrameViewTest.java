@@ -0,0 +1,94 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import blufi.espressif.params.BlufiParameter;
+import blufi.espressif.security.BlufiCRC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameViewTest {
+    @Test
+    public void readsTheFieldsTheEncoderWrites() {
+        byte[] data = new byte[100];
+        new Random(1).nextBytes(data);
+        int type = (0x13 << 2) | 1;
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(true, true, BlufiParameter.DIRECTION_INPUT, true, true);
+        byte[] frame = new FrameEncoder().encode(type, frameCtrl, 200, data, 10, 50, 90, true);
+
+        FrameView view = new FrameView().wrap(frame);
+        assertSame(frame, view.array());
+        assertEquals(type, view.getType());
+        assertEquals(1, view.getPkgType());
+        assertEquals(0x13, view.getSubType());
+        assertEquals(frameCtrl, view.getFrameCtrl());
+        assertTrue(view.isEncrypted());
+        assertTrue(view.isChecksum());
+        assertTrue(view.isAckRequirement());
+        assertTrue(view.hasFrag());
+        assertEquals(200, view.getSequence());
+        assertEquals(52, view.getDataLength());
+        assertEquals(90, (frame[view.getDataOffset()] & 0xff) | (frame[view.getDataOffset() + 1] & 0xff) << 8);
+        assertEquals(data[10], frame[view.getDataOffset() + 2]);
+        assertTrue(view.isComplete());
+
+        int crc = BlufiCRC.calcCRC(0, frame, view.getSequenceOffset(), 2 + view.getDataLength());
+        assertEquals(crc, view.getChecksum());
+    }
+
+    @Test
+    public void flagsAreClearForAPlainFrame() {
+        byte[] frame = new FrameEncoder().encodeNonData(0x10, 0, 3, false);
+        FrameView view = new FrameView().wrap(frame);
+        assertFalse(view.isEncrypted());
+        assertFalse(view.isChecksum());
+        assertFalse(view.isAckRequirement());
+        assertFalse(view.hasFrag());
+        assertEquals(0, view.getDataLength());
+        assertTrue(view.isComplete());
+    }
+
+    @Test
+    public void readsAFrameInsideALargerArray() {
+        byte[] data = {1, 2, 3};
+        byte[] frame = new FrameEncoder().encode(0x4d, 0x02, 5, data, 0, data.length, -1, true);
+        byte[] slot = new byte[64];
+        System.arraycopy(frame, 0, slot, 7, frame.length);
+
+        FrameView view = new FrameView().wrap(slot, 7, frame.length);
+        assertEquals(0x4d, view.getType());
+        assertEquals(5, view.getSequence());
+        assertEquals(11, view.getDataOffset());
+        assertEquals(9, view.getSequenceOffset());
+        assertEquals(BlufiCRC.calcCRC(0, frame, 2, 2 + data.length), view.getChecksum());
+        assertTrue(view.isComplete());
+    }
+
+    @Test
+    public void truncatedFramesAreIncomplete() {
+        byte[] data = new byte[20];
+        byte[] frame = new FrameEncoder().encode(0x4d, 0x02, 0, data, 0, data.length, -1, true);
+        FrameView view = new FrameView();
+        // The checksum is part of the declared frame
+        assertFalse(view.wrap(frame, 0, frame.length - 1).isComplete());
+        assertFalse(view.wrap(frame, 0, 3).isComplete());
+        assertTrue(view.wrap(frame, 0, frame.length).isComplete());
+
+        byte[] plain = new FrameEncoder().encode(0x4d, 0, 0, data, 0, data.length, -1, false);
+        assertFalse(view.wrap(plain, 0, plain.length - 1).isComplete());
+        assertTrue(view.wrap(plain, 0, plain.length).isComplete());
+    }
+
+    @Test
+    public void clearReleasesTheArray() {
+        FrameView view = new FrameView().wrap(new byte[8]);
+        view.clear();
+        assertEquals(null, view.array());
+        assertEquals(0, view.length());
+    }
+}
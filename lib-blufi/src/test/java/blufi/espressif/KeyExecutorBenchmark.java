@@ -0,0 +1,93 @@
+package blufi.espressif;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import blufi.espressif.security.BlufiDH;
+import blufi.espressif.security.BlufiDHTest;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time the tasks of a client lane while 16 other clients generate ffdhe3072 key pairs, once with the key
+ * generation on the lane threads and once on the key threads of the scheduler.
+ */
+public class KeyExecutorBenchmark {
+    private static final int THREADS = 2;
+    private static final int CLIENTS = 16;
+    private static final int LANE_TASKS = 1000;
+    private static final long LANE_TASK_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private BlufiScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        mScheduler = new BlufiScheduler(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void laneLatencyDuringKeyGeneration() throws InterruptedException {
+        measure("key pairs on the lanes", false);
+        measure("key pairs on the key threads", true);
+    }
+
+    private void measure(String name, boolean onKeyThreads) throws InterruptedException {
+        CountDownLatch keysDone = new CountDownLatch(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            SerialLane clientLane = mScheduler.newLane();
+            Runnable generate = () -> {
+                BlufiDH dh = new BlufiDH(BlufiDHTest.FFDHE3072_P, BlufiDHTest.G, 3072, 275);
+                Benchmarks.sink = dh.getPublicKeyBytes().length;
+            };
+            if (onKeyThreads) {
+                // The result is passed back to the lane of the client
+                mScheduler.getKeyExecutor().execute(() -> {
+                    generate.run();
+                    clientLane.execute(keysDone::countDown);
+                });
+            } else {
+                clientLane.execute(() -> {
+                    generate.run();
+                    keysDone.countDown();
+                });
+            }
+        }
+
+        SerialLane lane = mScheduler.newLane();
+        long[] latencies = new long[LANE_TASKS];
+        int count = 0;
+        // Sample while the key pairs are being generated
+        while (count < LANE_TASKS && keysDone.getCount() > 0) {
+            LockSupport.parkNanos(LANE_TASK_GAP_NANOS);
+            CountDownLatch done = new CountDownLatch(1);
+            long[] runTime = new long[1];
+            long submitTime = System.nanoTime();
+            lane.execute(() -> {
+                runTime[0] = System.nanoTime();
+                done.countDown();
+            });
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+            latencies[count++] = runTime[0] - submitTime;
+        }
+        assertTrue(keysDone.await(60, TimeUnit.SECONDS));
+        Arrays.sort(latencies, 0, count);
+        System.out.println(String.format(Locale.ENGLISH, "%-30s %3d tasks, p50 %8.1f us, p90 %8.1f us, max %8.1f us",
+                name, count, latencies[count / 2] / 1000.0, latencies[count * 9 / 10] / 1000.0,
+                latencies[count - 1] / 1000.0));
+    }
+}
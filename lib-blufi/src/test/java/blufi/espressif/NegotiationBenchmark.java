@@ -0,0 +1,66 @@
+package blufi.espressif;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time the negotiation of a client with {@link FakeBlufiDevice}, whose writes complete after a connection
+ * interval, by device version and package length. Each round negotiates on a new connection.
+ */
+public class NegotiationBenchmark {
+    private static final int ROUNDS = 5;
+    private static final long WRITE_LATENCY = 7L;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void negotiationRoundTrip() throws InterruptedException {
+        for (int packageLength : new int[]{20, 128}) {
+            report("BluFi 1.3 DH 1024", packageLength, 3, false, true);
+            report("BluFi 1.4 DH ffdhe3072", packageLength, 4, false, true);
+            report("BluFi 1.5 ECDH", packageLength, 5, true, true);
+            report("BluFi 1.5 ECDH rejected, DH ffdhe3072", packageLength, 5, true, false);
+        }
+    }
+
+    private void report(String name, int packageLength, int versionMinor, boolean ecdh, boolean ecdhSupported)
+            throws InterruptedException {
+        long[] millis = new long[ROUNDS];
+        int writes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            FakeBlufiDevice device = new FakeBlufiDevice("24:0A:C4:00:00:03");
+            device.versionMinor = versionMinor;
+            device.ecdhSupported = ecdhSupported;
+            device.writeLatencyMillis = WRITE_LATENCY;
+            RecordingCallback callback = new RecordingCallback();
+            BlufiClient client = callback.newClient(device);
+            try {
+                client.setPostPackageLengthLimit(packageLength);
+                client.setECDHNegotiation(ecdh);
+                client.connect();
+                assertEquals(BlufiCallback.STATUS_SUCCESS, (int) RecordingCallback.take(callback.prepared));
+                int framesBefore = device.frameCount.get();
+                long start = System.nanoTime();
+                BlufiFuture<Void> future = client.negotiateSecurityAsync();
+                assertTrue(future.await(60000L) && future.isSuccess());
+                millis[i] = (System.nanoTime() - start) / 1000000L;
+                writes = device.frameCount.get() - framesBefore;
+            } finally {
+                client.close();
+                device.shutdown();
+            }
+        }
+        Arrays.sort(millis);
+        System.out.println(String.format(Locale.ENGLISH, "%-40s %3d bytes packages: %4d ms, %3d writes",
+                name, packageLength, millis[ROUNDS / 2], writes));
+    }
+}
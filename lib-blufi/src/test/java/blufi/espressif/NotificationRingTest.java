@@ -0,0 +1,76 @@
+package blufi.espressif;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRingTest {
+    private static byte[] take(NotificationRing ring) {
+        int index = ring.peek();
+        assertTrue("Ring is empty", index >= 0);
+        byte[] slot = ring.getSlot(index);
+        byte[] value = slot == null ? null : Arrays.copyOf(slot, ring.getLength(index));
+        ring.release();
+        return value;
+    }
+
+    @Test
+    public void keepsTheOrderOfTheValues() {
+        NotificationRing ring = new NotificationRing(4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.offer(new byte[]{(byte) i, (byte) (i + 1)}));
+            assertTrue(ring.offer(null));
+            assertArrayEquals(new byte[]{(byte) i, (byte) (i + 1)}, take(ring));
+            assertNull(take(ring));
+        }
+        assertTrue(ring.isEmpty());
+        assertEquals(-1, ring.peek());
+    }
+
+    @Test
+    public void dropsAValueOfferedWhileFull() {
+        NotificationRing ring = new NotificationRing(2);
+        assertTrue(ring.offer(new byte[]{1}));
+        assertTrue(ring.offer(new byte[]{2}));
+        assertFalse(ring.offer(new byte[]{3}));
+        assertFalse(ring.offer(new byte[]{4}));
+        assertEquals(2, ring.getDropCount());
+
+        // The values before the drops do not count them, the next value does
+        assertEquals(0, ring.getDropCount(ring.peek()));
+        assertArrayEquals(new byte[]{1}, take(ring));
+        assertTrue(ring.offer(new byte[]{5}));
+        assertEquals(0, ring.getDropCount(ring.peek()));
+        assertArrayEquals(new byte[]{2}, take(ring));
+        assertEquals(2, ring.getDropCount(ring.peek()));
+        assertArrayEquals(new byte[]{5}, take(ring));
+        assertEquals(2, ring.getPeakSize());
+    }
+
+    @Test
+    public void reusesASlotUnlessTheValueIsLonger() {
+        NotificationRing ring = new NotificationRing(1);
+        ring.offer(new byte[20]);
+        byte[] slot = ring.getSlot(ring.peek());
+        ring.release();
+
+        ring.offer(new byte[]{7, 8});
+        assertSame(slot, ring.getSlot(ring.peek()));
+        assertArrayEquals(new byte[]{7, 8}, take(ring));
+
+        ring.offer(new byte[100]);
+        assertEquals(100, ring.getSlot(ring.peek()).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACapacityWhichIsNotAPowerOfTwo() {
+        new NotificationRing(3);
+    }
+}
@@ -0,0 +1,60 @@
+package blufi.espressif;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time a fragmented post to {@link FakeBlufiDevice} whose writes complete after a latency, like a connection
+ * interval. Before the write completion drove the pacing, the client slept 10 ms after every frame, so the same
+ * post took at least the frame count times 10 ms.
+ */
+public class PostPacingBenchmark {
+    private static final int DATA_LENGTH = 1400;
+    private static final long SLEEP_PER_FRAME = 10L;
+
+    private FakeBlufiDevice mDevice;
+    private BlufiClient mClient;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        mDevice = new FakeBlufiDevice("24:0A:C4:00:00:02");
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.close();
+        }
+        if (mDevice != null) {
+            mDevice.shutdown();
+        }
+    }
+
+    @Test
+    public void postByWriteCompletion() throws InterruptedException {
+        RecordingCallback callback = new RecordingCallback();
+        mClient = callback.newClient(mDevice);
+        mClient.connect();
+        RecordingCallback.take(callback.prepared);
+
+        for (long latency : new long[]{0, 2, 7}) {
+            mDevice.writeLatencyMillis = latency;
+            byte[] data = new byte[DATA_LENGTH];
+            int framesBefore = mDevice.frameCount.get();
+            long start = System.nanoTime();
+            BlufiFuture<Void> future = mClient.postCustomDataAsync(data);
+            assertTrue(future.await(60000L) && future.isSuccess());
+            long elapsed = (System.nanoTime() - start) / 1000000L;
+            int frames = mDevice.frameCount.get() - framesBefore;
+            System.out.println(String.format(Locale.ENGLISH,
+                    "write latency %d ms: %d frames in %d ms, fixed sleep pacing needs at least %d ms",
+                    latency, frames, elapsed, frames * (latency + SLEEP_PER_FRAME)));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package blufi.espressif;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import blufi.espressif.response.BlufiStatusResponse;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Record the callbacks of a client so a test can wait for them.
+ */
+class RecordingCallback extends BlufiCallback {
+    static final long WAIT_TIMEOUT = 10000L;
+
+    final BlockingQueue<Integer> prepared = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> errors = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> negotiated = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> configured = new LinkedBlockingQueue<>();
+    final BlockingQueue<byte[]> customData = new LinkedBlockingQueue<>();
+    final BlockingQueue<BlufiStatusResponse> statusReports = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onGattPrepared(BlufiClient client, int status, BluetoothGatt gatt) {
+        prepared.add(status);
+    }
+
+    @Override
+    public void onError(BlufiClient client, int errCode) {
+        errors.add(errCode);
+    }
+
+    @Override
+    public void onNegotiateSecurityResult(BlufiClient client, int status) {
+        negotiated.add(status);
+    }
+
+    @Override
+    public void onPostConfigureParams(BlufiClient client, int status) {
+        configured.add(status);
+    }
+
+    @Override
+    public void onReceiveCustomData(BlufiClient client, int status, byte[] data) {
+        customData.add(data);
+    }
+
+    @Override
+    public void onDeviceStatusResponse(BlufiClient client, int status, BlufiStatusResponse response) {
+        if (status == STATUS_SUCCESS) {
+            statusReports.add(response);
+        }
+    }
+
+    /**
+     * @return the soft AP connection counts of the next status reports, which the fake device counts in
+     */
+    List<Integer> takeStatusReports(int count) throws InterruptedException {
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            counts.add(take(statusReports).getSoftAPConnectionCount());
+        }
+        return counts;
+    }
+
+    static <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T value = queue.poll(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No callback in " + WAIT_TIMEOUT + "ms", value);
+        return value;
+    }
+
+    /**
+     * Create a client of the device which invokes this callback directly on the threads of the client.
+     */
+    BlufiClient newClient(FakeBlufiDevice device) {
+        BlufiClient client = new BlufiClient(null, device.device);
+        client.setCallbackExecutor(Runnable::run);
+        client.setBlufiCallback(this);
+        return client;
+    }
+}
@@ -0,0 +1,158 @@
+package blufi.espressif;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialLaneTest {
+    private ExecutorService mPool;
+    private ScheduledExecutorService mTimer;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(4);
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void runsTasksOneAtATimeInOrderOnAPool() throws InterruptedException {
+        SerialLane lane = new SerialLane(mPool, mTimer);
+        int count = 2000;
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            lane.execute(() -> {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                order.add(index);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void executeInlineRunsOnTheCallingThreadIfIdle() {
+        SerialLane lane = new SerialLane(mPool, mTimer);
+        Thread[] thread = new Thread[1];
+        lane.executeInline(() -> thread[0] = Thread.currentThread());
+        assertSame(Thread.currentThread(), thread[0]);
+    }
+
+    @Test
+    public void executeInlineQueuesBehindTheRunningTask() {
+        SerialLane lane = new SerialLane(Runnable::run, mTimer);
+        List<String> order = new ArrayList<>();
+        lane.executeInline(() -> {
+            lane.executeInline(() -> order.add("nested"));
+            order.add("outer");
+        });
+        assertEquals(2, order.size());
+        assertEquals("outer", order.get(0));
+        assertEquals("nested", order.get(1));
+    }
+
+    @Test
+    public void aFailedTaskDoesNotStopTheLane() throws InterruptedException {
+        SerialLane lane = new SerialLane(mPool, mTimer);
+        CountDownLatch done = new CountDownLatch(1);
+        lane.execute(() -> {
+            throw new IllegalStateException("Test");
+        });
+        lane.execute(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void scheduledTasksRunOnTheLane() throws InterruptedException {
+        SerialLane lane = new SerialLane(mPool, mTimer);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        lane.schedule(() -> {
+            order.add("scheduled");
+            done.countDown();
+        }, 20);
+        lane.execute(() -> order.add("now"));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("now", order.get(0));
+        assertEquals("scheduled", order.get(1));
+    }
+
+    @Test
+    public void aRejectedExecuteLeavesTheLaneIdle() {
+        List<Runnable> submitted = new ArrayList<>();
+        boolean[] reject = {true};
+        SerialLane lane = new SerialLane(command -> {
+            if (reject[0]) {
+                throw new RejectedExecutionException("Test");
+            }
+            submitted.add(command);
+        }, mTimer);
+        List<String> order = new ArrayList<>();
+        try {
+            lane.execute(() -> order.add("rejected"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        reject[0] = false;
+        lane.execute(() -> order.add("accepted"));
+        assertEquals(1, submitted.size());
+        submitted.get(0).run();
+        assertEquals(Collections.singletonList("accepted"), order);
+    }
+
+    @Test
+    public void aDrainYieldsAfterTasksPerDrain() {
+        List<Runnable> submitted = new ArrayList<>();
+        SerialLane lane = new SerialLane(submitted::add, mTimer);
+        int count = SerialLane.TASKS_PER_DRAIN + 10;
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            lane.execute(ran::incrementAndGet);
+        }
+        assertEquals(1, submitted.size());
+
+        submitted.remove(0).run();
+        assertEquals(SerialLane.TASKS_PER_DRAIN, ran.get());
+        assertEquals(1, submitted.size());
+
+        submitted.remove(0).run();
+        assertEquals(count, ran.get());
+        assertTrue(submitted.isEmpty());
+    }
+}
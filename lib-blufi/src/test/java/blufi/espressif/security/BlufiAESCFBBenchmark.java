@@ -0,0 +1,45 @@
+package blufi.espressif.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import blufi.espressif.Benchmarks;
+
+public class BlufiAESCFBBenchmark {
+    private static final int FRAMES = 5000;
+    private static final int DATA_LENGTH = 200;
+    private static final byte[] KEY = new byte[16];
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void encryptFrames() {
+        byte[] data = new byte[DATA_LENGTH];
+        new Random(1).nextBytes(data);
+        // Security V1 built a cipher for each frame before the keystream engine
+        double perFrameCipher = Benchmarks.measure(FRAMES, () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                sum += new BlufiAES(KEY, "AES/CFB/NoPadding", BlufiAESCFBTest.iv(i)).encrypt(data)[0];
+            }
+            Benchmarks.sink = sum;
+        });
+        BlufiAESCFB cfb = new BlufiAESCFB(KEY);
+        byte[] output = new byte[DATA_LENGTH];
+        double keystream = Benchmarks.measure(FRAMES, () -> {
+            long sum = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                cfb.encrypt(i, data, 0, DATA_LENGTH, output, 0);
+                sum += output[0];
+            }
+            Benchmarks.sink = sum;
+        });
+        Benchmarks.report("BlufiAES per frame, " + DATA_LENGTH + " bytes", perFrameCipher);
+        Benchmarks.report("BlufiAESCFB, " + DATA_LENGTH + " bytes", keystream);
+    }
+}
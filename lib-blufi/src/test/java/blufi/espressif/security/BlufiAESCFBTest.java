@@ -0,0 +1,90 @@
+package blufi.espressif.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlufiAESCFBTest {
+    private static final byte[] KEY = new byte[16];
+
+    static {
+        new Random(1).nextBytes(KEY);
+    }
+
+    static byte[] iv(int sequence) {
+        byte[] iv = new byte[16];
+        iv[0] = (byte) sequence;
+        return iv;
+    }
+
+    private static byte[] jce(int mode, int sequence, byte[] input) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(iv(sequence)));
+        return cipher.doFinal(input);
+    }
+
+    @Test
+    public void encryptMatchesJCEForEverySequence() throws Exception {
+        BlufiAESCFB cfb = new BlufiAESCFB(KEY);
+        Random random = new Random(2);
+        // Twice, the second round takes the cached keystream of each IV
+        for (int round = 0; round < 2; round++) {
+            for (int sequence = 0; sequence < 256; sequence++) {
+                byte[] plain = new byte[random.nextInt(100)];
+                random.nextBytes(plain);
+                byte[] output = new byte[plain.length + 3];
+                assertTrue(cfb.encrypt(sequence, plain, 0, plain.length, output, 3));
+                assertArrayEquals("sequence " + sequence, jce(Cipher.ENCRYPT_MODE, sequence, plain),
+                        Arrays.copyOfRange(output, 3, output.length));
+            }
+        }
+    }
+
+    @Test
+    public void decryptMatchesJCEAcrossBlockBoundaries() throws Exception {
+        BlufiAESCFB cfb = new BlufiAESCFB(KEY);
+        Random random = new Random(3);
+        for (int length = 0; length <= 80; length++) {
+            int sequence = random.nextInt(256);
+            byte[] cipherText = new byte[length];
+            random.nextBytes(cipherText);
+            byte[] output = new byte[length];
+            assertTrue(cfb.decrypt(sequence, cipherText, 0, length, output, 0));
+            assertArrayEquals("length " + length, jce(Cipher.DECRYPT_MODE, sequence, cipherText), output);
+        }
+    }
+
+    @Test
+    public void worksInPlace() throws Exception {
+        BlufiAESCFB cfb = new BlufiAESCFB(KEY);
+        byte[] plain = new byte[70];
+        new Random(4).nextBytes(plain);
+        byte[] frame = new byte[plain.length + 6];
+        System.arraycopy(plain, 0, frame, 4, plain.length);
+
+        assertTrue(cfb.encrypt(9, frame, 4, plain.length, frame, 4));
+        assertArrayEquals(jce(Cipher.ENCRYPT_MODE, 9, plain), Arrays.copyOfRange(frame, 4, 4 + plain.length));
+
+        assertTrue(cfb.decrypt(9, frame, 4, plain.length, frame, 4));
+        assertArrayEquals(plain, Arrays.copyOfRange(frame, 4, 4 + plain.length));
+    }
+
+    @Test
+    public void decryptsWhatTheBlufiAESEncrypts() {
+        BlufiAESCFB cfb = new BlufiAESCFB(KEY);
+        byte[] plain = new byte[33];
+        new Random(5).nextBytes(plain);
+        byte[] cipherText = new BlufiAES(KEY, "AES/CFB/NoPadding", iv(200)).encrypt(plain);
+        byte[] output = new byte[plain.length];
+        assertTrue(cfb.decrypt(200, cipherText, 0, cipherText.length, output, 0));
+        assertArrayEquals(plain, output);
+    }
+}
@@ -0,0 +1,93 @@
+package blufi.espressif.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import blufi.espressif.Benchmarks;
+
+/**
+ * Compare the CRC paths on the lengths of frames, 20 to 512 bytes, and on a 64 KB stream of custom data.
+ */
+public class BlufiCRCBenchmark {
+    private static final int BYTES_PER_ROUND = 4 * 1024 * 1024;
+    private static final int[] LENGTHS = {20, 64, 128, 244, 512, 64 * 1024};
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            int crc = v << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            TABLE[v] = crc & 0xffff;
+        }
+    }
+
+    private interface CRC {
+        int calc(int crc, int length);
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    /**
+     * The byte per lookup loop BlufiCRC used for all lengths before the slicing path.
+     */
+    private static int byteWiseCRC(int crc, byte[] data, int offset, int length) {
+        crc = (~crc) & 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            int index = ((crc >> 8) ^ (data[i] & 0xff)) & 0xff;
+            crc = TABLE[index] ^ (crc << 8);
+            crc &= 0xffff;
+        }
+        return (~crc) & 0xffff;
+    }
+
+    private static void report(String name, int length, CRC crc) {
+        int operations = Math.max(BYTES_PER_ROUND / length, 1);
+        double nanos = Benchmarks.measure(operations, () -> {
+            long sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += crc.calc(i, length);
+            }
+            Benchmarks.sink = sum;
+        });
+        Benchmarks.report(name + ", " + length + " bytes", nanos);
+        Benchmarks.report(name + ", " + length + " bytes", length * 1000.0 / nanos, "MB/s");
+    }
+
+    @Test
+    public void compareByteWiseAndSlicing() {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        for (int length : LENGTHS) {
+            report("byte-wise CRC", length, (crc, len) -> byteWiseCRC(crc, data, 0, len));
+            report("BlufiCRC", length, (crc, len) -> BlufiCRC.calcCRC(crc, data, 0, len));
+        }
+    }
+
+    @Test
+    public void compareHeapAndDirectBuffers() {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        ByteBuffer heap = ByteBuffer.wrap(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        for (int length : LENGTHS) {
+            report("BlufiCRC heap ByteBuffer", length, (crc, len) -> {
+                heap.clear().limit(len);
+                return BlufiCRC.calcCRC(crc, heap);
+            });
+            report("BlufiCRC direct ByteBuffer", length, (crc, len) -> {
+                direct.clear().limit(len);
+                return BlufiCRC.calcCRC(crc, direct);
+            });
+        }
+    }
+}
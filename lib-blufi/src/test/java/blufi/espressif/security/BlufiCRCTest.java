@@ -0,0 +1,72 @@
+package blufi.espressif.security;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlufiCRCTest {
+    /**
+     * The bitwise CRC-16/CCITT the table of BlufiCRC is built from, with the same inverted input and output.
+     */
+    static int referenceCRC(int crc, byte[] data, int offset, int length) {
+        crc = (~crc) & 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+                crc &= 0xffff;
+            }
+        }
+        return (~crc) & 0xffff;
+    }
+
+    @Test
+    public void matchesReferenceAcrossTheSlicingThreshold() {
+        Random random = new Random(1);
+        byte[] data = new byte[600];
+        random.nextBytes(data);
+        for (int length = 0; length <= 520; length++) {
+            int offset = random.nextInt(64);
+            int seed = random.nextInt(0x10000);
+            assertEquals("length " + length, referenceCRC(seed, data, offset, length),
+                    BlufiCRC.calcCRC(seed, data, offset, length));
+        }
+    }
+
+    @Test
+    public void chainsLikeOnePass() {
+        byte[] data = new byte[300];
+        new Random(2).nextBytes(data);
+        int whole = BlufiCRC.calcCRC(0, data);
+        for (int split = 0; split <= data.length; split += 13) {
+            int first = BlufiCRC.calcCRC(0, data, 0, split);
+            assertEquals(whole, BlufiCRC.calcCRC(first, data, split, data.length - split));
+        }
+    }
+
+    @Test
+    public void byteBufferMatchesArray() {
+        byte[] data = new byte[400];
+        new Random(3).nextBytes(data);
+        for (int length : new int[]{0, 1, 63, 64, 65, 255, 390}) {
+            int expected = BlufiCRC.calcCRC(0x1234, data, 5, length);
+
+            ByteBuffer heap = ByteBuffer.wrap(data, 5, length).slice();
+            assertEquals(expected, BlufiCRC.calcCRC(0x1234, heap));
+            assertEquals(heap.limit(), heap.position());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(data, 5, length).flip();
+            assertEquals(expected, BlufiCRC.calcCRC(0x1234, direct));
+            assertEquals(direct.limit(), direct.position());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsRangeOutsideTheArray() {
+        BlufiCRC.calcCRC(0, new byte[10], 8, 3);
+    }
+}
@@ -0,0 +1,36 @@
+package blufi.espressif.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import blufi.espressif.Benchmarks;
+
+public class BlufiDHBenchmark {
+    private static final int KEYS = 4;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    private static double keyGenerationAndAgreement(int privateKeyLength) {
+        BlufiDH peer = new BlufiDH(BlufiDHTest.FFDHE3072_P, BlufiDHTest.G, 3072, 275);
+        return Benchmarks.measure(KEYS, () -> {
+            long sum = 0;
+            for (int i = 0; i < KEYS; i++) {
+                BlufiDH dh = new BlufiDH(BlufiDHTest.FFDHE3072_P, BlufiDHTest.G, 3072, privateKeyLength);
+                dh.generateSecretKey(peer.getPublicKey().getY());
+                sum += dh.getSecretKey().length;
+            }
+            Benchmarks.sink = sum;
+        });
+    }
+
+    @Test
+    public void compareExponentLengths() {
+        double full = keyGenerationAndAgreement(3072);
+        double shortExponent = keyGenerationAndAgreement(275);
+        Benchmarks.report("ffdhe3072 key pair and agreement, 3072-bit x", full);
+        Benchmarks.report("ffdhe3072 key pair and agreement, 275-bit x", shortExponent);
+    }
+}
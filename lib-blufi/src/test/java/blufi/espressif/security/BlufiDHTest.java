@@ -0,0 +1,71 @@
+package blufi.espressif.security;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlufiDHTest {
+    /**
+     * The ffdhe3072 group of RFC 7919.
+     */
+    public static final BigInteger FFDHE3072_P = new BigInteger(
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1" +
+            "D8B9C583CE2D3695A9E13641146433FBCC939DCE249B3EF9" +
+            "7D2FE363630C75D8F681B202AEC4617AD3DF1ED5D5FD6561" +
+            "2433F51F5F066ED0856365553DED1AF3B557135E7F57C935" +
+            "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE735" +
+            "30ACCA4F483A797ABC0AB182B324FB61D108A94BB2C8E3FB" +
+            "B96ADAB760D7F4681D4F42A3DE394DF4AE56EDE76372BB19" +
+            "0B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61" +
+            "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD73" +
+            "3BB5FCBC2EC22005C58EF1837D1683B2C6F34A26C1B2EFFA" +
+            "886B4238611FCFDCDE355B3B6519035BBC34F4DEF99C0238" +
+            "61B46FC9D6E6C9077AD91D2691F7F7EE598CB0FAC186D91C" +
+            "AEFE130985139270B4130C93BC437944F4FD4452E2D74DD3" +
+            "64F2E21E71F54BFF5CAE82AB9C9DF69EE86D2BC522363A0D" +
+            "ABC521979B0DEADA1DBF9A42D5C4484E0ABCD06BFA53DDEF" +
+            "3C1B20EE3FD59D7C25E41D2B66C62E37FFFFFFFFFFFFFFFF", 16);
+    public static final BigInteger G = BigInteger.valueOf(2);
+
+    @Test
+    public void shortExponentKeyAgreesWithFullLengthKey() {
+        BlufiDH shortKey = new BlufiDH(FFDHE3072_P, G, 3072, 275);
+        BlufiDH fullKey = new BlufiDH(FFDHE3072_P, G, 3072);
+        assertTrue(shortKey.getPrivateKey().getX().bitLength() <= 275);
+        assertEquals(275, shortKey.getPrivateKeyLength());
+
+        shortKey.generateSecretKey(fullKey.getPublicKey().getY());
+        fullKey.generateSecretKey(shortKey.getPublicKey().getY());
+        assertNotNull(shortKey.getSecretKey());
+        assertArrayEquals(fullKey.getSecretKey(), shortKey.getSecretKey());
+    }
+
+    @Test
+    public void publicKeyBytesArePaddedToTheGroupLength() {
+        BlufiDH dh = new BlufiDH(FFDHE3072_P, G, 3072, 275);
+        byte[] publicKey = dh.getPublicKeyBytes();
+        assertEquals(384, publicKey.length);
+        assertEquals(dh.getPublicKey().getY(), new BigInteger(1, publicKey));
+    }
+
+    @Test
+    public void toUnsignedBytesPadsAndDropsTheSignByte() {
+        assertArrayEquals(new byte[]{0, 0, 1}, BlufiDH.toUnsignedBytes(BigInteger.ONE, 3));
+        // 0xff needs a sign byte in toByteArray()
+        assertArrayEquals(new byte[]{(byte) 0xff}, BlufiDH.toUnsignedBytes(BigInteger.valueOf(0xff), 1));
+        byte[] full = new byte[384];
+        Arrays.fill(full, (byte) 0xff);
+        assertArrayEquals(full, BlufiDH.toUnsignedBytes(new BigInteger(1, full), 384));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toUnsignedBytesRejectsValueTooLong() {
+        BlufiDH.toUnsignedBytes(BigInteger.valueOf(0x100), 1);
+    }
+}
@@ -0,0 +1,65 @@
+package blufi.espressif.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import blufi.espressif.Benchmarks;
+
+/**
+ * Compare the CPU time of a key pair and agreement of P-256 with the DH groups the client negotiates: the 1024 bits
+ * group with a full length private value before BluFi 1.4, ffdhe3072 with a 275 bits one from BluFi 1.4.
+ * See {@code NegotiationBenchmark} for the round trip with a device.
+ */
+public class BlufiECDHBenchmark {
+    private static final int KEYS = 8;
+
+    // The 1024 bits group of BlufiClientImpl
+    private static final BigInteger DH_1024_P = new BigInteger(
+            "cf5cf5c38419a724957ff5dd323b9c45c3cdd261eb740f69aa94b8bb1a5c9640" +
+            "9153bd76b24222d03274e4725a5406092e9e82e9135c643cae98132b0d95f7d6" +
+            "5347c68afc1e677da90e51bbab5f5cf429c291b4ba39c6b2dc5e8c7231e46aa7" +
+            "728e87664532cdf547be20c9a3fa8342be6e34371a27c06f7dc0edddd2f86373", 16);
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    private static double dh(BigInteger p, int length, int privateKeyLength) {
+        BlufiDH peer = new BlufiDH(p, BlufiDHTest.G, length, privateKeyLength);
+        return Benchmarks.measureCpu(KEYS, () -> {
+            long sum = 0;
+            for (int i = 0; i < KEYS; i++) {
+                BlufiDH key = new BlufiDH(p, BlufiDHTest.G, length, privateKeyLength);
+                key.generateSecretKey(peer.getPublicKey().getY());
+                sum += key.getSecretKey().length + key.getPublicKeyBytes().length;
+            }
+            Benchmarks.sink = sum;
+        });
+    }
+
+    private static double ecdh() {
+        byte[] peer = new BlufiECDH().getPublicKeyBytes();
+        return Benchmarks.measureCpu(KEYS, () -> {
+            long sum = 0;
+            for (int i = 0; i < KEYS; i++) {
+                BlufiECDH key = new BlufiECDH();
+                key.generateSecretKey(peer);
+                sum += key.getSecretKey().length + key.getPublicKeyBytes().length;
+            }
+            Benchmarks.sink = sum;
+        });
+    }
+
+    @Test
+    public void compareCpuTimeWithDH() {
+        Benchmarks.report("1024-bit DH 1024-bit x, key pair and agreement", dh(DH_1024_P, 1024, 1024), "ns cpu/op");
+        Benchmarks.report("ffdhe3072 275-bit x, key pair and agreement",
+                dh(BlufiDHTest.FFDHE3072_P, 3072, 275), "ns cpu/op");
+        Benchmarks.report("ffdhe3072 3072-bit x, key pair and agreement",
+                dh(BlufiDHTest.FFDHE3072_P, 3072, 3072), "ns cpu/op");
+        Benchmarks.report("P-256 ECDH, key pair and agreement", ecdh(), "ns cpu/op");
+    }
+}
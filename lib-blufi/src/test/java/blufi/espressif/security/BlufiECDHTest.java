@@ -0,0 +1,51 @@
+package blufi.espressif.security;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlufiECDHTest {
+    @Test
+    public void publicKeyIsAnUncompressedPoint() {
+        BlufiECDH ecdh = new BlufiECDH();
+        byte[] publicKey = ecdh.getPublicKeyBytes();
+        assertEquals(BlufiECDH.PUBLIC_KEY_LENGTH, publicKey.length);
+        assertEquals(0x04, publicKey[0]);
+        assertEquals(ecdh.getPublicKey().getW().getAffineX(), new BigInteger(1, Arrays.copyOfRange(publicKey, 1, 33)));
+        assertEquals(ecdh.getPublicKey().getW().getAffineY(), new BigInteger(1, Arrays.copyOfRange(publicKey, 33, 65)));
+    }
+
+    @Test
+    public void bothSidesAgreeOnTheSecret() {
+        BlufiECDH client = new BlufiECDH();
+        BlufiECDH device = new BlufiECDH();
+        assertTrue(client.generateSecretKey(device.getPublicKeyBytes()));
+        assertTrue(device.generateSecretKey(client.getPublicKeyBytes()));
+        assertNotNull(client.getSecretKey());
+        assertEquals(32, client.getSecretKey().length);
+        assertArrayEquals(device.getSecretKey(), client.getSecretKey());
+    }
+
+    @Test
+    public void rejectsMalformedPublicKeys() {
+        BlufiECDH ecdh = new BlufiECDH();
+        assertFalse(ecdh.generateSecretKey(null));
+        assertFalse(ecdh.generateSecretKey(new byte[BlufiECDH.PUBLIC_KEY_LENGTH - 1]));
+
+        byte[] compressed = new BlufiECDH().getPublicKeyBytes();
+        compressed[0] = 0x02;
+        assertFalse(ecdh.generateSecretKey(compressed));
+
+        // A point which is not on the curve
+        byte[] offCurve = new BlufiECDH().getPublicKeyBytes();
+        offCurve[64] ^= 1;
+        assertFalse(ecdh.generateSecretKey(offCurve));
+    }
+}
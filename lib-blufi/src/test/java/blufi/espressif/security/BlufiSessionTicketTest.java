@@ -0,0 +1,93 @@
+package blufi.espressif.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BlufiSessionTicketTest {
+    private static final byte[] SECRET_KEY = new byte[32];
+
+    static {
+        for (int i = 0; i < SECRET_KEY.length; i++) {
+            SECRET_KEY[i] = (byte) i;
+        }
+    }
+
+    /**
+     * The answer of a device which holds the ticket, the device nonce and its proof.
+     */
+    private static byte[] deviceAnswer(BlufiSessionTicket ticket, byte[] clientNonce, byte[] deviceNonce) {
+        byte[] proof = BlufiHash.getHmacSHA256Bytes(ticket.getSecret(), "blufi_resume_device".getBytes(),
+                clientNonce, deviceNonce);
+        byte[] answer = new byte[BlufiSessionTicket.NONCE_LENGTH + BlufiSessionTicket.PROOF_LENGTH];
+        System.arraycopy(deviceNonce, 0, answer, 0, BlufiSessionTicket.NONCE_LENGTH);
+        System.arraycopy(proof, 0, answer, BlufiSessionTicket.NONCE_LENGTH, BlufiSessionTicket.PROOF_LENGTH);
+        return answer;
+    }
+
+    @Test
+    public void bothSidesDeriveTheSameTicket() {
+        BlufiSessionTicket client = BlufiSessionTicket.fromSecretKey(SECRET_KEY);
+        BlufiSessionTicket device = BlufiSessionTicket.fromSecretKey(SECRET_KEY.clone());
+
+        assertArrayEquals(client.getId(), device.getId());
+        assertArrayEquals(client.getSecret(), device.getSecret());
+        assertEquals(BlufiSessionTicket.ID_LENGTH, client.getId().length);
+        byte[] otherKey = SECRET_KEY.clone();
+        otherKey[0] ^= 1;
+        assertFalse(Arrays.equals(client.getId(), BlufiSessionTicket.fromSecretKey(otherKey).getId()));
+    }
+
+    @Test
+    public void resumeDataCarriesTheIdTheNonceAndAProof() {
+        BlufiSessionTicket ticket = BlufiSessionTicket.fromSecretKey(SECRET_KEY);
+        byte[] clientNonce = BlufiSessionTicket.generateNonce();
+        byte[] data = ticket.getResumeData(clientNonce);
+
+        assertEquals(BlufiSessionTicket.ID_LENGTH + BlufiSessionTicket.NONCE_LENGTH +
+                BlufiSessionTicket.PROOF_LENGTH, data.length);
+        assertArrayEquals(ticket.getId(), Arrays.copyOf(data, BlufiSessionTicket.ID_LENGTH));
+        assertArrayEquals(BlufiHash.getHmacSHA256Bytes(ticket.getSecret(), "blufi_resume_client".getBytes(),
+                ticket.getId(), clientNonce),
+                Arrays.copyOfRange(data, BlufiSessionTicket.ID_LENGTH + BlufiSessionTicket.NONCE_LENGTH,
+                        data.length));
+    }
+
+    @Test
+    public void resumesWithTheProofOfTheDevice() {
+        BlufiSessionTicket ticket = BlufiSessionTicket.fromSecretKey(SECRET_KEY);
+        byte[] clientNonce = BlufiSessionTicket.generateNonce();
+        byte[] deviceNonce = BlufiSessionTicket.generateNonce();
+        byte[] secretKey = ticket.resume(clientNonce, deviceAnswer(ticket, clientNonce, deviceNonce));
+
+        assertNotNull(secretKey);
+        assertArrayEquals(BlufiHash.getHmacSHA256Bytes(ticket.getSecret(), "blufi_resume_key".getBytes(),
+                clientNonce, deviceNonce), secretKey);
+    }
+
+    @Test
+    public void rejectsAnInvalidAnswer() {
+        BlufiSessionTicket ticket = BlufiSessionTicket.fromSecretKey(SECRET_KEY);
+        byte[] clientNonce = BlufiSessionTicket.generateNonce();
+        byte[] answer = deviceAnswer(ticket, clientNonce, BlufiSessionTicket.generateNonce());
+
+        byte[] forged = answer.clone();
+        forged[forged.length - 1] ^= 1;
+        assertNull(ticket.resume(clientNonce, forged));
+        // A proof of another client nonce
+        assertNull(ticket.resume(BlufiSessionTicket.generateNonce(), answer));
+        assertNull(ticket.resume(clientNonce, Arrays.copyOf(answer, answer.length - 1)));
+        assertNull(ticket.resume(clientNonce, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidLength() {
+        new BlufiSessionTicket(new byte[BlufiSessionTicket.ID_LENGTH], new byte[16]);
+    }
+}